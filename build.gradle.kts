@@ -3,6 +3,7 @@ plugins {
     id("idea")
     id("xyz.jpenilla.run-paper") version "1.0.6"
     id("com.github.johnrengelman.shadow") version "7.1.2"
+    id("me.champeau.jmh") version "0.6.8"
 }
 
 val githubUsername: String by project
@@ -34,6 +35,14 @@ dependencies {
     implementation("org.xerial:sqlite-jdbc:3.36.0.3")
     implementation("cloud.commandframework:cloud-paper:1.7.1")
     implementation("cloud.commandframework:cloud-minecraft-extras:1.7.1")
+
+    testCompileOnly("org.jetbrains:annotations:23.0.0")
+    testImplementation("io.papermc.paper:paper-api:1.19.2-R0.1-SNAPSHOT")
+    testImplementation("me.lokka30:treasury-api:2.0.0-SNAPSHOT")
+    testImplementation("org.junit.jupiter:junit-jupiter:5.9.1")
+
+    jmhImplementation("io.papermc.paper:paper-api:1.19.2-R0.1-SNAPSHOT")
+    jmhImplementation("me.lokka30:treasury-api:2.0.0-SNAPSHOT")
 }
 java {
     sourceCompatibility = JavaVersion.VERSION_17
@@ -55,6 +64,33 @@ sourceSets {
             srcDir("test")
         }
     }
+    named("jmh") {
+        java {
+            srcDir("jmh")
+        }
+    }
+    // headless load generator, run with ./gradlew loadTest --args="threads=32 accounts=100000"
+    create("loadtest") {
+        java {
+            srcDir("loadtest")
+        }
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+val loadtestImplementation: Configuration by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+dependencies {
+    "loadtestCompileOnly"("org.jetbrains:annotations:23.0.0")
+    loadtestImplementation("io.papermc.paper:paper-api:1.19.2-R0.1-SNAPSHOT")
+    loadtestImplementation("me.lokka30:treasury-api:2.0.0-SNAPSHOT")
+}
+jmh {
+    jmhVersion.set("1.35")
+    // machine readable results, e.g. to compare runs and track regressions
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
 }
 idea {
     module {
@@ -74,10 +110,19 @@ tasks {
         options.encoding = "UTF-8"
     }
     compileTestJava { options.encoding = "UTF-8" }
+    test {
+        useJUnitPlatform()
+    }
     javadoc { options.encoding = "UTF-8" }
     build {
         dependsOn(shadowJar)
     }
+    register<JavaExec>("loadTest") {
+        group = "verification"
+        description = "Runs the headless load generator against the economy"
+        classpath = sourceSets["loadtest"].runtimeClasspath
+        mainClass.set("at.hugo.bukkit.plugin.tresuryprovider.LoadTest")
+    }
     runServer {
         dependsOn(build)
         minecraftVersion("1.19.2")
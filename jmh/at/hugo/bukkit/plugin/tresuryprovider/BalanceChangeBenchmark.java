@@ -0,0 +1,83 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares deposits through the database with the write queue against deposits into the lock-free balance cells of
+ * the write-behind cache, with 1, 8 and 32 threads depositing into 1024 players.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalanceChangeBenchmark {
+    private static final int PLAYERS = 1024;
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+
+    @Param({"database", "write-behind"})
+    public String mode;
+
+    private File file;
+    private EconomyExecutor executor;
+    private SQLiteDatabase database;
+    private BalanceManager manager;
+    private Currency currency;
+    private final AccountKey[] accounts = new AccountKey[PLAYERS];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("balance-benchmark", ".db");
+        executor = new EconomyExecutor(4, 256);
+        database = new SQLiteDatabase(null, file.getPath(), 4);
+        database.enableWriteQueue(256, 2);
+        database.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true);
+        currency = database.loadCurrencies().get("coins");
+        for (int i = 0; i < PLAYERS; i++) {
+            accounts[i] = AccountKey.of(UUID.randomUUID());
+            database.setBalance(accounts[i], currency, BigDecimal.ZERO);
+        }
+        final BalanceCache cache = "write-behind".equals(mode) ? new BalanceCache(database, PLAYERS * 2, 0, executor) : null;
+        manager = new BalanceManager(database, cache, executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.flush();
+        executor.close();
+        database.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<BigDecimal> deposit1Thread() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Optional<BigDecimal> deposit8Threads() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Optional<BigDecimal> deposit32Threads() {
+        return deposit();
+    }
+
+    private Optional<BigDecimal> deposit() {
+        return manager.changeBalance(accounts[ThreadLocalRandom.current().nextInt(PLAYERS)], currency, AMOUNT, null).join();
+    }
+}
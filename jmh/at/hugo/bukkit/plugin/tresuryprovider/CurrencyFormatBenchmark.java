@@ -0,0 +1,95 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link CurrencyFormatter} with the {@link DecimalFormat} based formatting and the string replacing
+ * parser that {@link Currency} used before. Run with {@code -prof gc} to compare the allocations as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CurrencyFormatBenchmark {
+    private static final int AMOUNTS = 1024;
+    private static final String SYMBOL = "$";
+    private static final char DECIMAL = '.';
+    private static final Character GROUPING = ',';
+    private static final int PRECISION = 2;
+
+    private final BigDecimal[] amounts = new BigDecimal[AMOUNTS];
+    private final String[] formatted = new String[AMOUNTS];
+    private final StringBuilder builder = new StringBuilder(32);
+    private CurrencyFormatter formatter;
+    // DecimalFormat isn't thread safe, every benchmark thread gets its own
+    private DecimalFormatSymbols symbols;
+    private DecimalFormat decimalFormat;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        formatter = new CurrencyFormatter(PRECISION, DECIMAL, GROUPING, SYMBOL);
+        symbols = new DecimalFormatSymbols();
+        symbols.setCurrencySymbol(SYMBOL);
+        symbols.setDecimalSeparator(DECIMAL);
+        symbols.setGroupingSeparator(GROUPING);
+        decimalFormat = new DecimalFormat("#,##0." + "0".repeat(PRECISION), symbols);
+        final Random random = new Random(42);
+        for (int i = 0; i < AMOUNTS; i++) {
+            amounts[i] = BigDecimal.valueOf(random.nextInt(100_000_000), PRECISION);
+            formatted[i] = SYMBOL + decimalFormat.format(amounts[i]);
+        }
+    }
+
+    private int next() {
+        return next = (next + 1) & (AMOUNTS - 1);
+    }
+
+    @Benchmark
+    public String formatDecimalFormat() {
+        return decimalFormat.format(amounts[next()]);
+    }
+
+    @Benchmark
+    public String formatDecimalFormatOtherPrecision() {
+        final DecimalFormat format = new DecimalFormat("#,##0.0", symbols);
+        return format.format(amounts[next()].setScale(1, RoundingMode.DOWN));
+    }
+
+    @Benchmark
+    public String formatFormatter() {
+        return formatter.format(amounts[next()]);
+    }
+
+    @Benchmark
+    public String formatFormatterOtherPrecision() {
+        return formatter.format(amounts[next()], 1, RoundingMode.DOWN, new StringBuilder(24)).toString();
+    }
+
+    @Benchmark
+    public int formatFormatterIntoBuilder() {
+        builder.setLength(0);
+        return formatter.format(amounts[next()], builder).length();
+    }
+
+    @Benchmark
+    public BigDecimal parseReplace() {
+        final String text = formatted[next()];
+        final String unformatted = text.replace(String.valueOf(GROUPING), "").replace(SYMBOL, "").replace(DECIMAL, '.');
+        return new BigDecimal(unformatted).setScale(PRECISION, RoundingMode.DOWN);
+    }
+
+    @Benchmark
+    public BigDecimal parseFormatter() {
+        return formatter.parse(formatted[next()]);
+    }
+}
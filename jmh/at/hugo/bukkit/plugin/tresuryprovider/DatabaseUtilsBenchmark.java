@@ -0,0 +1,53 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts uuids and balances to the bytes they are stored as and back, as every database read and write does
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseUtilsBenchmark {
+    private static final int PRECISION = 2;
+
+    private UUID uuid;
+    private byte[] uuidBytes;
+    private BigDecimal balance;
+    private byte[] balanceBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        uuid = UUID.randomUUID();
+        uuidBytes = DatabaseUtils.convertUuidToBinary(uuid);
+        balance = new BigDecimal("123456789012345678901234.56");
+        balanceBytes = DatabaseUtils.convertBigDecimalToBinary(balance, PRECISION);
+    }
+
+    @Benchmark
+    public byte[] uuidToBinary() {
+        return DatabaseUtils.convertUuidToBinary(uuid);
+    }
+
+    @Benchmark
+    public UUID binaryToUuid() {
+        return DatabaseUtils.convertBytesToUUID(uuidBytes);
+    }
+
+    @Benchmark
+    public byte[] bigDecimalToBinary() {
+        return DatabaseUtils.convertBigDecimalToBinary(balance, PRECISION);
+    }
+
+    @Benchmark
+    public BigDecimal binaryToBigDecimal() {
+        return DatabaseUtils.convertBytesToBigDecimal(balanceBytes, PRECISION);
+    }
+}
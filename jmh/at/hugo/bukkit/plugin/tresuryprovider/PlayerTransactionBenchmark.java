@@ -0,0 +1,96 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.response.Response;
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deposits through {@link PlayerAccount#doTransaction} the way other plugins do, including the currency lookup, the
+ * executor, the write queue and the journal. With a single player every thread deposits into the same balance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlayerTransactionBenchmark {
+    @Param({"database", "write-behind"})
+    public String mode;
+
+    @Param({"1", "1024"})
+    public int players;
+
+    private File file;
+    private EconomyExecutor executor;
+    private SQLiteDatabase database;
+    private BalanceManager manager;
+    private PlayerAccount[] accounts;
+    private EconomyTransaction deposit;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("transaction-benchmark", ".db");
+        executor = new EconomyExecutor(4, 256);
+        database = new SQLiteDatabase(null, file.getPath(), 4);
+        database.enableWriteQueue(256, 2);
+        database.enableJournal();
+        database.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true);
+        final CurrencyRegistry currencies = new CurrencyRegistry(database.loadCurrencies());
+        final Currency currency = currencies.getPrimary();
+        final BalanceCache cache = "write-behind".equals(mode) ? new BalanceCache(database, players * 2, 0, executor) : null;
+        manager = new BalanceManager(database, cache, executor);
+        final Metrics metrics = new Metrics();
+        accounts = new PlayerAccount[players];
+        for (int i = 0; i < players; i++) {
+            accounts[i] = new PlayerAccount(manager, currencies::find, metrics, UUID.randomUUID());
+            database.setBalance(AccountKey.of(accounts[i].getUniqueId()), currency, BigDecimal.ZERO);
+        }
+        deposit = EconomyTransaction.newBuilder()
+                .withCurrency(currency)
+                .withTransactionType(EconomyTransactionType.DEPOSIT)
+                .withTransactionAmount(new BigDecimal("0.01"))
+                .withInitiator(EconomyTransactionInitiator.SERVER)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.flush();
+        executor.close();
+        database.close();
+        file.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Response<BigDecimal> deposit1Thread() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Response<BigDecimal> deposit8Threads() {
+        return deposit();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Response<BigDecimal> deposit32Threads() {
+        return deposit();
+    }
+
+    private Response<BigDecimal> deposit() {
+        return accounts[ThreadLocalRandom.current().nextInt(players)].doTransaction(deposit).join();
+    }
+}
@@ -0,0 +1,108 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads, changes and sets balances on a {@link SQLiteDatabase} in a temporary file. Reads run directly with 1 and 8
+ * threads, writes run directly with 1 thread and through the write queue with 1 and 8 threads, as concurrent writers
+ * on separate connections only wait on the database lock. With a single player every thread works on the same row,
+ * with 1024 players they rarely meet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SQLiteDatabaseBenchmark {
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+
+    @Param({"1", "1024"})
+    public int players;
+
+    private File file;
+    private SQLiteDatabase database;
+    private Currency currency;
+    private UUID[] uuids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("sqlite-benchmark", ".db");
+        database = new SQLiteDatabase(null, file.getPath(), 8);
+        database.enableWriteQueue(256, 2);
+        database.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true);
+        currency = database.loadCurrencies().get("coins");
+        uuids = new UUID[players];
+        for (int i = 0; i < players; i++) {
+            uuids[i] = UUID.randomUUID();
+            database.setBalance(uuids[i], currency, BigDecimal.ZERO);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+        file.delete();
+    }
+
+    private UUID player() {
+        return uuids[ThreadLocalRandom.current().nextInt(players)];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BigDecimal getBalance1Thread() {
+        return database.getBalance(player(), currency);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public BigDecimal getBalance8Threads() {
+        return database.getBalance(player(), currency);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<BigDecimal> changeBalance1Thread() {
+        return database.changeBalance(player(), currency, AMOUNT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<BigDecimal> queuedChangeBalance1Thread() {
+        return database.queueChangeBalance(AccountKey.of(player()), currency, AMOUNT, null).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Optional<BigDecimal> queuedChangeBalance8Threads() {
+        return database.queueChangeBalance(AccountKey.of(player()), currency, AMOUNT, null).join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean setBalance1Thread() {
+        return database.setBalance(player(), currency, AMOUNT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<BigDecimal> queuedSetBalance1Thread() {
+        return database.queueSetBalance(AccountKey.of(player()), currency, AMOUNT, null).join();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Optional<BigDecimal> queuedSetBalance8Threads() {
+        return database.queueSetBalance(AccountKey.of(player()), currency, AMOUNT, null).join();
+    }
+}
@@ -0,0 +1,109 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * Wires up the storage, executor, balance manager and economy the same way the plugin does in onEnable, without a
+ * server. Timers the server would run, like cache flushes and journal pruning, don't run.
+ */
+public class HeadlessEconomy implements EconomyContext, AutoCloseable {
+    private final Logger logger = Logger.getLogger("SimpleTreasuryEconomy");
+    private final Metrics metrics = new Metrics();
+    private final EconomyExecutor executor;
+    private final StorageEngine storage;
+    private final BalanceManager balanceManager;
+    private final EconomyProvider economy;
+
+    /**
+     * @param engine          sqlite, memory or mmap, like storage.engine in the config
+     * @param path            the database file for sqlite or the directory for mmap
+     * @param executorThreads how many threads run economy work
+     * @param poolSize        the sqlite connection pool size
+     * @param writeQueue      whether sqlite writes get batched by the write queue
+     * @param journal         whether sqlite journals transactions
+     * @param cacheEntries    the size of the write-behind cache, or 0 to write every change to the storage
+     * @param leaderboardSize the size of the leaderboard, or 0 to not keep one
+     * @throws IOException gets thrown if the mmap storage can't be created
+     */
+    public HeadlessEconomy(@NotNull final String engine, @Nullable final Path path, final int executorThreads, final int poolSize,
+                           final boolean writeQueue, final boolean journal, final int cacheEntries, final int leaderboardSize) throws IOException {
+        executor = new EconomyExecutor(executorThreads, 256);
+        storage = switch (engine.toLowerCase()) {
+            case "memory" -> new MemoryStorageEngine();
+            case "mmap" -> new MappedLogStorageEngine(path, 64 * 1024 * 1024, logger, executor);
+            case "sqlite" -> {
+                final SQLiteDatabase database = new SQLiteDatabase(this, path.toString(), poolSize);
+                if (writeQueue) database.enableWriteQueue(256, 2);
+                if (journal) database.enableJournal();
+                yield database;
+            }
+            default -> throw new IllegalArgumentException("Unknown storage engine " + engine);
+        };
+        final BalanceCache cache = cacheEntries > 0 ? new BalanceCache(storage, cacheEntries, 1000, executor) : null;
+        balanceManager = new BalanceManager(storage, cache, executor);
+        if (leaderboardSize > 0) balanceManager.enableLeaderboard(leaderboardSize);
+        economy = new EconomyProvider(this, storage.loadCurrencies());
+    }
+
+    /**
+     * Creates a currency in the storage and registers it with the economy
+     *
+     * @param identifier the identifier of the currency
+     * @param primary    whether it is the primary currency
+     * @return the registered currency
+     */
+    public me.lokka30.treasury.api.economy.currency.Currency createCurrency(@NotNull final String identifier, final boolean primary) {
+        economy.registerCurrency(new Currency(identifier, "$", '.', null, identifier, identifier, 2, primary)).join();
+        final var currency = economy.findCurrency(identifier).orElseThrow();
+        final Leaderboard leaderboard = balanceManager.getLeaderboard();
+        if (leaderboard != null) leaderboard.load(currency);
+        return currency;
+    }
+
+    @Override
+    public StorageEngine getStorage() {
+        return storage;
+    }
+
+    @Override
+    public EconomyExecutor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public BalanceManager getBalanceManager() {
+        return balanceManager;
+    }
+
+    @Override
+    public EconomyProvider getEconomy() {
+        return economy;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Writes everything that is still cached and closes the storage, like onDisable
+     */
+    @Override
+    public void close() {
+        balanceManager.flush();
+        final int dropped = executor.shutdown();
+        if (dropped > 0) logger.warning(dropped + " economy operations didn't finish within 10 seconds and were dropped");
+        balanceManager.flush();
+        storage.close();
+    }
+}
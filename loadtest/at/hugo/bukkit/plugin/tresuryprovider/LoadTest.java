@@ -0,0 +1,265 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.response.Response;
+import me.lokka30.treasury.api.economy.account.Account;
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives the economy through {@link EconomyProvider}, {@link PlayerAccount} and {@link NonPlayerAccount} like other
+ * plugins do, without a server, and reports the throughput and latency of every operation.
+ * <p>
+ * Every thread runs one operation after another and waits for it to complete, so the threads are the number of
+ * requests in flight. Accounts are picked with a zipfian skew, so a few hot accounts get most of the operations,
+ * like a server shop or the richest players do.
+ * <p>
+ * Options are passed as key=value, e.g. {@code ./gradlew loadTest --args="threads=32 accounts=100000 reads=0.9"}:
+ * <ul>
+ *     <li>storage: sqlite, memory or mmap (sqlite)</li>
+ *     <li>path: the database file or mmap directory (a temporary one that gets deleted)</li>
+ *     <li>threads: how many operations are in flight (16)</li>
+ *     <li>duration / warmup: seconds to measure and to run before measuring (60 / 10)</li>
+ *     <li>accounts: how many accounts are used (10000)</li>
+ *     <li>non-player: the share of the accounts that are non player accounts (0.1)</li>
+ *     <li>currencies: how many currencies balances are spread over (1)</li>
+ *     <li>zipf: the skew of the account popularity, 0 is uniform (0.99)</li>
+ *     <li>reads: the share of operations that read a balance (0.8)</li>
+ *     <li>transfers: the share of writes that are transfers, the rest are half deposits and half withdrawals (0.1)</li>
+ *     <li>executor-threads, pool-size, write-queue, journal, cache-entries, leaderboard: like the plugin config
+ *     (cpus but at least 2, 4, true, true, 0, 100)</li>
+ * </ul>
+ */
+public class LoadTest {
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+    private static final BigDecimal STARTING_BALANCE = new BigDecimal("1000000");
+
+    private enum Operation {
+        BALANCE, DEPOSIT, WITHDRAW, TRANSFER
+    }
+
+    private final Map<String, String> options;
+    private final int threads;
+    private final int accountCount;
+    private final double reads;
+    private final double transfers;
+    private final ZipfianGenerator accountGenerator;
+    private final HeadlessEconomy economy;
+    private final List<Currency> currencies = new ArrayList<>();
+    private final Account[] accounts;
+    private final Map<Currency, Map<EconomyTransactionType, EconomyTransaction>> transactions = new HashMap<>();
+
+    private volatile boolean measuring = false;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator < 0) throw new IllegalArgumentException("Options are passed as key=value, got " + arg);
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        final Path temporary = options.containsKey("path") ? null : Files.createTempDirectory("economy-loadtest");
+        try {
+            final LoadTest test = new LoadTest(options, temporary);
+            try {
+                test.run();
+            } finally {
+                test.economy.close();
+            }
+        } finally {
+            if (temporary != null) deleteRecursively(temporary);
+        }
+    }
+
+    private LoadTest(final Map<String, String> options, final Path temporary) throws IOException {
+        this.options = options;
+        threads = getInt("threads", 16);
+        accountCount = getInt("accounts", 10000);
+        reads = getDouble("reads", 0.8);
+        transfers = getDouble("transfers", 0.1);
+        accountGenerator = new ZipfianGenerator(accountCount, getDouble("zipf", 0.99));
+        final String engine = options.getOrDefault("storage", "sqlite");
+        final Path path = temporary == null ? Path.of(options.get("path")) : temporary.resolve("sqlite".equalsIgnoreCase(engine) ? "database.db" : "mmap");
+        economy = new HeadlessEconomy(engine, path, getInt("executor-threads", Math.max(2, Runtime.getRuntime().availableProcessors())),
+                getInt("pool-size", 4), getBoolean("write-queue", true), getBoolean("journal", true),
+                getInt("cache-entries", 0), getInt("leaderboard", 100));
+
+        final int currencyCount = getInt("currencies", 1);
+        for (int i = 0; i < currencyCount; i++) {
+            final String identifier = "loadtest" + i;
+            final Currency currency = economy.getEconomy().findCurrency(identifier).orElseGet(() -> economy.createCurrency(identifier, currencies.isEmpty()));
+            currencies.add(currency);
+            final Map<EconomyTransactionType, EconomyTransaction> byType = new EnumMap<>(EconomyTransactionType.class);
+            for (EconomyTransactionType type : List.of(EconomyTransactionType.DEPOSIT, EconomyTransactionType.WITHDRAWAL))
+                byType.put(type, EconomyTransaction.newBuilder()
+                        .withCurrency(currency)
+                        .withTransactionType(type)
+                        .withTransactionAmount(AMOUNT)
+                        .withInitiator(EconomyTransactionInitiator.SERVER)
+                        .withReason("load test")
+                        .build());
+            transactions.put(currency, byType);
+        }
+
+        final int nonPlayers = (int) Math.round(accountCount * getDouble("non-player", 0.1));
+        final Random random = new Random(42);
+        // spread the non player accounts over the popularity ranks instead of making them the hottest ones
+        final int stride = nonPlayers > 0 ? accountCount / nonPlayers : 0;
+        accounts = new Account[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = stride > 0 && i % stride == 0 && i / stride < nonPlayers
+                    ? new NonPlayerAccount(economy, "loadtest-" + i)
+                    : new PlayerAccount(economy, new UUID(random.nextLong(), random.nextLong()));
+        }
+    }
+
+    private void run() throws InterruptedException {
+        seed();
+        final long warmup = getInt("warmup", 10);
+        final long duration = getInt("duration", 60);
+        System.out.printf("Running %d threads on %d accounts (zipf %s) in %d currencies, %.0f%% reads, %.0f%% of writes transfers%n",
+                threads, accountCount, options.getOrDefault("zipf", "0.99"), currencies.size(), reads * 100, transfers * 100);
+
+        final Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+            workers[i].setName("LoadTest-" + i);
+            workers[i].start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        final long start = System.nanoTime();
+        measuring = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        measuring = false;
+        final long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Worker worker : workers) worker.join();
+
+        report(workers, elapsed);
+    }
+
+    /**
+     * Gives every account a balance in every currency, so reads find a row and withdrawals don't go negative
+     */
+    private void seed() {
+        System.out.printf("Seeding %d balances%n", accountCount * currencies.size());
+        final long start = System.nanoTime();
+        final StorageEngine storage = economy.getStorage();
+        final List<CompletableFuture<?>> writes = new ArrayList<>();
+        for (Account account : accounts) {
+            for (Currency currency : currencies)
+                writes.add(storage.queueSetBalance(AccountKey.of(account), currency, STARTING_BALANCE, null));
+        }
+        CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).join();
+        System.out.printf("Seeded in %d ms%n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void report(final Worker[] workers, final long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+        final LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        System.out.printf("%n%-10s %12s %12s %10s %10s %10s %10s %8s%n", "operation", "count", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        for (Operation operation : Operation.values()) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            long errors = 0;
+            for (Worker worker : workers) {
+                histogram.add(worker.histograms[operation.ordinal()]);
+                errors += worker.errors[operation.ordinal()];
+            }
+            all.add(histogram);
+            allErrors += errors;
+            printRow(operation.name().toLowerCase(), histogram, errors, seconds);
+        }
+        printRow("total", all, allErrors, seconds);
+        System.out.printf("%nEconomy metrics, including the warmup:%n");
+        economy.getMetrics().report().forEach(System.out::println);
+    }
+
+    private static void printRow(final String name, final LatencyHistogram histogram, final long errors, final double seconds) {
+        System.out.printf("%-10s %12d %12.1f %10.3f %10.3f %10.3f %10.3f %8d%n", name, histogram.getTotal(), histogram.getTotal() / seconds,
+                histogram.getValueAt(0.5) / 1e6, histogram.getValueAt(0.99) / 1e6, histogram.getValueAt(0.999) / 1e6, histogram.getMax() / 1e6, errors);
+    }
+
+    /**
+     * Runs operations until the test ends and records the ones that complete while measuring
+     */
+    private class Worker extends Thread {
+        private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+        private final long[] errors = new long[Operation.values().length];
+
+        private Worker() {
+            for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+        }
+
+        @Override
+        public void run() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running) {
+                final Operation operation = pickOperation(random);
+                final Currency currency = currencies.get(random.nextInt(currencies.size()));
+                final Account account = accounts[accountGenerator.next()];
+                final long start = System.nanoTime();
+                boolean successful;
+                try {
+                    successful = execute(operation, account, currency).join().isSuccessful();
+                } catch (RuntimeException e) {
+                    successful = false;
+                }
+                final long latency = System.nanoTime() - start;
+                if (!measuring) continue;
+                histograms[operation.ordinal()].record(latency);
+                if (!successful) errors[operation.ordinal()]++;
+            }
+        }
+
+        private Operation pickOperation(final ThreadLocalRandom random) {
+            if (random.nextDouble() < reads) return Operation.BALANCE;
+            if (accountCount > 1 && random.nextDouble() < transfers) return Operation.TRANSFER;
+            return random.nextBoolean() ? Operation.DEPOSIT : Operation.WITHDRAW;
+        }
+
+        private CompletableFuture<? extends Response<?>> execute(final Operation operation, final Account account, final Currency currency) {
+            return switch (operation) {
+                case BALANCE -> account.retrieveBalance(currency);
+                case DEPOSIT -> account.doTransaction(transactions.get(currency).get(EconomyTransactionType.DEPOSIT));
+                case WITHDRAW -> account.doTransaction(transactions.get(currency).get(EconomyTransactionType.WITHDRAWAL));
+                case TRANSFER -> {
+                    Account receiver;
+                    do {
+                        receiver = accounts[accountGenerator.next()];
+                    } while (receiver == account);
+                    yield economy.getEconomy().transfer(account, receiver, currency, AMOUNT, false, EconomyTransactionInitiator.SERVER, "load test");
+                }
+            };
+        }
+    }
+
+    private int getInt(final String key, final int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+
+    private double getDouble(final String key, final double defaultValue) {
+        return options.containsKey(key) ? Double.parseDouble(options.get(key)) : defaultValue;
+    }
+
+    private boolean getBoolean(final String key, final boolean defaultValue) {
+        return options.containsKey(key) ? Boolean.parseBoolean(options.get(key)) : defaultValue;
+    }
+
+    private static void deleteRecursively(final Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
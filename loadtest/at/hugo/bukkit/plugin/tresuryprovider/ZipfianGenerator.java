@@ -0,0 +1,49 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks indexes in [0, items) so that index 0 is the most popular and the popularity of index i falls with
+ * 1 / (i + 1)^theta. Uses the method of Gray et al. "Quickly Generating Billion-Record Synthetic Databases", which
+ * needs a single O(items) pass up front and O(1) per pick. A theta of 0 picks uniformly.
+ */
+public class ZipfianGenerator {
+    private final int items;
+    private final double theta;
+    private final double alpha;
+    private final double zetan;
+    private final double eta;
+
+    /**
+     * @param items the number of indexes to pick from
+     * @param theta the skew, 0 is uniform, 0.99 is what most key value benchmarks use; 1 is not supported
+     */
+    public ZipfianGenerator(final int items, final double theta) {
+        if (items <= 0) throw new IllegalArgumentException("items has to be positive");
+        if (theta < 0 || theta == 1) throw new IllegalArgumentException("theta has to be at least 0 and not 1");
+        this.items = items;
+        this.theta = theta;
+        this.alpha = 1 / (1 - theta);
+        this.zetan = zeta(items, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+    }
+
+    private static double zeta(final int n, final double theta) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    /**
+     * @return the next index, safe to call from any thread
+     */
+    public int next() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (theta == 0 || items == 1) return random.nextInt(items);
+        final double u = random.nextDouble();
+        final double uz = u * zetan;
+        if (uz < 1) return 0;
+        if (uz < 1 + Math.pow(0.5, theta)) return 1;
+        return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+}
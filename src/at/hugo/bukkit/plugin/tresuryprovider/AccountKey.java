@@ -0,0 +1,65 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.account.Account;
+import me.lokka30.treasury.api.economy.account.NonPlayerAccount;
+import me.lokka30.treasury.api.economy.account.PlayerAccount;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * Identifies either a player account by its UUID or a non-player account by its identifier
+ */
+public sealed interface AccountKey permits AccountKey.Player, AccountKey.NonPlayer {
+
+    /**
+     * @param uuid the uuid of the player
+     * @return the key of the player's account
+     */
+    static AccountKey of(@NotNull final UUID uuid) {
+        return new Player(uuid);
+    }
+
+    /**
+     * @param identifier the identifier of the non-player account
+     * @return the key of the non-player account
+     */
+    static AccountKey of(@NotNull final String identifier) {
+        return new NonPlayer(identifier);
+    }
+
+    /**
+     * @param account a player or non-player account
+     * @return the key of the account
+     * @throws IllegalArgumentException gets thrown if the account is neither a player nor a non-player account
+     */
+    static AccountKey of(@NotNull final Account account) {
+        if (account instanceof PlayerAccount player) return of(player.getUniqueId());
+        if (account instanceof NonPlayerAccount nonPlayer) return of(nonPlayer.getIdentifier());
+        throw new IllegalArgumentException("Unknown account type " + account.getClass().getName());
+    }
+
+    /**
+     * The key of a player account
+     *
+     * @param uuid the uuid of the player
+     */
+    record Player(@NotNull UUID uuid) implements AccountKey {
+        @Override
+        public String toString() {
+            return uuid.toString();
+        }
+    }
+
+    /**
+     * The key of a non-player account
+     *
+     * @param identifier the identifier of the account
+     */
+    record NonPlayer(@NotNull String identifier) implements AccountKey {
+        @Override
+        public String toString() {
+            return identifier;
+        }
+    }
+}
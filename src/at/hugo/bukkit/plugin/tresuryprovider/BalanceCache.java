@@ -0,0 +1,433 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps balances in memory and applies changes to them there. Changed balances are marked dirty and written to the
+ * storage in batches by {@link #flush()}, which should be called periodically and on shutdown.
+ * Only balances that aren't dirty can be evicted once the cache grows over its size bound.
+ */
+public class BalanceCache {
+    private static final int FLUSH_BATCH_SIZE = 500;
+    private static final BigDecimal UNCHANGED = new BigDecimal(0);
+
+    private final StorageEngine storage;
+    private final Executor executor;
+    private final ConcurrentHashMap<BalanceKey, CachedBalance> balances = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final int maxDirtyEntries;
+    private final AtomicInteger dirtyEntries = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Object flushLock = new Object();
+    private final ConcurrentLinkedQueue<TransactionJournal.Entry> journalEntries = new ConcurrentLinkedQueue<>();
+    private volatile Listener listener = null;
+
+    /**
+     * @param storage         the storage balances get loaded from and flushed to
+     * @param maxEntries      how many balances are kept in memory before clean ones get evicted
+     * @param maxDirtyEntries how many balances can be dirty before a flush starts right away, 0 or less to never
+     * @param executor        runs flushes that start because too many balances are dirty
+     */
+    public BalanceCache(@NotNull final StorageEngine storage, final int maxEntries, final int maxDirtyEntries, @NotNull final Executor executor) {
+        this.storage = storage;
+        this.executor = executor;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxDirtyEntries = maxDirtyEntries;
+    }
+
+    /**
+     * @param key the balance to look up
+     * @return the cached balance or null if it is not loaded
+     */
+    public @Nullable CachedBalance getIfPresent(@NotNull final BalanceKey key) {
+        return balances.get(key);
+    }
+
+    /**
+     * Gets the cached balance or loads it from the storage. This blocks if the balance is not cached.
+     *
+     * @param key      the balance to look up
+     * @param currency the currency of the balance
+     * @return the cached balance
+     * @throws StorageException gets thrown if the balance isn't cached and can't be loaded, nothing gets cached then
+     */
+    public @NotNull CachedBalance getOrLoad(@NotNull final BalanceKey key, @NotNull final Currency currency) {
+        CachedBalance cached = balances.get(key);
+        if (cached != null) return cached;
+        final BigDecimal stored = storage.getBalance(key.account(), currency);
+        cached = balances.computeIfAbsent(key, k -> new CachedBalance(k, currency, stored));
+        if (balances.size() > maxEntries) evict();
+        return cached;
+    }
+
+    /**
+     * Gets a balance, a balance that doesn't exist yet is created with the starting balance
+     *
+     * @param key             the balance to get
+     * @param currency        the currency of the balance
+     * @param startingBalance the balance of new accounts
+     * @return the balance
+     * @throws StorageException gets thrown if the balance can't be loaded
+     */
+    public BigDecimal get(@NotNull final BalanceKey key, @NotNull final Currency currency, @NotNull final BigDecimal startingBalance) {
+        while (true) {
+            final CachedBalance cached = getOrLoad(key, currency);
+            final BigDecimal result = cached.get(startingBalance);
+            if (result != null) return result;
+        }
+    }
+
+    /**
+     * Adds an amount to a balance in memory
+     *
+     * @param key      the balance to change
+     * @param currency the currency of the balance
+     * @param amount   the amount to add
+     * @return the new balance
+     * @throws StorageException gets thrown if the balance can't be loaded
+     */
+    public BigDecimal change(@NotNull final BalanceKey key, @NotNull final Currency currency, @NotNull final BigDecimal amount) {
+        while (true) {
+            final CachedBalance cached = getOrLoad(key, currency);
+            final BigDecimal result = cached.change(amount);
+            if (result != null) return result;
+        }
+    }
+
+    /**
+     * Withdraws an amount from a balance in memory if the balance is at least the amount
+     *
+     * @param key      the balance to change
+     * @param currency the currency of the balance
+     * @param amount   the amount to withdraw
+     * @return the new balance or null if the balance is lower than the amount
+     * @throws StorageException gets thrown if the balance can't be loaded
+     */
+    public @Nullable BigDecimal withdraw(@NotNull final BalanceKey key, @NotNull final Currency currency, @NotNull final BigDecimal amount) {
+        while (true) {
+            final CachedBalance cached = getOrLoad(key, currency);
+            final BigDecimal result = cached.update(value -> value != null && value.compareTo(amount) >= 0 ? value.subtract(amount) : UNCHANGED);
+            if (result == UNCHANGED) return null;
+            if (result != null) return result;
+        }
+    }
+
+    /**
+     * Sets a balance in memory
+     *
+     * @param key      the balance to set
+     * @param currency the currency of the balance
+     * @param amount   the new balance
+     */
+    public void set(@NotNull final BalanceKey key, @NotNull final Currency currency, @NotNull final BigDecimal amount) {
+        while (true) {
+            final CachedBalance cached = balances.computeIfAbsent(key, k -> new CachedBalance(k, currency, null));
+            if (cached.set(amount)) return;
+        }
+    }
+
+    /**
+     * @param listener gets told about every change of a cached balance, or null to remove the listener
+     */
+    public void setListener(@Nullable final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Keeps a journal entry of a change that was applied in memory, it gets written with the next flush
+     *
+     * @param entry the entry to append to the journal
+     */
+    public void addJournalEntry(@NotNull final TransactionJournal.Entry entry) {
+        journalEntries.add(entry);
+    }
+
+    /**
+     * Puts balances that were loaded from the storage into the cache, balances that are already cached are kept
+     *
+     * @param account  the account the balances belong to
+     * @param balances the balances by their currency
+     */
+    public void preload(@NotNull final AccountKey account, @NotNull final Map<Currency, BigDecimal> balances) {
+        balances.forEach((currency, value) -> this.balances.computeIfAbsent(new BalanceKey(account, currency.getIdentifier()), key -> new CachedBalance(key, currency, value)));
+        if (this.balances.size() > maxEntries) evict();
+    }
+
+    /**
+     * Writes the dirty balances of an account and drops all of its balances from memory, e.g. once a player left.
+     * A balance that changes while it gets written stays cached until it is flushed.
+     *
+     * @param account the account whose balances should be dropped
+     */
+    public void unload(@NotNull final AccountKey account) {
+        synchronized (flushLock) {
+            final ArrayList<CachedBalance> cachedEntries = new ArrayList<>();
+            for (CachedBalance cached : balances.values()) {
+                if (cached.key.account().equals(account)) cachedEntries.add(cached);
+            }
+            final ArrayList<WriteQueue.PendingWrite> batch = new ArrayList<>();
+            final ArrayList<Long> versions = new ArrayList<>();
+            final ArrayList<CachedBalance> dirty = new ArrayList<>();
+            for (CachedBalance cached : cachedEntries) {
+                final State state = cached.state.get();
+                if (!state.dirty || state.value == null) continue;
+                batch.add(new WriteQueue.PendingWrite(account, cached.currency, state.value, true, null, new CompletableFuture<>()));
+                versions.add(state.version);
+                dirty.add(cached);
+            }
+            if (!batch.isEmpty()) flush(batch, versions, dirty, new ArrayList<>());
+            for (CachedBalance cached : cachedEntries) {
+                final State state = cached.state.get();
+                if (state.dirty || !cached.state.compareAndSet(state, new State(state.value, state.version, false, true))) continue;
+                balances.remove(cached.key, cached);
+            }
+        }
+    }
+
+    /**
+     * Drops all cached balances of an account without writing them, e.g. because the account got deleted
+     *
+     * @param account the account whose balances should be dropped
+     */
+    public void invalidate(@NotNull final AccountKey account) {
+        for (CachedBalance cached : balances.values()) {
+            if (!cached.key.account().equals(account)) continue;
+            final State previous = cached.state.getAndSet(new State(null, -1, false, true));
+            if (previous.dirty) dirtyEntries.decrementAndGet();
+            balances.remove(cached.key, cached);
+        }
+    }
+
+    /**
+     * @param account the account to look up
+     * @return the identifiers of all currencies the account has a cached balance in
+     */
+    public Set<String> getCachedCurrencies(@NotNull final AccountKey account) {
+        final HashSet<String> result = new HashSet<>();
+        for (BalanceKey key : balances.keySet()) {
+            if (key.account().equals(account)) result.add(key.currencyId());
+        }
+        return result;
+    }
+
+    /**
+     * @return the amount of cached balances
+     */
+    public int size() {
+        return balances.size();
+    }
+
+    /**
+     * @return the amount of balances that still have to be written to the storage
+     */
+    public int dirtySize() {
+        return dirtyEntries.get();
+    }
+
+    /**
+     * Writes all dirty balances to the storage in batches. Balances that change while they get written stay dirty.
+     *
+     * @return the amount of balances that got written
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            flushScheduled.set(false);
+            final ArrayList<WriteQueue.PendingWrite> batch = new ArrayList<>(FLUSH_BATCH_SIZE);
+            final ArrayList<Long> versions = new ArrayList<>(FLUSH_BATCH_SIZE);
+            final ArrayList<CachedBalance> cachedEntries = new ArrayList<>(FLUSH_BATCH_SIZE);
+            final ArrayList<TransactionJournal.Entry> entries = new ArrayList<>();
+            TransactionJournal.Entry entry;
+            while ((entry = journalEntries.poll()) != null) entries.add(entry);
+            int written = 0;
+            for (CachedBalance cached : balances.values()) {
+                final State state = cached.state.get();
+                if (!state.dirty || state.value == null) continue;
+                batch.add(new WriteQueue.PendingWrite(cached.key.account(), cached.currency, state.value, true, null, new CompletableFuture<>()));
+                versions.add(state.version);
+                cachedEntries.add(cached);
+                if (batch.size() >= FLUSH_BATCH_SIZE) {
+                    written += flush(batch, versions, cachedEntries, entries);
+                }
+            }
+            if (!batch.isEmpty() || !entries.isEmpty()) written += flush(batch, versions, cachedEntries, entries);
+            if (balances.size() > maxEntries) evict();
+            return written;
+        }
+    }
+
+    private int flush(ArrayList<WriteQueue.PendingWrite> batch, ArrayList<Long> versions, ArrayList<CachedBalance> entries, ArrayList<TransactionJournal.Entry> journal) {
+        storage.writeBatch(batch, journal);
+        journal.clear();
+        int written = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).future().join().isEmpty()) continue;
+            written++;
+            final CachedBalance cached = entries.get(i);
+            // only the version that got written becomes clean, a balance that changed meanwhile stays dirty
+            while (true) {
+                final State state = cached.state.get();
+                if (!state.dirty || state.version != versions.get(i)) break;
+                if (cached.state.compareAndSet(state, new State(state.value, state.version, false, false))) {
+                    dirtyEntries.decrementAndGet();
+                    break;
+                }
+            }
+        }
+        batch.clear();
+        versions.clear();
+        entries.clear();
+        return written;
+    }
+
+    /**
+     * Evicts the least recently used clean balances until the cache is a tenth below its size bound
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            final int target = maxEntries - maxEntries / 10;
+            final ArrayList<CachedBalance> candidates = new ArrayList<>();
+            for (CachedBalance cached : balances.values()) {
+                if (!cached.state.get().dirty) candidates.add(cached);
+            }
+            candidates.sort(Comparator.comparingLong(cached -> cached.lastAccess));
+            for (CachedBalance cached : candidates) {
+                if (balances.size() <= target) break;
+                final State state = cached.state.get();
+                if (state.dirty || !cached.state.compareAndSet(state, new State(state.value, state.version, false, true))) continue;
+                balances.remove(cached.key, cached);
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void markDirty() {
+        if (dirtyEntries.incrementAndGet() >= maxDirtyEntries && maxDirtyEntries > 0 && flushScheduled.compareAndSet(false, true))
+            CompletableFuture.runAsync(this::flush, executor);
+    }
+
+    /**
+     * Gets told about changes of cached balances. Concurrent changes of one balance can be reported out of order,
+     * so the listener has to read the newest balance with {@link CachedBalance#peek()} while it holds its own lock.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param key      the balance that changed
+         * @param currency the currency of the balance
+         * @param balance  the cached balance that changed
+         */
+        void balanceChanged(@NotNull BalanceKey key, @NotNull Currency currency, @NotNull CachedBalance balance);
+    }
+
+    /**
+     * An immutable state of a cached balance, a balance changes by swapping its state
+     *
+     * @param value   the balance or null if there is none yet
+     * @param version gets incremented with every change, so a flush knows whether the balance changed since
+     * @param dirty   whether the balance still has to be written to the storage
+     * @param evicted whether the balance got removed from the cache, it keeps its last value for listeners
+     */
+    private record State(@Nullable BigDecimal value, long version, boolean dirty, boolean evicted) {
+    }
+
+    /**
+     * A balance held in memory. Its state is swapped with compare-and-set, so deposits and withdrawals never lock
+     * and changes of different balances never wait for each other. A balance that got evicted must not be changed
+     * anymore, its methods return null or false in that case and the caller has to look it up again.
+     */
+    public final class CachedBalance {
+        private final BalanceKey key;
+        private final Currency currency;
+        private final AtomicReference<State> state;
+        private volatile long lastAccess = System.nanoTime();
+
+        private CachedBalance(@NotNull final BalanceKey key, @NotNull final Currency currency, @Nullable final BigDecimal value) {
+            this.key = key;
+            this.currency = currency;
+            this.state = new AtomicReference<>(new State(value, 0, false, false));
+        }
+
+        /**
+         * Swaps the state to the new value, unless the change returns {@link #UNCHANGED}
+         *
+         * @return the new value, {@link #UNCHANGED} or null if this balance got evicted
+         */
+        private @Nullable BigDecimal update(UnaryOperator<BigDecimal> change) {
+            while (true) {
+                final State current = state.get();
+                if (current.evicted) return null;
+                final BigDecimal value = change.apply(current.value);
+                if (value == UNCHANGED) return UNCHANGED;
+                if (state.compareAndSet(current, new State(value, current.version + 1, true, false))) {
+                    changed(current);
+                    return value;
+                }
+            }
+        }
+
+        private void changed(State previous) {
+            lastAccess = System.nanoTime();
+            if (!previous.dirty) markDirty();
+            final Listener listener = BalanceCache.this.listener;
+            if (listener != null) listener.balanceChanged(key, currency, this);
+        }
+
+        /**
+         * @return the current balance, or null if there is none or the account got deleted
+         */
+        public @Nullable BigDecimal peek() {
+            return state.get().value;
+        }
+
+        /**
+         * @param startingBalance the balance that gets stored if there is no balance yet
+         * @return the balance or null if this balance got evicted
+         */
+        public @Nullable BigDecimal get(@NotNull final BigDecimal startingBalance) {
+            while (true) {
+                final State current = state.get();
+                if (current.evicted) return null;
+                if (current.value != null) {
+                    lastAccess = System.nanoTime();
+                    return current.value;
+                }
+                if (state.compareAndSet(current, new State(startingBalance, current.version + 1, true, false))) {
+                    changed(current);
+                    return startingBalance;
+                }
+            }
+        }
+
+        /**
+         * @param amount the amount to add, a balance that doesn't exist yet starts at zero
+         * @return the new balance or null if this balance got evicted
+         */
+        public @Nullable BigDecimal change(@NotNull final BigDecimal amount) {
+            return update(value -> (value == null ? BigDecimal.ZERO : value).add(amount));
+        }
+
+        /**
+         * @param amount the new balance
+         * @return false if this balance got evicted
+         */
+        public boolean set(@NotNull final BigDecimal amount) {
+            return update(value -> amount) != null;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Identifies the balance of one account in one currency
+ *
+ * @param account    the account the balance belongs to
+ * @param currencyId the identifier of the currency
+ */
+public record BalanceKey(@NotNull AccountKey account, @NotNull String currencyId) {
+}
@@ -0,0 +1,444 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The one place accounts read and write balances through. Depending on the configuration balances are served from the
+ * write-behind {@link BalanceCache} or read from and written to the storage directly. Balances of players that are
+ * online can be preloaded, they are served from memory until the player leaves.
+ */
+public class BalanceManager {
+    private final StorageEngine storage;
+    private final BalanceCache cache;
+    private final EconomyExecutor executor;
+    private final ConcurrentHashMap<UUID, Session> sessions = new ConcurrentHashMap<>();
+    private Leaderboard leaderboard = null;
+
+    /**
+     * @param storage  the storage balances are kept in
+     * @param cache    the write-behind cache or null if balances should be written to the storage directly
+     * @param executor runs blocking work, in order per account
+     */
+    public BalanceManager(@NotNull final StorageEngine storage, @Nullable final BalanceCache cache, @NotNull final EconomyExecutor executor) {
+        this.storage = storage;
+        this.cache = cache;
+        this.executor = executor;
+        storage.setBalanceListener(this::balanceWritten);
+    }
+
+    /**
+     * @return the write-behind cache or null if it is disabled
+     */
+    public @Nullable BalanceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Keeps a leaderboard of the richest players of every currency that gets updated with every balance change
+     *
+     * @param size how many players are ranked per currency
+     * @return the leaderboard
+     */
+    public Leaderboard enableLeaderboard(final int size) {
+        if (leaderboard != null) return leaderboard;
+        leaderboard = new Leaderboard(storage, this::flush, size, executor);
+        if (cache != null) cache.setListener((key, currency, balance) -> {
+            if (key.account() instanceof AccountKey.Player player) leaderboard.update(player.uuid(), currency, balance::peek);
+        });
+        return leaderboard;
+    }
+
+    /**
+     * @return the leaderboard or null if it is disabled
+     */
+    public @Nullable Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    /**
+     * Loads all balances of a player in one read and keeps them in memory until {@link #unload} is called.
+     * Without the write-behind cache they are kept up to date with every committed write.
+     *
+     * @param player     the player whose balances should be loaded
+     * @param currencies looks up a currency by its identifier
+     * @return a future that completes once the balances are loaded
+     */
+    public CompletableFuture<Void> preload(@NotNull final UUID player, @NotNull final Function<String, Optional<Currency>> currencies) {
+        final AccountKey account = AccountKey.of(player);
+        return executor.run(account, () -> {
+            if (cache != null) {
+                final HashMap<Currency, BigDecimal> balances = new HashMap<>();
+                storage.getBalances(account).forEach((currency, balance) -> currencies.apply(currency).ifPresent(found -> balances.put(found, balance)));
+                cache.preload(account, balances);
+                return;
+            }
+            final Session session = sessions.computeIfAbsent(player, uuid -> new Session());
+            // balances that got written while loading are already in the session and at least as new as the loaded ones
+            storage.getBalances(account).forEach(session.balances::putIfAbsent);
+            session.loaded = true;
+        });
+    }
+
+    /**
+     * Writes the balances of a player that are only changed in memory and drops them from memory
+     *
+     * @param player the player whose balances should be dropped
+     * @return a future that completes once the balances are written
+     */
+    public CompletableFuture<Void> unload(@NotNull final UUID player) {
+        final AccountKey account = AccountKey.of(player);
+        return executor.run(account, () -> {
+            sessions.remove(player);
+            if (cache != null) cache.unload(account);
+        });
+    }
+
+    /**
+     * Forgets the balances of a currency that got deleted
+     *
+     * @param currency the identifier of the currency
+     */
+    public void removeCurrency(@NotNull final String currency) {
+        sessions.values().forEach(session -> session.balances.remove(currency));
+    }
+
+    /**
+     * Gets the balance of an account, an account without a balance in that currency gets the starting balance
+     *
+     * @param account         the account to look up
+     * @param currency        the currency of the balance
+     * @param startingBalance the balance that gets stored if there is no balance yet
+     * @return a future that completes with the balance or an empty Optional if it couldn't be read
+     */
+    public CompletableFuture<Optional<BigDecimal>> retrieveBalance(@NotNull final AccountKey account, @NotNull final Currency currency, @NotNull final BigDecimal startingBalance) {
+        if (cache != null) {
+            final BalanceKey key = new BalanceKey(account, currency.getIdentifier());
+            final BalanceCache.CachedBalance cached = cache.getIfPresent(key);
+            if (cached != null) {
+                final BigDecimal balance = cached.get(startingBalance);
+                if (balance != null) return CompletableFuture.completedFuture(Optional.of(balance));
+            }
+            return executor.supply(account, () -> {
+                try {
+                    return Optional.of(cache.get(key, currency, startingBalance));
+                } catch (StorageException e) {
+                    return Optional.empty();
+                }
+            });
+        }
+        final Session session = account instanceof AccountKey.Player player ? sessions.get(player.uuid()) : null;
+        if (session != null && session.loaded) {
+            final BigDecimal balance = session.balances.get(currency.getIdentifier());
+            if (balance != null) return CompletableFuture.completedFuture(Optional.of(balance));
+        }
+        return executor.supply(account, () -> {
+            final BigDecimal balance;
+            try {
+                balance = storage.getBalance(account, currency);
+            } catch (StorageException e) {
+                // the starting balance would overwrite the stored one
+                return Optional.empty();
+            }
+            if (balance != null) {
+                if (session != null) session.balances.putIfAbsent(currency.getIdentifier(), balance);
+                return Optional.of(balance);
+            }
+            final boolean created = storage.setBalance(account, currency, startingBalance);
+            return ranked(account, currency, created ? Optional.of(startingBalance) : Optional.empty());
+        });
+    }
+
+    /**
+     * Adds an amount to the balance of an account
+     *
+     * @param account     the account whose balance changes
+     * @param currency    the currency of the balance
+     * @param amount      the amount to add, negative to withdraw
+     * @param transaction the transaction that gets appended to the journal, or null
+     * @return a future that completes with the new balance or an empty Optional if the change failed
+     */
+    public CompletableFuture<Optional<BigDecimal>> changeBalance(@NotNull final AccountKey account, @NotNull final Currency currency, @NotNull final BigDecimal amount, @Nullable final EconomyTransaction transaction) {
+        if (cache != null) {
+            final BalanceKey key = new BalanceKey(account, currency.getIdentifier());
+            final BalanceCache.CachedBalance cached = cache.getIfPresent(key);
+            if (cached != null) {
+                final BigDecimal balance = cached.change(amount);
+                if (balance != null) {
+                    journal(account, currency, transaction);
+                    return CompletableFuture.completedFuture(Optional.of(balance));
+                }
+            }
+            return executor.supply(account, () -> {
+                final BigDecimal balance;
+                try {
+                    balance = cache.change(key, currency, amount);
+                } catch (StorageException e) {
+                    return Optional.empty();
+                }
+                journal(account, currency, transaction);
+                return Optional.of(balance);
+            });
+        }
+        return storage.queueChangeBalance(account, currency, amount, transaction).thenApply(result -> ranked(account, currency, result));
+    }
+
+    /**
+     * Sets the balance of an account
+     *
+     * @param account     the account whose balance gets set
+     * @param currency    the currency of the balance
+     * @param amount      the new balance
+     * @param transaction the transaction that gets appended to the journal, or null
+     * @return a future that completes with the new balance or an empty Optional if it couldn't be set
+     */
+    public CompletableFuture<Optional<BigDecimal>> setBalance(@NotNull final AccountKey account, @NotNull final Currency currency, @NotNull final BigDecimal amount, @Nullable final EconomyTransaction transaction) {
+        if (cache != null) {
+            cache.set(new BalanceKey(account, currency.getIdentifier()), currency, amount);
+            journal(account, currency, transaction);
+            return CompletableFuture.completedFuture(Optional.of(amount));
+        }
+        return storage.queueSetBalance(account, currency, amount, transaction).thenApply(result -> ranked(account, currency, result));
+    }
+
+    /**
+     * Moves an amount from one account to another. Without the write-behind cache both balances and their journal
+     * entries are written in one transaction. With it both balances change in memory right away and get written by
+     * the next flush.
+     *
+     * @param from         the paying account
+     * @param to           the receiving account
+     * @param currency     the currency of both balances
+     * @param amount       the amount to move, has to be positive
+     * @param requireFunds whether the transfer should fail if the paying account has less than the amount
+     * @param withdrawal   the transaction that gets appended to the journal for the paying account, or null
+     * @param deposit      the transaction that gets appended to the journal for the receiving account, or null
+     * @return a future that completes with the outcome of the transfer
+     */
+    public CompletableFuture<TransferResult> transfer(@NotNull final AccountKey from, @NotNull final AccountKey to, @NotNull final Currency currency, @NotNull final BigDecimal amount, final boolean requireFunds, @Nullable final EconomyTransaction withdrawal, @Nullable final EconomyTransaction deposit) {
+        if (cache != null) {
+            return executor.supply(from, () -> {
+                final BalanceKey fromKey = new BalanceKey(from, currency.getIdentifier());
+                final BigDecimal fromBalance;
+                final BigDecimal toBalance;
+                try {
+                    fromBalance = requireFunds ? cache.withdraw(fromKey, currency, amount) : cache.change(fromKey, currency, amount.negate());
+                    if (fromBalance == null) return TransferResult.insufficientFunds();
+                    toBalance = deposit(fromKey, new BalanceKey(to, currency.getIdentifier()), currency, amount, currency, amount);
+                } catch (StorageException e) {
+                    return TransferResult.failed();
+                }
+                journal(from, currency, withdrawal);
+                journal(to, currency, deposit);
+                return TransferResult.success(fromBalance, toBalance);
+            });
+        }
+        return executor.supply(from, () -> {
+            final TransferResult result = storage.transfer(from, to, currency, amount, requireFunds, withdrawal, deposit);
+            if (result.isSuccess()) {
+                ranked(from, currency, Optional.of(result.fromBalance()));
+                ranked(to, currency, Optional.of(result.toBalance()));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Withdraws an amount in one currency from an account and deposits the converted amount in another currency
+     * into it. Without the write-behind cache both balances are written in one transaction.
+     *
+     * @param account      the account that exchanges
+     * @param from         the currency that gets withdrawn
+     * @param amount       the amount that gets withdrawn, has to be positive
+     * @param to           the currency that gets deposited
+     * @param converted    the amount that gets deposited
+     * @param requireFunds whether the exchange should fail if the account has less than the amount
+     * @param withdrawal   the transaction that gets appended to the journal for the withdrawal, or null
+     * @param deposit      the transaction that gets appended to the journal for the deposit, or null
+     * @return a future that completes with the outcome of the exchange
+     */
+    public CompletableFuture<TransferResult> exchange(@NotNull final AccountKey account, @NotNull final Currency from, @NotNull final BigDecimal amount, @NotNull final Currency to, @NotNull final BigDecimal converted, final boolean requireFunds, @Nullable final EconomyTransaction withdrawal, @Nullable final EconomyTransaction deposit) {
+        if (cache != null) {
+            return executor.supply(account, () -> {
+                final BalanceKey fromKey = new BalanceKey(account, from.getIdentifier());
+                final BigDecimal fromBalance;
+                final BigDecimal toBalance;
+                try {
+                    fromBalance = requireFunds ? cache.withdraw(fromKey, from, amount) : cache.change(fromKey, from, amount.negate());
+                    if (fromBalance == null) return TransferResult.insufficientFunds();
+                    toBalance = deposit(fromKey, new BalanceKey(account, to.getIdentifier()), from, amount, to, converted);
+                } catch (StorageException e) {
+                    return TransferResult.failed();
+                }
+                journal(account, from, withdrawal);
+                journal(account, to, deposit);
+                return TransferResult.success(fromBalance, toBalance);
+            });
+        }
+        return executor.supply(account, () -> {
+            final TransferResult result = storage.exchange(account, from, amount, to, converted, requireFunds, withdrawal, deposit);
+            if (result.isSuccess()) {
+                ranked(account, from, Optional.of(result.fromBalance()));
+                ranked(account, to, Optional.of(result.toBalance()));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Deposits the second half of a transfer or exchange in the cache. If the receiving balance can't be loaded, the
+     * already withdrawn amount is given back, the paying balance is dirty and can't have been evicted meanwhile.
+     *
+     * @throws StorageException gets thrown if the receiving balance can't be loaded
+     */
+    private BigDecimal deposit(BalanceKey fromKey, BalanceKey toKey, Currency from, BigDecimal amount, Currency to, BigDecimal converted) {
+        try {
+            return cache.change(toKey, to, converted);
+        } catch (StorageException e) {
+            cache.change(fromKey, from, amount);
+            throw e;
+        }
+    }
+
+    /**
+     * Adds amounts to the balances of many accounts at once, e.g. for a payout to every online player. Without the
+     * write-behind cache the storage writes them in a few large transactions instead of one per account.
+     *
+     * @param currency     the currency of the balances
+     * @param amounts      the amount that gets added to each account, negative to withdraw
+     * @param requireFunds whether a withdrawal should be skipped if the account has less than the amount
+     * @param transactions creates the transaction that gets appended to the journal for an account, or null
+     * @return a future that completes with the new balance of every account, or an empty Optional if it was skipped or failed
+     */
+    public CompletableFuture<Map<AccountKey, Optional<BigDecimal>>> changeBalances(@NotNull final Currency currency, @NotNull final Map<AccountKey, BigDecimal> amounts, final boolean requireFunds, @Nullable final Function<AccountKey, EconomyTransaction> transactions) {
+        if (cache != null) {
+            return executor.supply(() -> {
+                final LinkedHashMap<AccountKey, Optional<BigDecimal>> results = new LinkedHashMap<>();
+                amounts.forEach((account, amount) -> {
+                    final BalanceKey key = new BalanceKey(account, currency.getIdentifier());
+                    BigDecimal balance;
+                    try {
+                        balance = requireFunds && amount.signum() < 0 ? cache.withdraw(key, currency, amount.negate()) : cache.change(key, currency, amount);
+                    } catch (StorageException e) {
+                        balance = null;
+                    }
+                    if (balance != null && transactions != null) journal(account, currency, transactions.apply(account));
+                    results.put(account, Optional.ofNullable(balance));
+                });
+                return results;
+            });
+        }
+        return executor.supply(() -> {
+            final Map<AccountKey, Optional<BigDecimal>> results = storage.changeBalances(currency, amounts, requireFunds, transactions);
+            results.forEach((account, result) -> ranked(account, currency, result));
+            return results;
+        });
+    }
+
+    /**
+     * @param currency the currency to look up
+     * @return a future that completes with all accounts that have a balance in the currency
+     */
+    public CompletableFuture<Collection<AccountKey>> retrieveAccountsWith(@NotNull final Currency currency) {
+        return executor.supply(() -> {
+            // balances that only exist in the cache so far have to be stored to be found
+            flush();
+            return storage.getAccountsWith(currency);
+        });
+    }
+
+    /**
+     * Updates the leaderboard once a write is committed. With the write queue writes complete in the order they
+     * were committed, so the leaderboard sees them in that order as well.
+     */
+    private Optional<BigDecimal> ranked(AccountKey account, Currency currency, Optional<BigDecimal> result) {
+        if (leaderboard != null && result.isPresent() && account instanceof AccountKey.Player player)
+            leaderboard.update(player.uuid(), currency, result.get());
+        return result;
+    }
+
+    /**
+     * Keeps the balances of online players up to date. The storage reports writes while it holds its write lock,
+     * so a write that commits later can't be overwritten by one that committed earlier.
+     */
+    private void balanceWritten(AccountKey account, String currency, @Nullable BigDecimal balance) {
+        if (!(account instanceof AccountKey.Player player)) return;
+        final Session session = sessions.get(player.uuid());
+        if (session == null) return;
+        if (balance == null) session.balances.remove(currency);
+        else session.balances.put(currency, balance);
+    }
+
+    private void journal(AccountKey account, Currency currency, @Nullable EconomyTransaction transaction) {
+        if (transaction != null && storage.isJournaled())
+            cache.addJournalEntry(new TransactionJournal.Entry(account, currency, transaction));
+    }
+
+    /**
+     * Gets the newest transactions of an account in a time range. Changes that are only applied in memory
+     * show up once they got flushed.
+     *
+     * @param account          the account to look up
+     * @param transactionCount the maximum amount of transactions
+     * @param from             the start of the time range
+     * @param to               the end of the time range
+     * @param currencies       looks up a currency by its identifier
+     * @return a future that completes with the transactions, newest first, or an empty Optional if the journal is disabled
+     */
+    public CompletableFuture<Optional<Collection<EconomyTransaction>>> retrieveTransactionHistory(@NotNull final AccountKey account, final int transactionCount, @NotNull final Instant from, @NotNull final Instant to, @NotNull final Function<String, Optional<Currency>> currencies) {
+        if (!storage.isJournaled()) return CompletableFuture.completedFuture(Optional.empty());
+        return executor.supply(account, () -> storage.retrieveTransactionHistory(account, transactionCount, from, to, currencies));
+    }
+
+    /**
+     * Deletes all balances of an account, including the ones that are only cached
+     *
+     * @param account the account to delete
+     * @return a future that completes with whether the account got deleted
+     */
+    public CompletableFuture<Boolean> deleteAccount(@NotNull final AccountKey account) {
+        if (cache != null) cache.invalidate(account);
+        if (account instanceof AccountKey.Player player) {
+            if (leaderboard != null) leaderboard.remove(player.uuid());
+            final Session session = sessions.get(player.uuid());
+            if (session != null) session.balances.clear();
+        }
+        return executor.supply(account, () -> storage.deleteAccount(account));
+    }
+
+    /**
+     * @param account the account to look up
+     * @return a future that completes with the identifiers of all currencies the account has a balance in
+     */
+    public CompletableFuture<Collection<String>> retrieveHeldCurrencies(@NotNull final AccountKey account) {
+        return executor.supply(account, () -> {
+            final HashSet<String> result = new HashSet<>(storage.getCurrenciesOf(account));
+            if (cache != null) result.addAll(cache.getCachedCurrencies(account));
+            return result;
+        });
+    }
+
+    /**
+     * Writes all balances that are only changed in memory to the storage
+     */
+    public void flush() {
+        if (cache != null) cache.flush();
+    }
+
+    /**
+     * The balances of a player that is online, by the identifier of their currency
+     */
+    private static final class Session {
+        private final ConcurrentHashMap<String, BigDecimal> balances = new ConcurrentHashMap<>();
+        private volatile boolean loaded = false;
+    }
+}
@@ -0,0 +1,310 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.sqlite.SQLiteConnection;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a fixed amount of long-lived connections open, so that the connection setup and the pragmas only have to run once
+ * per connection. Every connection caches the statements that get prepared on it.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final long CLOSED_CHECK_INTERVAL_MS = 100;
+
+    private final DataSource dataSource;
+    private final int maxSize;
+    private final BlockingQueue<PooledConnection> idleConnections;
+    private final AtomicInteger openedConnections = new AtomicInteger();
+    private volatile boolean closed = false;
+    private volatile PrepareListener prepareListener = null;
+
+    private final LongAdder connectionHits = new LongAdder();
+    private final LongAdder connectionMisses = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    /**
+     * @param dataSource the DataSource new connections are opened from, all pragmas should already be set in it
+     * @param maxSize    the maximum amount of connections that are kept open at once
+     */
+    public ConnectionPool(@NotNull final DataSource dataSource, final int maxSize) {
+        this.dataSource = dataSource;
+        this.maxSize = Math.max(1, maxSize);
+        this.idleConnections = new ArrayBlockingQueue<>(this.maxSize);
+    }
+
+    /**
+     * Takes an idle connection out of the pool or opens a new one if the pool is not yet full.
+     * If all connections are in use this waits until one gets released or the pool gets closed.
+     * The connection has to be closed after use, which gives it back to the pool.
+     *
+     * @return a connection that only the current thread is using
+     * @throws SQLException gets thrown if the pool is closed or a new connection can't be opened
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (closed) throw new SQLException("The connection pool is closed");
+        PooledConnection connection = idleConnections.poll();
+        if (connection != null) {
+            connectionHits.increment();
+            return connection;
+        }
+        if (openedConnections.getAndIncrement() < maxSize) {
+            connectionMisses.increment();
+            try {
+                connection = new PooledConnection(dataSource.getConnection());
+            } catch (SQLException e) {
+                openedConnections.decrementAndGet();
+                throw e;
+            }
+            return connection;
+        }
+        openedConnections.decrementAndGet();
+        try {
+            // released connections get closed instead of coming back once the pool is closed, so check that in between
+            while ((connection = idleConnections.poll(CLOSED_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) == null) {
+                if (closed) throw new SQLException("The connection pool is closed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        if (closed) {
+            connection.closeQuietly();
+            throw new SQLException("The connection pool is closed");
+        }
+        connectionHits.increment();
+        return connection;
+    }
+
+    /**
+     * Like {@link #acquire()}, and records how long the connection is used, including the wait for it, once it is closed
+     *
+     * @param timer the histogram the latency is recorded in
+     * @param event a flight recorder event that already began, it gets the rows touched and the lock wait and is
+     *              committed once the connection is closed, or null
+     * @return a connection that only the current thread is using
+     * @throws SQLException gets thrown if the pool is closed or a new connection can't be opened
+     */
+    public PooledConnection acquire(@NotNull final LatencyHistogram timer, @Nullable final DatabaseOperationEvent event) throws SQLException {
+        final long start = System.nanoTime();
+        final PooledConnection connection = acquire();
+        connection.timer = timer;
+        connection.start = start;
+        if (event != null) {
+            event.lockWait = System.nanoTime() - start;
+            connection.event = event;
+            connection.changesBefore = connection.totalChanges();
+        }
+        return connection;
+    }
+
+    /**
+     * @param listener gets called after a statement got prepared on a connection for the first time, e.g. to check
+     *                 its query plan, or null
+     */
+    public void setPrepareListener(@Nullable final PrepareListener listener) {
+        this.prepareListener = listener;
+    }
+
+    private void release(@NotNull final PooledConnection connection) {
+        if (closed) {
+            connection.closeQuietly();
+            return;
+        }
+        idleConnections.offer(connection);
+        // the pool could have been closed right after the check, nobody would close the connection then
+        if (closed && idleConnections.remove(connection)) connection.closeQuietly();
+    }
+
+    /**
+     * Closes all connections, connections that are currently in use get closed once they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idleConnections.poll()) != null) connection.closeQuietly();
+    }
+
+    /**
+     * @return how often an already open connection could be reused
+     */
+    public long getConnectionHits() {
+        return connectionHits.sum();
+    }
+
+    /**
+     * @return how often a new connection had to be opened
+     */
+    public long getConnectionMisses() {
+        return connectionMisses.sum();
+    }
+
+    /**
+     * @return how often a statement was taken from a connection's statement cache
+     */
+    public long getStatementHits() {
+        return statementHits.sum();
+    }
+
+    /**
+     * @return how often a statement had to be prepared
+     */
+    public long getStatementMisses() {
+        return statementMisses.sum();
+    }
+
+    /**
+     * @return the amount of connections that are currently open
+     */
+    public int getOpenConnections() {
+        return openedConnections.get();
+    }
+
+    /**
+     * A connection that belongs to the pool, closing it gives it back to the pool instead of closing it.
+     * Statements returned by {@link #prepare(String)} are owned by the connection and must not be closed by the caller.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+        private boolean inTransaction = false;
+        private LatencyHistogram timer = null;
+        private long start;
+        private DatabaseOperationEvent event = null;
+        private long changesBefore;
+
+        private PooledConnection(@NotNull final Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return the flight recorder event of the current use of this connection, to add details to, or null if none is recorded
+         */
+        public @Nullable DatabaseOperationEvent event() {
+            return event;
+        }
+
+        /**
+         * @return how many rows were changed on this connection since it got opened, or 0 if it isn't a SQLite connection
+         */
+        private long totalChanges() {
+            try {
+                return connection instanceof SQLiteConnection sqlite ? sqlite.getDatabase().total_changes() : 0;
+            } catch (SQLException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Gets the cached statement for this sql or prepares it once if it isn't cached yet
+         *
+         * @param sql the sql of the statement, should not contain any values, those should be set as parameters
+         * @return the prepared statement, which must not be closed
+         * @throws SQLException gets thrown if the statement can't be prepared
+         */
+        public PreparedStatement prepare(@NotNull final String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement != null) {
+                statementHits.increment();
+                return statement;
+            }
+            statementMisses.increment();
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+            final PrepareListener listener = prepareListener;
+            if (listener != null) listener.prepared(connection, sql);
+            return statement;
+        }
+
+        /**
+         * Starts an immediate transaction, which takes the write lock right away
+         *
+         * @throws SQLException gets thrown if the lock can't be acquired
+         */
+        public void begin() throws SQLException {
+            final long start = event != null ? System.nanoTime() : 0;
+            prepare("begin immediate transaction;").execute();
+            inTransaction = true;
+            if (event != null) event.lockWait += System.nanoTime() - start;
+        }
+
+        /**
+         * Commits the transaction started with {@link #begin()}
+         *
+         * @throws SQLException gets thrown if the commit fails
+         */
+        public void commit() throws SQLException {
+            prepare("commit;").execute();
+            inTransaction = false;
+        }
+
+        /**
+         * Rolls back the transaction started with {@link #begin()} if there is one
+         */
+        public void rollback() {
+            if (!inTransaction) return;
+            try {
+                prepare("rollback;").execute();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            inTransaction = false;
+        }
+
+        /**
+         * @return the underlying connection, for statements that should not be cached
+         */
+        public Connection connection() {
+            return connection;
+        }
+
+        private void closeQuietly() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Gives this connection back to the pool, an unfinished transaction gets rolled back
+         */
+        @Override
+        public void close() {
+            rollback();
+            if (timer != null) {
+                timer.record(System.nanoTime() - start);
+                timer = null;
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.rows = totalChanges() - changesBefore;
+                    event.commit();
+                }
+                event = null;
+            }
+            release(this);
+        }
+    }
+
+    public interface PrepareListener {
+        /**
+         * @param connection the connection the statement got prepared on, it is used by the current thread
+         * @param sql        the sql of the statement
+         */
+        void prepared(@NotNull Connection connection, @NotNull String sql);
+    }
+}
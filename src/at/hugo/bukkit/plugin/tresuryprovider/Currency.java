@@ -1,5 +1,6 @@
 package at.hugo.bukkit.plugin.tresuryprovider;
 
+import me.lokka30.treasury.api.common.response.FailureReason;
 import me.lokka30.treasury.api.common.response.Response;
 import me.lokka30.treasury.api.economy.response.EconomyFailureReason;
 import org.jetbrains.annotations.NotNull;
@@ -7,8 +8,6 @@ import org.jetbrains.annotations.Nullable;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.util.Locale;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -23,8 +22,8 @@ public class Currency implements me.lokka30.treasury.api.economy.currency.Curren
     private final int precision;
     private boolean isPrimary;
 
-    private final DecimalFormat decimalFormat;
-    private final DecimalFormatSymbols decimalFormatSymbols;
+    private final CurrencyFormatter formatter;
+    private volatile ExchangeRates exchangeRates;
 
     public Currency(String identifier, String symbol, char decimalCharacter, Character groupingCharacter, String displaynameSingular, String displaynamePlural, int precision, boolean isPrimary) {
         this.identifier = identifier;
@@ -35,12 +34,7 @@ public class Currency implements me.lokka30.treasury.api.economy.currency.Curren
         this.displaynamePlural = displaynamePlural;
         this.precision = precision;
         this.isPrimary = isPrimary;
-        this.decimalFormatSymbols = new DecimalFormatSymbols();
-        decimalFormatSymbols.setCurrencySymbol(symbol);
-        decimalFormatSymbols.setDecimalSeparator(decimalCharacter);
-        if(groupingCharacter != null)
-            decimalFormatSymbols.setGroupingSeparator(groupingCharacter);
-        this.decimalFormat = new DecimalFormat((groupingCharacter == null ? "0.": "#,##0.")+"0".repeat(precision), decimalFormatSymbols);
+        this.formatter = new CurrencyFormatter(precision, decimalCharacter, groupingCharacter, symbol);
     }
 
 
@@ -59,6 +53,17 @@ public class Currency implements me.lokka30.treasury.api.economy.currency.Curren
         return decimalCharacter;
     }
 
+    public @Nullable Character getGrouping() {
+        return groupingCharacter;
+    }
+
+    /**
+     * @return the formatter for amounts of this currency, it can be used from any thread
+     */
+    public @NotNull CurrencyFormatter getFormatter() {
+        return formatter;
+    }
+
     @Override
     public @NotNull String getDisplayNameSingular() {
         return displaynameSingular;
@@ -82,6 +87,13 @@ public class Currency implements me.lokka30.treasury.api.economy.currency.Curren
         this.isPrimary = isPrimary;
     }
 
+    /**
+     * @param exchangeRates the rates {@link #to} converts with
+     */
+    public void setExchangeRates(@Nullable ExchangeRates exchangeRates) {
+        this.exchangeRates = exchangeRates;
+    }
+
     @Override
     public boolean supportsNegativeBalances() {
         return true;
@@ -89,16 +101,18 @@ public class Currency implements me.lokka30.treasury.api.economy.currency.Curren
 
     @Override
     public CompletableFuture<Response<BigDecimal>> to(me.lokka30.treasury.api.economy.currency.@NotNull Currency currency, @NotNull BigDecimal amount) {
-        return CompletableFuture.completedFuture(Response.success(amount));
+        if (currency.getIdentifier().equals(identifier)) return CompletableFuture.completedFuture(Response.success(amount));
+        final ExchangeRates rates = exchangeRates;
+        final BigDecimal converted = rates == null ? null : rates.convert(amount, this, currency);
+        if (converted == null)
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("No exchange rate from " + identifier + " to " + currency.getIdentifier())));
+        return CompletableFuture.completedFuture(Response.success(converted));
     }
 
     @Override
     public CompletableFuture<Response<BigDecimal>> parse(@NotNull String formatted) {
-        String unformatted = formatted;
-        if(groupingCharacter != null) unformatted = formatted.replace(String.valueOf(groupingCharacter), "");
-        unformatted = unformatted.replace(symbol, "").replace(decimalCharacter, '.');
         try{
-            return CompletableFuture.completedFuture(Response.success(new BigDecimal(unformatted).setScale(getPrecision(), RoundingMode.DOWN)));
+            return CompletableFuture.completedFuture(Response.success(formatter.parse(formatted)));
         } catch (NumberFormatException exception) {
             return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.NUMBER_PARSING_ERROR));
         }
@@ -111,15 +125,12 @@ public class Currency implements me.lokka30.treasury.api.economy.currency.Curren
 
     @Override
     public @NotNull String format(@NotNull BigDecimal amount, @Nullable Locale locale) {
-        return decimalFormat.format(amount);
+        return formatter.format(amount);
     }
 
     @Override
     public @NotNull String format(@NotNull BigDecimal amount, @Nullable Locale locale, int precision) {
         if(precision == getPrecision()) return format(amount, locale);
-        final DecimalFormat format;
-        if(precision <= 0) format = new DecimalFormat(groupingCharacter != null ? "#,##0" : "0", decimalFormatSymbols);
-        else format = new DecimalFormat(groupingCharacter != null ? "#,##0" : "0"+"0".repeat(precision), decimalFormatSymbols);
-        return format.format(amount.setScale(precision, RoundingMode.DOWN));
+        return formatter.format(amount, precision, RoundingMode.DOWN, new StringBuilder(24)).toString();
     }
 }
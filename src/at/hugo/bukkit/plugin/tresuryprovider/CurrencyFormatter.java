@@ -0,0 +1,200 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * Formats and parses amounts of a currency with its precision, decimal character and grouping character.
+ * <p>
+ * Instances are immutable and safe to use from any thread. Amounts with up to 18 digits are written digit by digit
+ * straight into the output, so formatting doesn't create anything beyond the output string and parsing nothing
+ * beyond the resulting {@link BigDecimal}. Larger amounts take a slower path through {@link BigInteger}.
+ */
+public final class CurrencyFormatter {
+    private static final int MAX_LONG_DIGITS = 18;
+    private static final long[] POWERS_OF_TEN = new long[MAX_LONG_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final int precision;
+    private final char decimalCharacter;
+    private final char groupingCharacter;
+    private final boolean grouping;
+    private final String symbol;
+
+    /**
+     * @param precision         the amount of decimal places
+     * @param decimalCharacter  the character between the whole and the decimal part
+     * @param groupingCharacter the character between groups of three digits, null to not group digits
+     * @param symbol            the currency symbol, ignored while parsing
+     */
+    public CurrencyFormatter(final int precision, final char decimalCharacter, @Nullable final Character groupingCharacter, @NotNull final String symbol) {
+        this.precision = Math.max(0, precision);
+        this.decimalCharacter = decimalCharacter;
+        this.grouping = groupingCharacter != null;
+        this.groupingCharacter = grouping ? groupingCharacter : 0;
+        this.symbol = symbol;
+    }
+
+    /**
+     * Formats an amount with the precision of the currency, rounding half even
+     */
+    public @NotNull String format(@NotNull final BigDecimal amount) {
+        return format(amount, precision, RoundingMode.HALF_EVEN, new StringBuilder(24)).toString();
+    }
+
+    /**
+     * Formats an amount with the precision of the currency, rounding half even
+     *
+     * @param out the builder the formatted amount is appended to
+     * @return the builder
+     */
+    public @NotNull StringBuilder format(@NotNull final BigDecimal amount, @NotNull final StringBuilder out) {
+        return format(amount, precision, RoundingMode.HALF_EVEN, out);
+    }
+
+    /**
+     * Formats an amount
+     *
+     * @param precision the amount of decimal places, less than 0 is treated as 0
+     * @param rounding  how to round decimal places that don't fit the precision
+     * @param out       the builder the formatted amount is appended to
+     * @return the builder
+     */
+    public @NotNull StringBuilder format(@NotNull final BigDecimal amount, int precision, @NotNull final RoundingMode rounding, @NotNull final StringBuilder out) {
+        precision = Math.max(0, precision);
+        final BigDecimal scaled = amount.scale() == precision ? amount : amount.setScale(precision, rounding);
+        if (scaled.precision() <= MAX_LONG_DIGITS) {
+            // BigDecimal keeps values this small as a long, unlike unscaledValue() moving the point only wraps that
+            // long in a BigDecimal without an array, which doesn't escape and gets optimized away
+            final long unscaled = scaled.movePointRight(precision).longValue();
+            if (unscaled < 0) out.append('-');
+            appendDigits(Math.abs(unscaled), precision, out);
+        } else {
+            final BigInteger unscaled = scaled.unscaledValue();
+            if (unscaled.signum() < 0) out.append('-');
+            appendDigits(unscaled.abs().toString(), precision, out);
+        }
+        return out;
+    }
+
+    private void appendDigits(final long digits, final int precision, final StringBuilder out) {
+        int length = 1;
+        while (length < MAX_LONG_DIGITS && digits >= POWERS_OF_TEN[length]) length++;
+        final int wholeDigits = Math.max(1, length - precision);
+        final int start = out.length();
+        int position = start + outputLength(wholeDigits, precision);
+        out.setLength(position);
+        // filled from the last digit backwards
+        long remaining = digits;
+        for (int i = 0; i < precision; i++) {
+            out.setCharAt(--position, (char) ('0' + remaining % 10));
+            remaining /= 10;
+        }
+        if (precision > 0) out.setCharAt(--position, decimalCharacter);
+        for (int i = 0; i < wholeDigits; i++) {
+            if (grouping && i > 0 && i % 3 == 0) out.setCharAt(--position, groupingCharacter);
+            out.setCharAt(--position, (char) ('0' + remaining % 10));
+            remaining /= 10;
+        }
+    }
+
+    private void appendDigits(String digits, final int precision, final StringBuilder out) {
+        if (digits.length() <= precision) digits = "0".repeat(precision - digits.length() + 1) + digits;
+        final int wholeDigits = digits.length() - precision;
+        for (int i = 0; i < wholeDigits; i++) {
+            if (grouping && i > 0 && (wholeDigits - i) % 3 == 0) out.append(groupingCharacter);
+            out.append(digits.charAt(i));
+        }
+        if (precision > 0) out.append(decimalCharacter).append(digits, wholeDigits, digits.length());
+    }
+
+    private int outputLength(final int wholeDigits, final int precision) {
+        return wholeDigits + (grouping ? (wholeDigits - 1) / 3 : 0) + (precision > 0 ? precision + 1 : 0);
+    }
+
+    /**
+     * Parses an amount with the precision of the currency, decimal places that don't fit are cut off.
+     * Grouping characters and the currency symbol are ignored wherever they are.
+     *
+     * @param text the formatted amount
+     * @return the amount
+     * @throws NumberFormatException if the text is not an amount
+     */
+    public @NotNull BigDecimal parse(@NotNull final CharSequence text) {
+        final int length = text.length();
+        long unscaled = 0;
+        int digits = 0;
+        int decimals = -1;
+        boolean negative = false;
+        boolean signAllowed = true;
+        for (int i = 0; i < length; i++) {
+            if (!symbol.isEmpty() && startsWith(text, i, symbol)) {
+                i += symbol.length() - 1;
+                continue;
+            }
+            final char c = text.charAt(i);
+            if (grouping && c == groupingCharacter) continue;
+            if (c == decimalCharacter) {
+                if (decimals >= 0) throw new NumberFormatException("More than one decimal character in " + text);
+                decimals = 0;
+            } else if (c >= '0' && c <= '9') {
+                signAllowed = false;
+                if (decimals >= 0 && decimals++ >= precision) continue;
+                // leading zeroes don't count towards the digits that fit into a long
+                if (unscaled == 0 && c == '0' && decimals < 0) {
+                    digits = Math.max(digits, 1);
+                    continue;
+                }
+                if (++digits > MAX_LONG_DIGITS) return parseLarge(text);
+                unscaled = unscaled * 10 + (c - '0');
+            } else if ((c == '-' || c == '+') && signAllowed && decimals < 0) {
+                negative = c == '-';
+                signAllowed = false;
+            } else {
+                throw new NumberFormatException("Unexpected character '" + c + "' in " + text);
+            }
+        }
+        if (digits == 0 && decimals <= 0) throw new NumberFormatException("No digits in " + text);
+        final int scale = Math.max(0, decimals);
+        if (digits + precision - scale > MAX_LONG_DIGITS) return parseLarge(text);
+        for (int i = scale; i < precision; i++) unscaled *= 10;
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, precision);
+    }
+
+    private BigDecimal parseLarge(final CharSequence text) {
+        final StringBuilder plain = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (!symbol.isEmpty() && startsWith(text, i, symbol)) {
+                i += symbol.length() - 1;
+                continue;
+            }
+            final char c = text.charAt(i);
+            if (grouping && c == groupingCharacter) continue;
+            plain.append(c == decimalCharacter ? '.' : c);
+        }
+        return new BigDecimal(plain.toString()).setScale(precision, RoundingMode.DOWN);
+    }
+
+    private static boolean startsWith(final CharSequence text, final int offset, final String prefix) {
+        if (offset + prefix.length() > text.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(offset + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the amount of decimal places
+     */
+    public int getPrecision() {
+        return precision;
+    }
+}
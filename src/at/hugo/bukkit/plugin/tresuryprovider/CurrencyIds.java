@@ -0,0 +1,48 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the identifiers of currencies to the numeric ids they have in the database and back
+ */
+public class CurrencyIds {
+    private final ConcurrentHashMap<String, Integer> idsByIdentifier = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, String> identifiersById = new ConcurrentHashMap<>();
+
+    /**
+     * @param identifier the identifier of the currency
+     * @param id         the numeric id of the currency in the database
+     */
+    public synchronized void put(@NotNull final String identifier, final int id) {
+        final Integer previousId = idsByIdentifier.put(identifier, id);
+        if (previousId != null) identifiersById.remove(previousId);
+        identifiersById.put(id, identifier);
+    }
+
+    /**
+     * @param identifier the identifier of the currency that got deleted
+     */
+    public synchronized void remove(@NotNull final String identifier) {
+        final Integer id = idsByIdentifier.remove(identifier);
+        if (id != null) identifiersById.remove(id);
+    }
+
+    /**
+     * @param identifier the identifier of the currency
+     * @return the numeric id or null if the currency is not known
+     */
+    public @Nullable Integer getId(@NotNull final String identifier) {
+        return idsByIdentifier.get(identifier);
+    }
+
+    /**
+     * @param id the numeric id of the currency
+     * @return the identifier or null if the currency is not known
+     */
+    public @Nullable String getIdentifier(final int id) {
+        return identifiersById.get(id);
+    }
+}
@@ -0,0 +1,116 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * The registered currencies. Reads go to an immutable snapshot without locking or allocating, changes are
+ * serialized, copy the snapshot and publish the new one in a single write, so a reader sees all or none of a change.
+ */
+public class CurrencyRegistry {
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param currencies the currencies to start with
+     */
+    public CurrencyRegistry(@NotNull final Map<String, ? extends Currency> currencies) {
+        snapshot = Snapshot.of(currencies);
+    }
+
+    /**
+     * @param identifier the identifier of the currency
+     * @return the currency or an empty Optional if no currency has that identifier
+     */
+    public Optional<Currency> find(@NotNull final String identifier) {
+        return snapshot.found().getOrDefault(identifier, Optional.empty());
+    }
+
+    /**
+     * @param identifier the identifier of the currency
+     * @return whether a currency with that identifier is registered
+     */
+    public boolean contains(@NotNull final String identifier) {
+        return snapshot.found().containsKey(identifier);
+    }
+
+    /**
+     * @return the primary currency, or null if none is registered
+     */
+    public @Nullable Currency getPrimary() {
+        return snapshot.primary();
+    }
+
+    /**
+     * @return all currencies, the set can't be changed
+     */
+    public Set<Currency> getAll() {
+        return snapshot.currencies();
+    }
+
+    /**
+     * @return the identifiers of all currencies, the list can't be changed
+     */
+    public List<String> getIdentifiers() {
+        return snapshot.identifiers();
+    }
+
+    /**
+     * @return whether no currency is registered
+     */
+    public boolean isEmpty() {
+        return snapshot.currencies().isEmpty();
+    }
+
+    /**
+     * Adds a currency. If it is primary, the previous primary currency is published as not primary anymore after
+     * the new snapshot is, so there is always a primary currency to be found.
+     *
+     * @param currency the currency to add
+     * @return whether the currency got added, false if one with the same identifier is already registered
+     */
+    public synchronized boolean register(@NotNull final Currency currency) {
+        final Snapshot previous = snapshot;
+        if (previous.found().containsKey(currency.getIdentifier())) return false;
+        final HashMap<String, Currency> currencies = previous.copy();
+        currencies.put(currency.getIdentifier(), currency);
+        snapshot = Snapshot.of(currencies, currency.isPrimary() ? currency : previous.primary());
+        if (currency.isPrimary() && previous.primary() instanceof at.hugo.bukkit.plugin.tresuryprovider.Currency demoted)
+            demoted.setPrimary(false);
+        return true;
+    }
+
+    /**
+     * @param identifier the identifier of the currency to remove
+     * @return the removed currency, or null if no currency had that identifier
+     */
+    public synchronized @Nullable Currency unregister(@NotNull final String identifier) {
+        final HashMap<String, Currency> currencies = snapshot.copy();
+        final Currency removed = currencies.remove(identifier);
+        if (removed != null) snapshot = Snapshot.of(currencies);
+        return removed;
+    }
+
+    /**
+     * The registered currencies at one point in time, every collection in it is immutable
+     */
+    private record Snapshot(Map<String, Optional<Currency>> found, Set<Currency> currencies, List<String> identifiers, @Nullable Currency primary) {
+        private static Snapshot of(Map<String, ? extends Currency> currencies) {
+            return of(currencies, currencies.values().stream().filter(Currency::isPrimary).findFirst().orElse(null));
+        }
+
+        private static Snapshot of(Map<String, ? extends Currency> currencies, @Nullable Currency primary) {
+            final HashMap<String, Optional<Currency>> found = new HashMap<>();
+            currencies.forEach((identifier, currency) -> found.put(identifier, Optional.of(currency)));
+            return new Snapshot(Map.copyOf(found), Set.copyOf(currencies.values()), List.copyOf(currencies.keySet()), primary);
+        }
+
+        private HashMap<String, Currency> copy() {
+            final HashMap<String, Currency> result = new HashMap<>();
+            found.forEach((identifier, currency) -> result.put(identifier, currency.get()));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import jdk.jfr.*;
+
+/**
+ * A Java Flight Recorder event for one use of a pooled SQLite connection, from waiting for the connection until it is
+ * given back. Only gets filled in while a recording has it enabled, see economy.jfc.
+ */
+@Name("at.hugo.tresuryprovider.DatabaseOperation")
+@Label("Economy Database Operation")
+@Category({"Economy", "Database"})
+@Description("A SQLite operation of the economy, including the wait for a connection and the write lock")
+public class DatabaseOperationEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Account")
+    @Description("The uuid of the player or the identifier of the account, empty for batches and operations on many accounts")
+    public String account;
+
+    @Label("Currency")
+    public String currency;
+
+    @Label("Transaction Type")
+    public String transactionType;
+
+    @Label("Batch Size")
+    @Description("How many writes got committed together")
+    public int batchSize;
+
+    @Label("Rows Touched")
+    @Description("How many rows got inserted, updated or deleted")
+    public long rows;
+
+    @Label("Lock Wait")
+    @Description("How long the operation waited for a pooled connection and for the write lock")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lockWait;
+}
@@ -6,6 +6,10 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
 import java.util.UUID;
 
 /**
@@ -58,4 +62,55 @@ public class DatabaseUtils {
         return new BigDecimal(new BigInteger(bytes), precision);
     }
 
+    /**
+     * Binds a balance to two parameters, the scaled amount as an INTEGER if it fits into 64 bits and
+     * the bytes of the scaled amount as an overflow BLOB otherwise. The other parameter gets bound to NULL.
+     *
+     * @param statement  the statement to bind the balance to
+     * @param index      the index of the INTEGER parameter, the overflow BLOB parameter comes right after it
+     * @param bigDecimal the balance to bind
+     * @param precision  the precision of the balance's currency
+     * @throws SQLException gets thrown if a parameter can't be bound
+     */
+    public static void setBalance(@NotNull final PreparedStatement statement, final int index, @NotNull final BigDecimal bigDecimal, final int precision) throws SQLException {
+        final BigInteger scaled = bigDecimal.setScale(precision, RoundingMode.DOWN).unscaledValue();
+        if (scaled.bitLength() < Long.SIZE) {
+            statement.setLong(index, scaled.longValue());
+            statement.setNull(index + 1, Types.BLOB);
+        } else {
+            statement.setNull(index, Types.INTEGER);
+            statement.setBytes(index + 1, scaled.toByteArray());
+        }
+    }
+
+    /**
+     * Reads a balance from the {@code balance_int} and {@code balance_overflow} columns of the current row
+     *
+     * @param resultSet the result set positioned on the row to read
+     * @param precision the precision of the balance's currency
+     * @return the balance, zero if neither column is set
+     * @throws SQLException gets thrown if the columns can't be read
+     */
+    public static BigDecimal getBalance(@NotNull final ResultSet resultSet, final int precision) throws SQLException {
+        return getBalance(resultSet, "balance_int", "balance_overflow", precision);
+    }
+
+    /**
+     * Reads an amount that is stored like a balance, see {@link #setBalance(PreparedStatement, int, BigDecimal, int)}
+     *
+     * @param resultSet      the result set positioned on the row to read
+     * @param intColumn      the name of the INTEGER column
+     * @param overflowColumn the name of the overflow BLOB column
+     * @param precision      the precision of the amount's currency
+     * @return the amount, zero if neither column is set
+     * @throws SQLException gets thrown if the columns can't be read
+     */
+    public static BigDecimal getBalance(@NotNull final ResultSet resultSet, @NotNull final String intColumn, @NotNull final String overflowColumn, final int precision) throws SQLException {
+        final long scaled = resultSet.getLong(intColumn);
+        if (!resultSet.wasNull()) return BigDecimal.valueOf(scaled, precision);
+        final byte[] overflow = resultSet.getBytes(overflowColumn);
+        if (overflow == null) return BigDecimal.valueOf(0, precision);
+        return convertBytesToBigDecimal(overflow, precision);
+    }
+
 }
@@ -0,0 +1,115 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import jdk.jfr.*;
+import me.lokka30.treasury.api.common.response.Response;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A Java Flight Recorder event for a call into the economy through the Treasury API, from the call until its future
+ * completes. The event is committed on the thread that completes the future, so the thread that made the call and who
+ * initiated the transaction are recorded as fields. Only gets filled in while a recording has it enabled, see economy.jfc.
+ */
+@Name("at.hugo.tresuryprovider.EconomyCall")
+@Label("Economy Call")
+@Category({"Economy", "Treasury API"})
+@Description("A call into the economy through the Treasury API until its result is ready")
+@StackTrace(false)
+public class EconomyCallEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Account")
+    @Description("The uuid of the player or the identifier of the account")
+    public String account;
+
+    @Label("Currency")
+    public String currency;
+
+    @Label("Transaction Type")
+    public String transactionType;
+
+    @Label("Amount")
+    public String amount;
+
+    @Label("Initiator Type")
+    public String initiatorType;
+
+    @Label("Initiator")
+    @Description("The player or plugin that initiated the transaction")
+    public String initiator;
+
+    @Label("Reason")
+    public String reason;
+
+    @Label("Calling Thread")
+    @Description("The thread that called into the economy, e.g. the server thread")
+    public String callingThread;
+
+    @Label("Successful")
+    public boolean successful;
+
+    /**
+     * Starts an event if a recording has it enabled
+     *
+     * @param operation the name of the Treasury API method
+     * @param account   the account of the call
+     * @param currency  the identifier of the currency, or null
+     * @return the started event, or null if it isn't enabled
+     */
+    public static @Nullable EconomyCallEvent start(@NotNull final String operation, @NotNull final AccountKey account, @Nullable final String currency) {
+        final EconomyCallEvent event = new EconomyCallEvent();
+        if (!event.isEnabled()) return null;
+        event.operation = operation;
+        event.account = account.toString();
+        event.currency = currency;
+        event.callingThread = Thread.currentThread().getName();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts an event for a transaction if a recording has it enabled
+     *
+     * @return the started event, or null if it isn't enabled
+     */
+    public static @Nullable EconomyCallEvent startTransaction(@NotNull final String operation, @NotNull final AccountKey account, @NotNull final EconomyTransaction transaction) {
+        final EconomyCallEvent event = start(operation, account, transaction.getCurrencyID());
+        if (event == null) return null;
+        event.transactionType = transaction.getTransactionType().name();
+        event.amount = transaction.getTransactionAmount().toPlainString();
+        event.initiate(transaction.getInitiator(), transaction.getReason().orElse(null));
+        return event;
+    }
+
+    /**
+     * @param source who started the call
+     * @param reason the reason given for the call, or null
+     */
+    public void initiate(@NotNull final EconomyTransactionInitiator<?> source, @Nullable final String reason) {
+        initiatorType = source.getType().name();
+        initiator = source.getData() != null ? String.valueOf(source.getData()) : null;
+        this.reason = reason;
+    }
+
+    /**
+     * Commits the event once the future completes
+     *
+     * @param event  the event from {@link #start}, or null if none got started
+     * @param future the future of the call
+     * @return the future of the call
+     */
+    public static <T> CompletableFuture<T> track(@Nullable final EconomyCallEvent event, @NotNull final CompletableFuture<T> future) {
+        if (event == null) return future;
+        return future.whenComplete((result, throwable) -> {
+            event.end();
+            if (!event.shouldCommit()) return;
+            event.successful = throwable == null && (!(result instanceof Response<?> response) || response.isSuccessful());
+            event.commit();
+        });
+    }
+}
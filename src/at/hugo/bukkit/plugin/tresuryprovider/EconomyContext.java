@@ -0,0 +1,21 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import java.util.logging.Logger;
+
+/**
+ * What the economy needs from the plugin. The plugin implements it on a server, tools like the load test implement it
+ * without one.
+ */
+public interface EconomyContext {
+    StorageEngine getStorage();
+
+    EconomyExecutor getExecutor();
+
+    BalanceManager getBalanceManager();
+
+    EconomyProvider getEconomy();
+
+    Metrics getMetrics();
+
+    Logger getLogger();
+}
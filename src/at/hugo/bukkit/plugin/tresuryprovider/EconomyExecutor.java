@@ -0,0 +1,165 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking work of the economy on its own threads instead of the common pool, which other plugins use too.
+ * Work on an account goes into one of many stripes, a stripe runs its work one after another in the order it got
+ * submitted, so operations on the same account never overtake each other. Different stripes run in parallel
+ * on the shared threads.
+ */
+public class EconomyExecutor implements Executor, AutoCloseable {
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final ThreadPoolExecutor pool;
+    private final Stripe[] stripes;
+
+    /**
+     * @param threads how many threads run economy work
+     * @param stripes how many stripes accounts are spread over, gets rounded up to a power of two
+     */
+    public EconomyExecutor(final int threads, final int stripes) {
+        final AtomicInteger counter = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "SimpleTreasuryEconomy-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.stripes = new Stripe[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < this.stripes.length; i++) this.stripes[i] = new Stripe();
+    }
+
+    /**
+     * Runs work that doesn't belong to a single account, it can run in parallel with everything else
+     */
+    @Override
+    public void execute(@NotNull final Runnable command) {
+        pool.execute(command);
+    }
+
+    /**
+     * Supplies a value on the economy threads, without any ordering
+     */
+    public <T> CompletableFuture<T> supply(@NotNull final Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, pool);
+    }
+
+    /**
+     * Supplies a value after all work that was submitted for the account before has finished
+     *
+     * @param account  the account the work belongs to
+     * @param supplier the work
+     * @return a future that completes with the supplied value
+     */
+    public <T> CompletableFuture<T> supply(@NotNull final AccountKey account, @NotNull final Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, stripe(account));
+    }
+
+    /**
+     * Runs work after all work that was submitted for the account before has finished
+     *
+     * @param account  the account the work belongs to
+     * @param runnable the work
+     * @return a future that completes once the work ran
+     */
+    public CompletableFuture<Void> run(@NotNull final AccountKey account, @NotNull final Runnable runnable) {
+        return CompletableFuture.runAsync(runnable, stripe(account));
+    }
+
+    private Stripe stripe(AccountKey account) {
+        final int hash = account.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * @return how much work is waiting for a thread
+     */
+    public int getQueuedTasks() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Stops taking work and waits up to ten seconds for submitted work to finish, including the work queued in the
+     * stripes. Work that didn't start by then is dropped.
+     *
+     * @return how much submitted work got dropped
+     */
+    public int shutdown() {
+        pool.shutdown();
+        try {
+            if (pool.awaitTermination(10, TimeUnit.SECONDS)) return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int dropped = 0;
+        for (Runnable runnable : pool.shutdownNow()) {
+            // a stripe that didn't get to run is counted by the work still in it
+            if (!(runnable instanceof Stripe)) dropped++;
+        }
+        for (Stripe stripe : stripes) {
+            Runnable task;
+            while ((task = stripe.tasks.poll()) != null) dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Like {@link #shutdown()}
+     */
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    /**
+     * Runs its work one after another on the shared threads. A stripe only takes a thread while it has work and
+     * gives it back after a few tasks, so a busy stripe can't keep other stripes from running.
+     */
+    private final class Stripe implements Executor, Runnable {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        @Override
+        public void execute(@NotNull Runnable command) {
+            tasks.add(command);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the executor got closed, the remaining work runs right here so no future is left hanging
+                    runTasks();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            runTasks();
+        }
+
+        private void runTasks() {
+            try {
+                Runnable task;
+                for (int i = 0; i < MAX_TASKS_PER_RUN && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+    }
+}
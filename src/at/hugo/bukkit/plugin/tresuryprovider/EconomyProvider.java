@@ -1,24 +1,38 @@
 package at.hugo.bukkit.plugin.tresuryprovider;
 
 import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.common.response.FailureReason;
 import me.lokka30.treasury.api.common.response.Response;
+import me.lokka30.treasury.api.economy.account.Account;
 import me.lokka30.treasury.api.economy.account.AccountData;
 import me.lokka30.treasury.api.economy.account.AccountPermission;
 import me.lokka30.treasury.api.economy.account.accessor.AccountAccessor;
 import me.lokka30.treasury.api.economy.currency.Currency;
 import me.lokka30.treasury.api.economy.response.EconomyFailureReason;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
 public class EconomyProvider implements me.lokka30.treasury.api.economy.EconomyProvider, AccountAccessor {
-    private final SimpleTreasuryEconomyPlugin plugin;
-    private final HashMap<String, Currency> currencies;
+    private final EconomyContext plugin;
+    private final CurrencyRegistry currencies;
 
-    public EconomyProvider(SimpleTreasuryEconomyPlugin plugin, HashMap<String, Currency> currencies) {
+    public EconomyProvider(EconomyContext plugin, HashMap<String, Currency> currencies) {
         this.plugin = plugin;
-        this.currencies = currencies;
+        currencies.values().forEach(this::useExchangeRates);
+        this.currencies = new CurrencyRegistry(currencies);
+    }
+
+    private void useExchangeRates(Currency currency) {
+        if (currency instanceof at.hugo.bukkit.plugin.tresuryprovider.Currency ownCurrency)
+            ownCurrency.setExchangeRates(plugin.getStorage().getExchangeRates());
     }
 
     @Override
@@ -33,42 +47,60 @@ public class EconomyProvider implements me.lokka30.treasury.api.economy.EconomyP
 
     @Override
     public CompletableFuture<Response<Collection<UUID>>> retrievePlayerAccountIds() {
-        return CompletableFuture.supplyAsync(() -> Response.success(plugin.getDatabase().getPlayerIds()));
+        return plugin.getMetrics().time("api.retrievePlayerAccountIds", () -> plugin.getExecutor().supply(() -> Response.success(plugin.getStorage().getPlayerIds())));
     }
 
     @Override
     public CompletableFuture<Response<Collection<String>>> retrieveAccountIds() {
-        return CompletableFuture.supplyAsync(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE));
+        return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.OTHER_FAILURE));
     }
 
     @Override
     public CompletableFuture<Response<Collection<String>>> retrieveNonPlayerAccountIds() {
-        return CompletableFuture.supplyAsync(() -> Response.success(plugin.getDatabase().getAccountIds()));
+        return plugin.getMetrics().time("api.retrieveNonPlayerAccountIds", () -> plugin.getExecutor().supply(() -> Response.success(plugin.getStorage().getAccountIds())));
     }
 
+    /**
+     * Looks the accounts up in the reverse index of the permissions, without going through every account
+     */
     @Override
     public CompletableFuture<Collection<String>> retrieveAllAccountsPlayerIsMemberOf(@NotNull UUID playerId) {
-        return me.lokka30.treasury.api.economy.EconomyProvider.super.retrieveAllAccountsPlayerIsMemberOf(playerId);
+        return plugin.getMetrics().time("api.retrieveAllAccountsPlayerIsMemberOf", () -> CompletableFuture.completedFuture(plugin.getStorage().getAccountsOf(playerId)));
     }
 
+    /**
+     * Looks the accounts up in the reverse index of the permissions, without going through every account
+     */
     @Override
     public CompletableFuture<Collection<String>> retrieveAllAccountsPlayerHasPermission(@NotNull UUID playerId, @NotNull AccountPermission @NotNull ... permissions) {
-        return me.lokka30.treasury.api.economy.EconomyProvider.super.retrieveAllAccountsPlayerHasPermission(playerId, permissions);
+        return plugin.getMetrics().time("api.retrieveAllAccountsPlayerHasPermission", () -> CompletableFuture.completedFuture(plugin.getStorage().getAccountsOf(playerId, permissions)));
     }
 
     @Override
     public @NotNull Currency getPrimaryCurrency() {
-        return currencies.values().stream().filter(Currency::isPrimary).findFirst().get();
+        final Currency primary = currencies.getPrimary();
+        if (primary == null) throw new NoSuchElementException("There is no primary currency");
+        return primary;
     }
 
     @Override
     public Optional<Currency> findCurrency(@NotNull String identifier) {
-        return Optional.ofNullable(currencies.get(identifier));
+        return currencies.find(identifier);
     }
 
+    /**
+     * @return all currencies, the set can't be changed
+     */
     @Override
     public Set<Currency> getCurrencies() {
-        return new HashSet<>(currencies.values());
+        return currencies.getAll();
+    }
+
+    /**
+     * @return the identifiers of all currencies, the list can't be changed
+     */
+    public List<String> getCurrencyIdentifiers() {
+        return currencies.getIdentifiers();
     }
 
     @Override
@@ -81,9 +113,12 @@ public class EconomyProvider implements me.lokka30.treasury.api.economy.EconomyP
     }
 
     public CompletableFuture<Response<TriState>> unregisterCurrency(@NotNull String currency) {
-        currencies.remove(currency);
-        return CompletableFuture.supplyAsync(() -> {
-            plugin.getDatabase().deleteCurrency(currency);
+        currencies.unregister(currency);
+        final Leaderboard leaderboard = plugin.getBalanceManager().getLeaderboard();
+        if (leaderboard != null) leaderboard.removeCurrency(currency);
+        plugin.getBalanceManager().removeCurrency(currency);
+        return plugin.getExecutor().supply(() -> {
+            plugin.getStorage().deleteCurrency(currency);
             return Response.success(TriState.TRUE);
         });
     }
@@ -94,19 +129,22 @@ public class EconomyProvider implements me.lokka30.treasury.api.economy.EconomyP
         if (!(generalCurrency instanceof at.hugo.bukkit.plugin.tresuryprovider.Currency))
             currency = new at.hugo.bukkit.plugin.tresuryprovider.Currency(generalCurrency.getIdentifier(), generalCurrency.getSymbol(), generalCurrency.getDecimal(), null, generalCurrency.getDisplayNameSingular(), generalCurrency.getDisplayNamePlural(), generalCurrency.getPrecision(), generalCurrency.isPrimary());
         else currency = generalCurrency;
-        if (currencies.containsKey(currency.getIdentifier()))
+        if (currencies.contains(currency.getIdentifier()))
             return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.CURRENCY_ALREADY_REGISTERED));
 
-        return CompletableFuture.supplyAsync(() -> {
-            if (plugin.getDatabase().createCurrency(currency.getIdentifier(), currency.getDisplayNameSingular(), currency.getDisplayNamePlural(), currency.getSymbol(), currency.getDecimal(), null, currency.getPrecision(), currency.isPrimary())) {
-                if (currency.isPrimary() && !currencies.isEmpty()) {
-                    if (getPrimaryCurrency().getIdentifier().equals("temporaryCurrencyWillDeleteItselfOnceANewOneIsCreated")) {
-                        unregisterCurrency("temporaryCurrencyWillDeleteItselfOnceANewOneIsCreated").join();
-                    }
-                    currencies.values().stream().filter(Currency::isPrimary).map(at.hugo.bukkit.plugin.tresuryprovider.Currency.class::cast).forEach(currency1 -> currency1.setPrimary(false));
+        return plugin.getExecutor().supply(() -> {
+            if (plugin.getStorage().createCurrency(currency.getIdentifier(), currency.getDisplayNameSingular(), currency.getDisplayNamePlural(), currency.getSymbol(), currency.getDecimal(), null, currency.getPrecision(), currency.isPrimary())) {
+                final Currency primary = currencies.getPrimary();
+                if (currency.isPrimary() && primary != null && primary.getIdentifier().equals("temporaryCurrencyWillDeleteItselfOnceANewOneIsCreated")) {
+                    // already on an economy thread, waiting for another task here could wait for itself
+                    currencies.unregister("temporaryCurrencyWillDeleteItselfOnceANewOneIsCreated");
+                    plugin.getStorage().deleteCurrency("temporaryCurrencyWillDeleteItselfOnceANewOneIsCreated");
                 }
-                currencies.put(currency.getIdentifier(), currency);
-                currencies.values().forEach(currency1 -> plugin.getLogger().info(currency1.getIdentifier()+": "+currency1.isPrimary()));
+                useExchangeRates(currency);
+                // the registry makes the previous primary currency not primary anymore
+                if (!currencies.register(currency))
+                    return Response.failure(EconomyFailureReason.CURRENCY_ALREADY_REGISTERED);
+                currencies.getAll().forEach(currency1 -> plugin.getLogger().info(currency1.getIdentifier()+": "+currency1.isPrimary()));
                 return Response.success(TriState.TRUE);
             } else {
                 return Response.success(TriState.FALSE);
@@ -114,6 +152,178 @@ public class EconomyProvider implements me.lokka30.treasury.api.economy.EconomyP
         });
     }
 
+    /**
+     * Moves an amount from one account to another in a single write, so it is never withdrawn without being deposited.
+     * Both accounts get a transaction in their history.
+     *
+     * @param from         the paying account
+     * @param to           the receiving account
+     * @param currency     the currency of both balances
+     * @param amount       the amount to move, has to be positive, gets cut down to the precision of the currency
+     * @param requireFunds whether the transfer should fail if the paying account has less than the amount
+     * @param initiator    who started the transfer
+     * @param reason       the reason of the transfer, or null
+     * @return a future that completes with both balances after the transfer
+     */
+    public CompletableFuture<Response<TransferResult>> transfer(@NotNull Account from, @NotNull Account to, @NotNull Currency currency, @NotNull BigDecimal amount, boolean requireFunds, @NotNull EconomyTransactionInitiator<?> initiator, @Nullable String reason) {
+        if (amount.signum() <= 0)
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.NEGATIVE_AMOUNT_SPECIFIED));
+        if (!currencies.contains(currency.getIdentifier()))
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.CURRENCY_NOT_FOUND));
+        final BigDecimal scaled = scale(amount, currency);
+        if (scaled.signum() <= 0)
+            return CompletableFuture.completedFuture(Response.failure(tooSmall(currency)));
+        final AccountKey fromKey = AccountKey.of(from);
+        final AccountKey toKey = AccountKey.of(to);
+        if (fromKey.equals(toKey))
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("Can't transfer to the same account")));
+        final EconomyCallEvent event = EconomyCallEvent.start("transfer", fromKey, currency.getIdentifier());
+        if (event != null) {
+            event.amount = scaled.toPlainString();
+            event.initiate(initiator, reason);
+        }
+        return EconomyCallEvent.track(event, plugin.getMetrics().time("api.transfer", () -> plugin.getBalanceManager().transfer(fromKey, toKey, currency, scaled, requireFunds,
+                transaction(currency, EconomyTransactionType.WITHDRAWAL, scaled, initiator, reason),
+                transaction(currency, EconomyTransactionType.DEPOSIT, scaled, initiator, reason)
+        ).thenApply(result -> switch (result.status()) {
+            case SUCCESS -> Response.success(result);
+            case INSUFFICIENT_FUNDS -> Response.failure(FailureReason.of("Insufficient funds"));
+            case FAILED -> Response.failure(EconomyFailureReason.OTHER_FAILURE);
+        })));
+    }
+
+    /**
+     * Converts an amount with the current exchange rate and exchanges it on one account in a single write, so it is
+     * never withdrawn without being deposited. The account gets a withdrawal and a deposit in its history.
+     *
+     * @param account      the account that exchanges
+     * @param from         the currency that gets withdrawn
+     * @param to           the currency that gets deposited
+     * @param amount       the amount in {@code from} to exchange, has to be positive, gets cut down to the precision of {@code from}
+     * @param requireFunds whether the exchange should fail if the account has less than the amount
+     * @param initiator    who started the exchange
+     * @param reason       the reason of the exchange, or null
+     * @return a future that completes with the balance in {@code from} as the paying and the one in {@code to} as the receiving balance
+     */
+    public CompletableFuture<Response<TransferResult>> exchange(@NotNull Account account, @NotNull Currency from, @NotNull Currency to, @NotNull BigDecimal amount, boolean requireFunds, @NotNull EconomyTransactionInitiator<?> initiator, @Nullable String reason) {
+        if (amount.signum() <= 0)
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.NEGATIVE_AMOUNT_SPECIFIED));
+        if (!currencies.contains(from.getIdentifier()) || !currencies.contains(to.getIdentifier()))
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.CURRENCY_NOT_FOUND));
+        if (from.getIdentifier().equals(to.getIdentifier()))
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("Can't exchange into the same currency")));
+        final BigDecimal scaled = scale(amount, from);
+        if (scaled.signum() <= 0)
+            return CompletableFuture.completedFuture(Response.failure(tooSmall(from)));
+        final BigDecimal rated = plugin.getStorage().getExchangeRates().convert(scaled, from, to);
+        if (rated == null)
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("No exchange rate from " + from.getIdentifier() + " to " + to.getIdentifier())));
+        final BigDecimal converted = scale(rated, to);
+        if (converted.signum() <= 0)
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("The amount is worth nothing in " + to.getIdentifier())));
+        final AccountKey key = AccountKey.of(account);
+        final EconomyCallEvent event = EconomyCallEvent.start("exchange", key, from.getIdentifier());
+        if (event != null) {
+            event.amount = scaled.toPlainString();
+            event.initiate(initiator, reason);
+        }
+        return EconomyCallEvent.track(event, plugin.getMetrics().time("api.exchange", () -> plugin.getBalanceManager().exchange(key, from, scaled, to, converted, requireFunds,
+                transaction(from, EconomyTransactionType.WITHDRAWAL, scaled, initiator, reason),
+                transaction(to, EconomyTransactionType.DEPOSIT, converted, initiator, reason)
+        ).thenApply(result -> switch (result.status()) {
+            case SUCCESS -> Response.success(result);
+            case INSUFFICIENT_FUNDS -> Response.failure(FailureReason.of("Insufficient funds"));
+            case FAILED -> Response.failure(EconomyFailureReason.OTHER_FAILURE);
+        })));
+    }
+
+    /**
+     * @param from the identifier of the currency to convert from
+     * @param to   the identifier of the currency to convert to
+     * @param rate how much of {@code to} one of {@code from} is worth, null to remove the rate
+     * @return a future that completes with whether the rate got changed
+     */
+    public CompletableFuture<Response<TriState>> setExchangeRate(@NotNull String from, @NotNull String to, @Nullable BigDecimal rate) {
+        if (!currencies.contains(from) || !currencies.contains(to))
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.CURRENCY_NOT_FOUND));
+        if (from.equals(to) || (rate != null && rate.signum() <= 0))
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("The rate has to be positive and between two different currencies")));
+        return plugin.getExecutor().supply(() -> Response.success(plugin.getStorage().setExchangeRate(from, to, rate) ? TriState.TRUE : TriState.FALSE));
+    }
+
+    /**
+     * Pays the same amount to or charges it from many accounts, see {@link #changeBalances(Map, Currency, boolean, EconomyTransactionInitiator, String)}
+     *
+     * @param amount the amount to pay or charge, has to be positive
+     * @param charge whether the amount gets withdrawn, accounts that have less than the amount are skipped
+     */
+    public CompletableFuture<Response<Map<AccountKey, Optional<BigDecimal>>>> changeBalances(@NotNull Collection<AccountKey> accounts, @NotNull Currency currency, @NotNull BigDecimal amount, boolean charge, @NotNull EconomyTransactionInitiator<?> initiator, @Nullable String reason) {
+        if (amount.signum() <= 0)
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.NEGATIVE_AMOUNT_SPECIFIED));
+        final BigDecimal change = charge ? amount.negate() : amount;
+        final LinkedHashMap<AccountKey, BigDecimal> amounts = new LinkedHashMap<>();
+        for (AccountKey account : accounts) amounts.put(account, change);
+        return changeBalances(amounts, currency, charge, initiator, reason);
+    }
+
+    /**
+     * Adds amounts to the balances of many accounts at once, which is a lot faster than changing them one by one.
+     * Every changed account gets a deposit or withdrawal in its history.
+     *
+     * @param amounts      the amount that gets added to each account, negative to withdraw, each gets cut down to the
+     *                     precision of the currency and has to be at least one unit of it
+     * @param currency     the currency of the balances
+     * @param requireFunds whether a withdrawal should be skipped if the account has less than the amount
+     * @param initiator    who started the change
+     * @param reason       the reason of the change, or null
+     * @return a future that completes with the new balance of every account, or an empty Optional if it was skipped or failed
+     */
+    public CompletableFuture<Response<Map<AccountKey, Optional<BigDecimal>>>> changeBalances(@NotNull Map<AccountKey, BigDecimal> amounts, @NotNull Currency currency, boolean requireFunds, @NotNull EconomyTransactionInitiator<?> initiator, @Nullable String reason) {
+        if (!currencies.contains(currency.getIdentifier()))
+            return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.CURRENCY_NOT_FOUND));
+        final LinkedHashMap<AccountKey, BigDecimal> scaled = new LinkedHashMap<>(amounts.size() * 2);
+        for (Map.Entry<AccountKey, BigDecimal> entry : amounts.entrySet()) {
+            final BigDecimal amount = scale(entry.getValue(), currency);
+            if (amount.signum() == 0)
+                return CompletableFuture.completedFuture(Response.failure(entry.getValue().signum() == 0 ? FailureReason.of("Can't change a balance by nothing") : tooSmall(currency)));
+            scaled.put(entry.getKey(), amount);
+        }
+        return plugin.getBalanceManager().changeBalances(currency, scaled, requireFunds, account -> {
+            final BigDecimal amount = scaled.get(account);
+            return transaction(currency, amount.signum() < 0 ? EconomyTransactionType.WITHDRAWAL : EconomyTransactionType.DEPOSIT, amount.abs(), initiator, reason);
+        }).thenApply(Response::success);
+    }
+
+    /**
+     * @param currency the currency to look up
+     * @return a future that completes with all accounts that have a balance in the currency
+     */
+    public CompletableFuture<Response<Collection<AccountKey>>> retrieveAccountsWith(@NotNull Currency currency) {
+        return plugin.getBalanceManager().retrieveAccountsWith(currency).thenApply(Response::success);
+    }
+
+    /**
+     * Cuts an amount down to the precision of the currency, the storage would round each balance down on its own
+     * and create or destroy the difference otherwise
+     */
+    private static BigDecimal scale(BigDecimal amount, Currency currency) {
+        return amount.setScale(currency.getPrecision(), RoundingMode.DOWN);
+    }
+
+    private static FailureReason tooSmall(Currency currency) {
+        return FailureReason.of("The amount is smaller than the precision of " + currency.getIdentifier());
+    }
+
+    private static EconomyTransaction transaction(Currency currency, EconomyTransactionType type, BigDecimal amount, EconomyTransactionInitiator<?> initiator, @Nullable String reason) {
+        final var builder = EconomyTransaction.newBuilder()
+                .withCurrency(currency)
+                .withTransactionType(type)
+                .withTransactionAmount(amount)
+                .withInitiator(initiator);
+        if (reason != null) builder.withReason(reason);
+        return builder.build();
+    }
+
     @Override
     public @NotNull PlayerAccountAccessor player() {
         return new PlayerAccountAccessor(plugin);
@@ -0,0 +1,128 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The exchange rates between currencies, kept in memory so converting never waits for the storage.
+ * <p>
+ * Lookups read an immutable matrix of all rates without taking a lock. Every change builds a new matrix from the
+ * stored rates and swaps it in, so a lookup sees either all or none of a change. A rate only stored in one direction
+ * is used inverted for the other direction.
+ */
+public class ExchangeRates {
+    private static final MathContext INVERSE_PRECISION = MathContext.DECIMAL64;
+    private static final HashMap<String, BigDecimal> EMPTY = new HashMap<>();
+
+    private final HashMap<String, HashMap<String, BigDecimal>> stored = new HashMap<>();
+    private volatile Matrix matrix = new Matrix(Map.of(), new BigDecimal[0][0]);
+
+    /**
+     * @param from the identifier of the currency to convert from
+     * @param to   the identifier of the currency to convert to
+     * @return how much of {@code to} one of {@code from} is worth, or null if there is no rate between them
+     */
+    public @Nullable BigDecimal getRate(@NotNull final String from, @NotNull final String to) {
+        if (from.equals(to)) return BigDecimal.ONE;
+        return matrix.get(from, to);
+    }
+
+    /**
+     * Converts an amount, decimal places beyond the precision of the target currency are cut off
+     *
+     * @param amount the amount in the currency to convert from
+     * @param from   the currency to convert from
+     * @param to     the currency to convert to
+     * @return the amount in the target currency, or null if there is no rate between the currencies
+     */
+    public @Nullable BigDecimal convert(@NotNull final BigDecimal amount, @NotNull final me.lokka30.treasury.api.economy.currency.Currency from, @NotNull final me.lokka30.treasury.api.economy.currency.Currency to) {
+        final BigDecimal rate = getRate(from.getIdentifier(), to.getIdentifier());
+        return rate == null ? null : amount.multiply(rate).setScale(to.getPrecision(), RoundingMode.DOWN);
+    }
+
+    /**
+     * Sets or removes a rate
+     *
+     * @param from the identifier of the currency to convert from
+     * @param to   the identifier of the currency to convert to
+     * @param rate how much of {@code to} one of {@code from} is worth, null to remove the rate
+     */
+    public synchronized void put(@NotNull final String from, @NotNull final String to, @Nullable final BigDecimal rate) {
+        if (rate == null) {
+            final HashMap<String, BigDecimal> rates = stored.get(from);
+            if (rates != null && rates.remove(to) != null && rates.isEmpty()) stored.remove(from);
+        } else {
+            stored.computeIfAbsent(from, currency -> new HashMap<>()).put(to, rate);
+        }
+        rebuild();
+    }
+
+    /**
+     * Removes every rate from and to a currency
+     *
+     * @param currency the identifier of the currency that got deleted
+     */
+    public synchronized void removeCurrency(@NotNull final String currency) {
+        stored.remove(currency);
+        stored.values().forEach(rates -> rates.remove(currency));
+        stored.values().removeIf(Map::isEmpty);
+        rebuild();
+    }
+
+    /**
+     * Replaces all rates, e.g. while loading them from the storage
+     *
+     * @param rates the rates by the currency to convert from and the currency to convert to
+     */
+    public synchronized void load(@NotNull final Map<String, ? extends Map<String, BigDecimal>> rates) {
+        stored.clear();
+        rates.forEach((from, to) -> {
+            if (!to.isEmpty()) stored.put(from, new HashMap<>(to));
+        });
+        rebuild();
+    }
+
+    /**
+     * @return a copy of the stored rates, without the inverted ones
+     */
+    public synchronized HashMap<String, HashMap<String, BigDecimal>> getStoredRates() {
+        final HashMap<String, HashMap<String, BigDecimal>> result = new HashMap<>();
+        stored.forEach((from, rates) -> result.put(from, new HashMap<>(rates)));
+        return result;
+    }
+
+    private void rebuild() {
+        final HashMap<String, Integer> indices = new HashMap<>();
+        stored.forEach((from, rates) -> {
+            indices.putIfAbsent(from, indices.size());
+            rates.keySet().forEach(to -> indices.putIfAbsent(to, indices.size()));
+        });
+        final BigDecimal[][] rates = new BigDecimal[indices.size()][indices.size()];
+        stored.forEach((from, to) -> to.forEach((currency, rate) -> {
+            final int row = indices.get(from);
+            final int column = indices.get(currency);
+            rates[row][column] = rate;
+            // an inverted rate never replaces one that is stored for that direction
+            if (rates[column][row] == null && rate.signum() != 0 && !stored.getOrDefault(currency, EMPTY).containsKey(from))
+                rates[column][row] = BigDecimal.ONE.divide(rate, INVERSE_PRECISION);
+        }));
+        matrix = new Matrix(Map.copyOf(indices), rates);
+    }
+
+    /**
+     * An immutable snapshot of all rates, {@code rates[from][to]} is null if there is no rate
+     */
+    private record Matrix(Map<String, Integer> indices, BigDecimal[][] rates) {
+        private @Nullable BigDecimal get(String from, String to) {
+            final Integer row = indices.get(from);
+            final Integer column = indices.get(to);
+            return row == null || column == null ? null : rates[row][column];
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in nanoseconds in buckets that are at most 1/32 of their value wide, so percentiles are off by
+ * less than about 3%. Recording is a single atomic increment, so any thread can record without locking.
+ * Histograms can be added together and subtracted, e.g. to get the latencies of an interval from two copies.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    /**
+     * @param nanos the latency to count, negative values count as 0
+     */
+    public void record(final long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    /**
+     * Adds the counts of another histogram to this one
+     */
+    public void add(@NotNull final LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            final long count = other.counts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+    }
+
+    /**
+     * @return a histogram with the counts this one has right now
+     */
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * @param earlier a copy of this histogram from an earlier point in time
+     * @return a histogram with the latencies that got recorded since the copy was taken
+     */
+    public LatencyHistogram since(@NotNull final LatencyHistogram earlier) {
+        final LatencyHistogram result = new LatencyHistogram();
+        for (int i = 0; i < counts.length(); i++)
+            result.counts.set(i, Math.max(0, counts.get(i) - earlier.counts.get(i)));
+        return result;
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @return the highest latency of the highest bucket that has a count, or 0 if nothing got recorded
+     */
+    public long getMax() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) return highestValue(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @param quantile the quantile between 0 and 1, e.g. 0.999 for p99.9
+     * @return the highest latency of the bucket that contains the quantile, or 0 if nothing got recorded
+     */
+    public long getValueAt(final double quantile) {
+        final long total = getTotal();
+        if (total == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return highestValue(i);
+        }
+        return getMax();
+    }
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(final int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
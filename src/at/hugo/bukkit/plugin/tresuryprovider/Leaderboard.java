@@ -0,0 +1,238 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the richest players of every currency in memory. Every board holds the exact top of its currency, it gets
+ * updated with every committed balance change instead of being recomputed. A board keeps twice as many players as
+ * it shows, so players can drop out of it without the board having to be reloaded from the storage right away.
+ */
+public class Leaderboard {
+    private static final Comparator<Ranked> ORDER = Comparator.comparing(Ranked::balance).reversed().thenComparing(Ranked::player);
+
+    private final StorageEngine storage;
+    private final Runnable beforeLoad;
+    private final Executor executor;
+    private final int size;
+    private final int capacity;
+    private final ConcurrentHashMap<String, Board> boards = new ConcurrentHashMap<>();
+
+    /**
+     * @param storage    the storage boards get loaded from
+     * @param beforeLoad runs before a board gets loaded, e.g. to flush balances that are only changed in memory
+     * @param size       how many players are ranked per currency
+     * @param executor   runs reloads of boards that became incomplete
+     */
+    public Leaderboard(@NotNull final StorageEngine storage, @NotNull final Runnable beforeLoad, final int size, @NotNull final Executor executor) {
+        this.storage = storage;
+        this.beforeLoad = beforeLoad;
+        this.executor = executor;
+        this.size = Math.max(1, size);
+        this.capacity = this.size * 2;
+    }
+
+    /**
+     * @return how many players are ranked per currency
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Loads the board of a currency from the storage, this blocks until it is loaded
+     *
+     * @param currency the currency to load the board of
+     */
+    public void load(@NotNull final Currency currency) {
+        board(currency).reload();
+    }
+
+    /**
+     * Updates the rank of a player after their balance changed
+     *
+     * @param player   the player whose balance changed
+     * @param currency the currency of the balance
+     * @param balance  the new balance
+     */
+    public void update(@NotNull final UUID player, @NotNull final Currency currency, @NotNull final BigDecimal balance) {
+        board(currency).update(player, () -> balance);
+    }
+
+    /**
+     * Updates the rank of a player after their balance changed. The balance is read while the board is locked, so
+     * updates that arrive out of order still leave the newest balance on the board.
+     *
+     * @param player   the player whose balance changed
+     * @param currency the currency of the balance
+     * @param balance  reads the current balance, null if the player has none
+     */
+    public void update(@NotNull final UUID player, @NotNull final Currency currency, @NotNull final Supplier<@Nullable BigDecimal> balance) {
+        board(currency).update(player, balance);
+    }
+
+    /**
+     * Removes a player from all boards, e.g. because their account got deleted
+     *
+     * @param player the player to remove
+     */
+    public void remove(@NotNull final UUID player) {
+        for (Board board : boards.values()) board.update(player, () -> null);
+    }
+
+    /**
+     * Drops the board of a currency that got deleted
+     *
+     * @param identifier the identifier of the currency
+     */
+    public void removeCurrency(@NotNull final String identifier) {
+        boards.remove(identifier);
+    }
+
+    /**
+     * Gets one page of the board of a currency, this only copies the entries of the page
+     *
+     * @param currency the currency to get the board of
+     * @param page     the page, starting at 1
+     * @param pageSize how many entries are on a page
+     * @return the entries of the page, empty if the page is past the end of the board
+     */
+    public List<Entry> getPage(@NotNull final Currency currency, final int page, final int pageSize) {
+        final Ranked[] ranked = board(currency).snapshot();
+        final int end = Math.min(ranked.length, size);
+        final int start = (int) Math.min(end, Math.max(0L, (long) page - 1) * Math.max(1, pageSize));
+        final int last = Math.min(end, start + Math.max(1, pageSize));
+        final ArrayList<Entry> result = new ArrayList<>(last - start);
+        for (int i = start; i < last; i++) result.add(new Entry(i + 1, ranked[i].player(), ranked[i].balance()));
+        return result;
+    }
+
+    /**
+     * @param currency the currency to get the board of
+     * @param pageSize how many entries are on a page
+     * @return the amount of pages the board of the currency has
+     */
+    public int getPageCount(@NotNull final Currency currency, final int pageSize) {
+        final int entries = Math.min(board(currency).snapshot().length, size);
+        return (entries + Math.max(1, pageSize) - 1) / Math.max(1, pageSize);
+    }
+
+    private Board board(Currency currency) {
+        return boards.computeIfAbsent(currency.getIdentifier(), identifier -> new Board(currency));
+    }
+
+    /**
+     * A ranked player
+     *
+     * @param rank    the rank, starting at 1
+     * @param player  the player
+     * @param balance the balance of the player
+     */
+    public record Entry(int rank, @NotNull UUID player, @NotNull BigDecimal balance) {
+    }
+
+    private record Ranked(UUID player, BigDecimal balance) {
+    }
+
+    /**
+     * The board of one currency. It is always the exact top of all balances of the currency: every player that is
+     * not on it has at most the balance of the last player on it. If it is complete it holds every balance.
+     */
+    private final class Board {
+        private final Currency currency;
+        private final HashMap<UUID, BigDecimal> balances = new HashMap<>();
+        private final TreeSet<Ranked> ordered = new TreeSet<>(ORDER);
+        private boolean complete = false;
+        private HashMap<UUID, BigDecimal> changedWhileLoading = null;
+        private volatile Ranked[] snapshot = null;
+
+        private Board(Currency currency) {
+            this.currency = currency;
+        }
+
+        private synchronized void update(UUID player, Supplier<BigDecimal> current) {
+            final BigDecimal balance = current.get();
+            if (changedWhileLoading != null) changedWhileLoading.put(player, balance);
+            final BigDecimal previous = balances.remove(player);
+            if (previous != null) ordered.remove(new Ranked(player, previous));
+            if (balance != null) {
+                final Ranked ranked = new Ranked(player, balance);
+                if (complete || (!ordered.isEmpty() && ORDER.compare(ranked, ordered.last()) < 0)) {
+                    balances.put(player, balance);
+                    ordered.add(ranked);
+                }
+            }
+            trim();
+            if (previous != null || balances.containsKey(player)) snapshot = null;
+            reloadIfIncomplete();
+        }
+
+        private synchronized void reloadIfIncomplete() {
+            if (!complete && ordered.size() < size && changedWhileLoading == null)
+                CompletableFuture.runAsync(this::reload, executor);
+        }
+
+        private void trim() {
+            while (ordered.size() > capacity) {
+                balances.remove(ordered.pollLast().player());
+                complete = false;
+            }
+        }
+
+        private void reload() {
+            synchronized (this) {
+                if (changedWhileLoading != null) return;
+                changedWhileLoading = new HashMap<>();
+            }
+            LinkedHashMap<UUID, BigDecimal> loaded = null;
+            try {
+                beforeLoad.run();
+                loaded = storage.getTopBalances(currency, capacity);
+            } finally {
+                synchronized (this) {
+                    if (loaded != null) {
+                        complete = loaded.size() < capacity;
+                        balances.clear();
+                        ordered.clear();
+                        // players that aren't loaded rank after the last loaded player that didn't change meanwhile
+                        Ranked cutoff = null;
+                        for (Map.Entry<UUID, BigDecimal> entry : loaded.entrySet()) {
+                            if (changedWhileLoading.containsKey(entry.getKey())) continue;
+                            final Ranked ranked = new Ranked(entry.getKey(), entry.getValue());
+                            if (cutoff == null || ORDER.compare(ranked, cutoff) > 0) cutoff = ranked;
+                        }
+                        loaded.putAll(changedWhileLoading);
+                        for (Map.Entry<UUID, BigDecimal> entry : loaded.entrySet()) {
+                            if (entry.getValue() == null) continue;
+                            final Ranked ranked = new Ranked(entry.getKey(), entry.getValue());
+                            if (!complete && cutoff != null && ORDER.compare(ranked, cutoff) > 0) continue;
+                            balances.put(entry.getKey(), entry.getValue());
+                            ordered.add(ranked);
+                        }
+                        trim();
+                        snapshot = null;
+                    }
+                    changedWhileLoading = null;
+                }
+            }
+        }
+
+        private Ranked[] snapshot() {
+            Ranked[] result = snapshot;
+            if (result != null) return result;
+            reloadIfIncomplete();
+            synchronized (this) {
+                if (snapshot == null) snapshot = ordered.toArray(new Ranked[0]);
+                return snapshot;
+            }
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Keeps all balances in memory like {@link MemoryStorageEngine} and persists every balance change as a fixed-size
+ * record in a memory-mapped append-only log, so a deposit costs one write into mapped memory instead of a SQL
+ * transaction. Once a log is full a new one is started and a compacted snapshot of all balances is written.
+ * On startup the snapshot is loaded and the logs written after it are replayed.
+ * <p>
+ * Currencies, non player account names, permissions and exchange rates change rarely, they are kept in a small
+ * metadata file that is rewritten on every change.
+ * <p>
+ * The log survives a crash of the server process, since the operating system still writes the mapped memory to disk.
+ * Changes after the last {@link #sync()} can be lost if the whole machine goes down.
+ */
+public class MappedLogStorageEngine extends MemoryStorageEngine {
+    private static final int RECORD_SIZE = 48;
+    private static final int PLAYER_BALANCE = 1;
+    private static final int ACCOUNT_BALANCE = 2;
+    private static final int PLAYER_DELETE = 3;
+    private static final int ACCOUNT_DELETE = 4;
+    /**
+     * A transfer takes two records, the first holds the paying balance and the record types of both balances, the
+     * second holds the receiving balance and the check of both records
+     */
+    private static final int TRANSFER = 5;
+    private static final int TRANSFER_DEPOSIT = 6;
+    private static final int SNAPSHOT_MAGIC = 0x5354534E;
+    private static final int METADATA_MAGIC = 0x53544D44;
+    private static final int FORMAT_VERSION = 1;
+    private static final int METADATA_VERSION = 2;
+    private static final String LOG_PREFIX = "balances-";
+    private static final String LOG_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int logCapacity;
+    private final Logger logger;
+    private final Executor executor;
+    private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+    private final AtomicInteger logPosition = new AtomicInteger();
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean(false);
+    private final Object snapshotLock = new Object();
+    private final ConcurrentHashMap<String, Long> accountNumbers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> accountNames = new ConcurrentHashMap<>();
+    private long nextAccountNumber = 1;
+    private FileChannel logChannel;
+    private volatile MappedByteBuffer log;
+    private volatile long generation;
+
+    /**
+     * Loads the persisted state and starts a new log
+     *
+     * @param directory   the directory the log, snapshot and metadata files are kept in
+     * @param logCapacity the size of one log file in bytes, a new log and a snapshot get started once it is full
+     * @param logger      the logger recovery messages are written to
+     * @param executor    writes snapshots once a log is full
+     * @throws IOException gets thrown if the files can't be read or the log can't be created
+     */
+    public MappedLogStorageEngine(@NotNull final Path directory, final int logCapacity, @NotNull final Logger logger, @NotNull final Executor executor) throws IOException {
+        this.directory = directory;
+        this.logCapacity = Math.max(2 * RECORD_SIZE, logCapacity / RECORD_SIZE * RECORD_SIZE);
+        this.logger = logger;
+        this.executor = executor;
+        Files.createDirectories(directory);
+        loadMetadata();
+        final long snapshotGeneration = loadSnapshot();
+        long lastGeneration = snapshotGeneration;
+        long replayed = 0;
+        for (long logGeneration : logGenerations()) {
+            // the log before the one a snapshot belongs to can hold changes the snapshot missed, replaying more is harmless
+            if (logGeneration >= snapshotGeneration - 1) replayed += replay(logFile(logGeneration));
+            lastGeneration = Math.max(lastGeneration, logGeneration);
+        }
+        if (replayed > 0) logger.info("Replayed " + replayed + " balance changes from the log");
+        generation = lastGeneration;
+        openLog(lastGeneration + 1);
+        snapshot();
+    }
+
+    @Override
+    protected void balanceChanged(int currencyId, @NotNull AccountKey account, @Nullable BigDecimal balance) {
+        final long[] record = encode(account, balance);
+        append(RECORD_SIZE, (buffer, position) -> writeRecord(buffer, position, (int) record[0], currencyId, record[1], record[2], record[3], record[4]));
+    }
+
+    @Override
+    protected void balancesMoved(int fromCurrencyId, @NotNull AccountKey from, @NotNull BigDecimal fromBalance, int toCurrencyId, @NotNull AccountKey to, @NotNull BigDecimal toBalance) {
+        final long[] paying = encode(from, fromBalance);
+        final long[] receiving = encode(to, toBalance);
+        append(2 * RECORD_SIZE, (buffer, position) -> writeTransfer(buffer, position, fromCurrencyId, paying, toCurrencyId, receiving));
+    }
+
+    /**
+     * @return the record type, both keys and the high and low half of the unscaled balance
+     */
+    private long[] encode(AccountKey account, @Nullable BigDecimal balance) {
+        final long[] record = new long[5];
+        if (account instanceof AccountKey.Player player) {
+            record[0] = balance == null ? PLAYER_DELETE : PLAYER_BALANCE;
+            record[1] = player.uuid().getMostSignificantBits();
+            record[2] = player.uuid().getLeastSignificantBits();
+        } else {
+            record[0] = balance == null ? ACCOUNT_DELETE : ACCOUNT_BALANCE;
+            record[1] = accountNumber(((AccountKey.NonPlayer) account).identifier());
+        }
+        if (balance != null) {
+            final BigInteger unscaled = balance.unscaledValue();
+            record[4] = unscaled.longValue();
+            // throws if the balance doesn't fit into 128 bits, which aborts the change
+            record[3] = unscaled.bitLength() < Long.SIZE ? record[4] >> 63 : unscaled.shiftRight(Long.SIZE).longValueExact();
+        }
+        return record;
+    }
+
+    @Override
+    protected void accountWriting(@NotNull AccountKey account) {
+        // a new account gets its number and the metadata file gets written before the balance is locked
+        if (account instanceof AccountKey.NonPlayer nonPlayer) accountNumber(nonPlayer.identifier());
+    }
+
+    @Override
+    protected void metadataChanged() {
+        saveMetadata();
+    }
+
+    /**
+     * Reserves the given number of bytes in the current log and writes them, a new log gets started if it is full
+     */
+    private void append(int size, RecordWriter writer) {
+        while (true) {
+            final long fullGeneration;
+            logLock.readLock().lock();
+            try {
+                final int position = logPosition.getAndAdd(size);
+                if (position >= 0 && position <= logCapacity - size) {
+                    writer.write(log, position);
+                    return;
+                }
+                fullGeneration = generation;
+            } finally {
+                logLock.readLock().unlock();
+            }
+            rotate(fullGeneration);
+            scheduleSnapshot();
+        }
+    }
+
+    /**
+     * Starts a new log if the given one is still the current one
+     */
+    private void rotate(long fullGeneration) {
+        logLock.writeLock().lock();
+        try {
+            if (generation != fullGeneration) return;
+            log.force();
+            openLog(fullGeneration + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            logLock.writeLock().unlock();
+        }
+    }
+
+    private void openLog(long newGeneration) throws IOException {
+        final FileChannel channel = FileChannel.open(logFile(newGeneration), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, logCapacity);
+        if (logChannel != null) logChannel.close();
+        logChannel = channel;
+        log = buffer;
+        generation = newGeneration;
+        logPosition.set(0);
+    }
+
+    private void scheduleSnapshot() {
+        if (snapshotScheduled.compareAndSet(false, true)) CompletableFuture.runAsync(this::snapshot, executor);
+    }
+
+    /**
+     * Writes everything in the current log to disk
+     */
+    public void sync() {
+        logLock.readLock().lock();
+        try {
+            log.force();
+        } finally {
+            logLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a new log and writes all balances to a new snapshot, logs that are covered by it get deleted.
+     * Balances can be changed while the snapshot is written.
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            snapshotScheduled.set(false);
+            rotate(generation);
+            final long snapshotGeneration = generation;
+            final Path temporary = directory.resolve("balances.snapshot.tmp");
+            long written = 0;
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(snapshotGeneration);
+                final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                final long[] count = {0};
+                final IOException[] failure = {null};
+                forEachBalance((currencyId, account, balance) -> {
+                    if (failure[0] != null) return;
+                    final BigInteger unscaled = balance.unscaledValue();
+                    final long low = unscaled.longValue();
+                    final long high = unscaled.bitLength() < Long.SIZE ? low >> 63 : unscaled.shiftRight(Long.SIZE).longValue();
+                    if (account instanceof AccountKey.Player player)
+                        writeRecord(record, 0, PLAYER_BALANCE, currencyId, player.uuid().getMostSignificantBits(), player.uuid().getLeastSignificantBits(), high, low);
+                    else
+                        writeRecord(record, 0, ACCOUNT_BALANCE, currencyId, accountNumber(((AccountKey.NonPlayer) account).identifier()), 0, high, low);
+                    try {
+                        out.write(record.array());
+                        count[0]++;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) throw failure[0];
+                written = count[0];
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+                Files.move(temporary, directory.resolve("balances.snapshot"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (long logGeneration : logGenerations()) {
+                    if (logGeneration < snapshotGeneration - 1) Files.deleteIfExists(logFile(logGeneration));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            logger.fine("Wrote a snapshot of " + written + " balances");
+        }
+    }
+
+    @Override
+    public void close() {
+        snapshot();
+        logLock.writeLock().lock();
+        try {
+            log.force();
+            logChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            logLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the number of a non player account in the log, a new account gets the next number and the metadata
+     * file gets rewritten. New accounts get their number in {@link #accountWriting}, before any balance is locked.
+     */
+    private long accountNumber(String identifier) {
+        final Long number = accountNumbers.get(identifier);
+        if (number != null) return number;
+        synchronized (this) {
+            final Long existing = accountNumbers.get(identifier);
+            if (existing != null) return existing;
+            final long assigned = nextAccountNumber++;
+            accountNumbers.put(identifier, assigned);
+            accountNames.put(assigned, identifier);
+            // the number has to be known before the first record that uses it gets written
+            saveMetadata();
+            return assigned;
+        }
+    }
+
+    private Path logFile(long logGeneration) {
+        return directory.resolve(LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        final ArrayList<Long> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX))
+                    .forEach(name -> {
+                        try {
+                            result.add(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+                        } catch (NumberFormatException ignored) {
+                        }
+                    });
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int position, int type, int currencyId, long key1, long key2, long high, long low) {
+        buffer.putInt(position, type);
+        buffer.putInt(position + 4, currencyId);
+        buffer.putLong(position + 8, key1);
+        buffer.putLong(position + 16, key2);
+        buffer.putLong(position + 24, high);
+        buffer.putLong(position + 32, low);
+        // written last, a record that was only written partially doesn't match its check
+        buffer.putLong(position + 40, check(type, currencyId, key1, key2, high, low));
+    }
+
+    /**
+     * Writes both records of a transfer, the check of both is written last
+     */
+    private static void writeTransfer(ByteBuffer buffer, int position, int fromCurrencyId, long[] from, int toCurrencyId, long[] to) {
+        final long types = from[0] << 32 | to[0];
+        buffer.putInt(position, TRANSFER);
+        buffer.putInt(position + 4, fromCurrencyId);
+        buffer.putLong(position + 8, from[1]);
+        buffer.putLong(position + 16, from[2]);
+        buffer.putLong(position + 24, from[3]);
+        buffer.putLong(position + 32, from[4]);
+        buffer.putLong(position + 40, types);
+        final int second = position + RECORD_SIZE;
+        buffer.putInt(second, TRANSFER_DEPOSIT);
+        buffer.putInt(second + 4, toCurrencyId);
+        buffer.putLong(second + 8, to[1]);
+        buffer.putLong(second + 16, to[2]);
+        buffer.putLong(second + 24, to[3]);
+        buffer.putLong(second + 32, to[4]);
+        buffer.putLong(second + 40, check(TRANSFER, fromCurrencyId, from[1], from[2], from[3], from[4], types,
+                TRANSFER_DEPOSIT, toCurrencyId, to[1], to[2], to[3], to[4]));
+    }
+
+    private static long check(long... values) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for (long value : values) {
+            hash ^= value;
+            hash *= 0xBF58476D1CE4E5B9L;
+            hash ^= hash >>> 31;
+        }
+        return hash;
+    }
+
+    /**
+     * Applies the record at the position if it is complete, both balances of a transfer are applied or neither
+     *
+     * @return whether the record got applied
+     */
+    private boolean applyRecord(ByteBuffer buffer, int position) {
+        final int type = buffer.getInt(position);
+        final int currencyId = buffer.getInt(position + 4);
+        final long key1 = buffer.getLong(position + 8);
+        final long key2 = buffer.getLong(position + 16);
+        final long high = buffer.getLong(position + 24);
+        final long low = buffer.getLong(position + 32);
+        if (type == TRANSFER) {
+            final int second = position + RECORD_SIZE;
+            if (second > buffer.capacity() - RECORD_SIZE) return false;
+            final long types = buffer.getLong(position + 40);
+            final int toCurrencyId = buffer.getInt(second + 4);
+            final long toKey1 = buffer.getLong(second + 8);
+            final long toKey2 = buffer.getLong(second + 16);
+            final long toHigh = buffer.getLong(second + 24);
+            final long toLow = buffer.getLong(second + 32);
+            if (buffer.getInt(second) != TRANSFER_DEPOSIT || buffer.getLong(second + 40) != check(TRANSFER, currencyId, key1, key2, high, low, types,
+                    TRANSFER_DEPOSIT, toCurrencyId, toKey1, toKey2, toHigh, toLow)) return false;
+            final Restore from = decode((int) (types >>> 32), currencyId, key1, key2, high, low);
+            final Restore to = decode((int) types, toCurrencyId, toKey1, toKey2, toHigh, toLow);
+            if (from == null || to == null) return false;
+            restoreBalance(from.currencyId(), from.account(), from.balance());
+            restoreBalance(to.currencyId(), to.account(), to.balance());
+            return true;
+        }
+        if (buffer.getLong(position + 40) != check(type, currencyId, key1, key2, high, low)) return false;
+        final Restore restore = decode(type, currencyId, key1, key2, high, low);
+        if (restore == null) return false;
+        restoreBalance(restore.currencyId(), restore.account(), restore.balance());
+        return true;
+    }
+
+    /**
+     * @return the balance a single record sets, or null if its type, account or currency is unknown
+     */
+    private @Nullable Restore decode(int type, int currencyId, long key1, long key2, long high, long low) {
+        final AccountKey account;
+        if (type == PLAYER_BALANCE || type == PLAYER_DELETE) {
+            account = AccountKey.of(new UUID(key1, key2));
+        } else if (type == ACCOUNT_BALANCE || type == ACCOUNT_DELETE) {
+            final String name = accountNames.get(key1);
+            if (name == null) return null;
+            account = AccountKey.of(name);
+        } else {
+            return null;
+        }
+        if (type == PLAYER_DELETE || type == ACCOUNT_DELETE) return new Restore(currencyId, account, null);
+        final String identifier = currencyIds.getIdentifier(currencyId);
+        final var currency = identifier == null ? null : currencies.get(identifier);
+        if (currency == null) return null;
+        final BigInteger unscaled = high == low >> 63
+                ? BigInteger.valueOf(low)
+                : BigInteger.valueOf(high).shiftLeft(Long.SIZE).add(new BigInteger(1, ByteBuffer.allocate(Long.BYTES).putLong(low).array()));
+        return new Restore(currencyId, account, new BigDecimal(unscaled, currency.getPrecision()));
+    }
+
+    /**
+     * Applies every complete record of a log. Records are reserved in order but written concurrently,
+     * so an incomplete record doesn't mean that the records after it are incomplete as well.
+     */
+    private long replay(Path file) throws IOException {
+        long applied = 0;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            for (int position = 0; position <= buffer.capacity() - RECORD_SIZE; position += RECORD_SIZE) {
+                if (applyRecord(buffer, position)) applied++;
+                // the second record of a transfer was read together with the first one
+                if (buffer.getInt(position) == TRANSFER) position += RECORD_SIZE;
+            }
+        }
+        return applied;
+    }
+
+    private long loadSnapshot() throws IOException {
+        final Path file = directory.resolve("balances.snapshot");
+        if (!Files.exists(file)) return 0;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unknown snapshot format in " + file);
+            final long snapshotGeneration = in.readLong();
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            long loaded = 0;
+            try {
+                while (true) {
+                    in.readFully(record.array());
+                    if (applyRecord(record, 0)) loaded++;
+                }
+            } catch (EOFException ignored) {
+            }
+            logger.info("Loaded " + loaded + " balances from the snapshot");
+            return snapshotGeneration;
+        }
+    }
+
+    private void loadMetadata() throws IOException {
+        final Path file = directory.resolve("metadata.dat");
+        if (!Files.exists(file)) return;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final int version;
+            if (in.readInt() != METADATA_MAGIC || (version = in.readInt()) < 1 || version > METADATA_VERSION)
+                throw new IOException("Unknown metadata format in " + file);
+            nextCurrencyId = in.readInt();
+            for (int i = in.readInt(); i > 0; i--) {
+                final int id = in.readInt();
+                final String identifier = in.readUTF();
+                final String symbol = in.readUTF();
+                final char decimal = in.readChar();
+                final Character grouping = in.readBoolean() ? in.readChar() : null;
+                final String singular = in.readUTF();
+                final String plural = in.readUTF();
+                final int precision = in.readInt();
+                final boolean primary = in.readBoolean();
+                restoreCurrency(id, new Currency(identifier, symbol, decimal, grouping, singular, plural, precision, primary));
+            }
+            nextAccountNumber = in.readLong();
+            for (int i = in.readInt(); i > 0; i--) {
+                final String name = in.readUTF();
+                final long number = in.readLong();
+                accountNumbers.put(name, number);
+                accountNames.put(number, name);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final String account = in.readUTF();
+                final UUID player = new UUID(in.readLong(), in.readLong());
+                permissions.put(account, player, in.readInt());
+            }
+            // the first version had no exchange rates
+            if (version < 2) return;
+            final HashMap<String, HashMap<String, BigDecimal>> rates = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--)
+                rates.computeIfAbsent(in.readUTF(), from -> new HashMap<>()).put(in.readUTF(), new BigDecimal(in.readUTF()));
+            exchangeRates.load(rates);
+        }
+    }
+
+    /**
+     * Rewrites the metadata file, the new file replaces the old one atomically
+     */
+    private synchronized void saveMetadata() {
+        final Path temporary = directory.resolve("metadata.dat.tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(METADATA_MAGIC);
+                out.writeInt(METADATA_VERSION);
+                out.writeInt(nextCurrencyId);
+                final ArrayList<Currency> stored = new ArrayList<>(currencies.values());
+                out.writeInt(stored.size());
+                for (Currency currency : stored) {
+                    final Integer id = currencyIds.getId(currency.getIdentifier());
+                    out.writeInt(id != null ? id : -1);
+                    out.writeUTF(currency.getIdentifier());
+                    out.writeUTF(currency.getSymbol());
+                    out.writeChar(currency.getDecimal());
+                    out.writeBoolean(currency.getGrouping() != null);
+                    if (currency.getGrouping() != null) out.writeChar(currency.getGrouping());
+                    out.writeUTF(currency.getDisplayNameSingular());
+                    out.writeUTF(currency.getDisplayNamePlural());
+                    out.writeInt(currency.getPrecision());
+                    out.writeBoolean(currency.isPrimary());
+                }
+                out.writeLong(nextAccountNumber);
+                final HashMap<String, Long> numbers = new HashMap<>(accountNumbers);
+                out.writeInt(numbers.size());
+                for (Map.Entry<String, Long> entry : numbers.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+                final ArrayList<Object[]> granted = new ArrayList<>();
+                permissions.forEach((account, player, mask) -> granted.add(new Object[]{account, player, mask}));
+                out.writeInt(granted.size());
+                for (Object[] entry : granted) {
+                    out.writeUTF((String) entry[0]);
+                    out.writeLong(((UUID) entry[1]).getMostSignificantBits());
+                    out.writeLong(((UUID) entry[1]).getLeastSignificantBits());
+                    out.writeInt((Integer) entry[2]);
+                }
+                final HashMap<String, HashMap<String, BigDecimal>> rates = exchangeRates.getStoredRates();
+                out.writeInt(rates.values().stream().mapToInt(Map::size).sum());
+                for (Map.Entry<String, HashMap<String, BigDecimal>> from : rates.entrySet()) {
+                    for (Map.Entry<String, BigDecimal> to : from.getValue().entrySet()) {
+                        out.writeUTF(from.getKey());
+                        out.writeUTF(to.getKey());
+                        out.writeUTF(to.getValue().toPlainString());
+                    }
+                }
+            }
+            try (var channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve("metadata.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(ByteBuffer buffer, int position);
+    }
+
+    private record Restore(int currencyId, AccountKey account, @Nullable BigDecimal balance) {
+    }
+}
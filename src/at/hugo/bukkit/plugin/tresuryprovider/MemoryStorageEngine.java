@@ -0,0 +1,608 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.economy.account.AccountPermission;
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Keeps everything in memory only, nothing survives a restart. Meant for minigame and lobby servers where balances
+ * are thrown away anyway. Balances are found through the numeric id of their currency in an array and then through
+ * a table per currency, changes are applied atomically and their futures are already completed. Player balances are
+ * kept as scaled longs in an {@link OffHeapBalanceTable} and only turned into a {@link BigDecimal} when they are read.
+ * Subclasses can persist the state through {@link #balanceChanged} and {@link #metadataChanged()}.
+ */
+public class MemoryStorageEngine implements StorageEngine {
+    private static final int WRITE_LOCKS = 256;
+    protected final CurrencyIds currencyIds = new CurrencyIds();
+    protected final ConcurrentHashMap<String, at.hugo.bukkit.plugin.tresuryprovider.Currency> currencies = new ConcurrentHashMap<>();
+    protected final PermissionIndex permissions = new PermissionIndex();
+    protected final ExchangeRates exchangeRates = new ExchangeRates();
+    private volatile CurrencyBalances[] balances = new CurrencyBalances[0];
+    private volatile BalanceListener balanceListener = null;
+    protected int nextCurrencyId = 1;
+    /**
+     * Every balance change holds the lock its currency and account hash to, so a transfer can lock both of its
+     * balances at once. A transfer takes its two locks in the order of their index.
+     */
+    private final Object[] writeLocks = new Object[WRITE_LOCKS];
+
+    {
+        Arrays.setAll(writeLocks, i -> new Object());
+    }
+
+    /**
+     * Gets called for every balance change while the balance is locked, so changes of one balance are seen in the
+     * order they were applied. Throwing an exception aborts the change.
+     *
+     * @param currencyId the numeric id of the currency
+     * @param account    the account whose balance changed
+     * @param balance    the new balance, or null if it got deleted
+     */
+    protected void balanceChanged(int currencyId, @NotNull AccountKey account, @Nullable BigDecimal balance) {
+    }
+
+    /**
+     * Gets called before a balance of the account gets locked to change it, so work that {@link #balanceChanged}
+     * needs, like writing a file, doesn't have to be done while other balances wait for the lock
+     *
+     * @param account the account whose balance is about to change
+     */
+    protected void accountWriting(@NotNull AccountKey account) {
+    }
+
+    /**
+     * Gets called for a transfer or an exchange while both balances are locked and before either of them changes,
+     * so both new balances can be persisted together. Throwing an exception aborts the transfer. Calls
+     * {@link #balanceChanged} for both balances by default.
+     *
+     * @param fromCurrencyId the numeric id of the currency that gets withdrawn
+     * @param from           the paying account
+     * @param fromBalance    the new balance of the paying account
+     * @param toCurrencyId   the numeric id of the currency that gets deposited
+     * @param to             the receiving account
+     * @param toBalance      the new balance of the receiving account
+     */
+    protected void balancesMoved(int fromCurrencyId, @NotNull AccountKey from, @NotNull BigDecimal fromBalance, int toCurrencyId, @NotNull AccountKey to, @NotNull BigDecimal toBalance) {
+        balanceChanged(fromCurrencyId, from, fromBalance);
+        balanceChanged(toCurrencyId, to, toBalance);
+    }
+
+    /**
+     * @return the lock that has to be held while the balance of the account in the currency changes
+     */
+    private Object writeLock(int currencyId, AccountKey account) {
+        return writeLocks[writeLockIndex(currencyId, account)];
+    }
+
+    private static int writeLockIndex(int currencyId, AccountKey account) {
+        final int hash = account.hashCode() * 31 + currencyId;
+        return (hash ^ hash >>> 16) & (WRITE_LOCKS - 1);
+    }
+
+    /**
+     * Calls {@link #balanceChanged} and then the balance listener, while the balance is still locked
+     */
+    private void written(int currencyId, AccountKey account, @Nullable BigDecimal balance) {
+        balanceChanged(currencyId, account, balance);
+        notifyListener(currencyId, account, balance);
+    }
+
+    private void notifyListener(int currencyId, AccountKey account, @Nullable BigDecimal balance) {
+        final BalanceListener listener = balanceListener;
+        final String identifier = listener == null ? null : currencyIds.getIdentifier(currencyId);
+        if (identifier != null) listener.balanceWritten(account, identifier, balance);
+    }
+
+    @Override
+    public void setBalanceListener(@Nullable BalanceListener listener) {
+        this.balanceListener = listener;
+    }
+
+    /**
+     * Gets called after currencies, exchange rates or permissions changed in memory. Throwing an exception rolls the
+     * change back, so nothing changes if it can't be persisted.
+     */
+    protected void metadataChanged() {
+    }
+
+    /**
+     * Calls {@link #metadataChanged()} and rolls the change back if it fails
+     *
+     * @param rollback undoes the change in memory
+     * @return whether the change got persisted
+     */
+    private boolean persistMetadata(@NotNull Runnable rollback) {
+        try {
+            metadataChanged();
+            return true;
+        } catch (RuntimeException e) {
+            rollback.run();
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Adds a currency with a known id, e.g. while loading a persisted state
+     *
+     * @param id       the numeric id of the currency
+     * @param currency the currency
+     */
+    protected synchronized void restoreCurrency(int id, @NotNull at.hugo.bukkit.plugin.tresuryprovider.Currency currency) {
+        currencies.put(currency.getIdentifier(), currency);
+        final CurrencyBalances[] grown = Arrays.copyOf(balances, Math.max(balances.length, id + 1));
+        grown[id] = new CurrencyBalances(currency.getPrecision());
+        balances = grown;
+        currencyIds.put(currency.getIdentifier(), id);
+        nextCurrencyId = Math.max(nextCurrencyId, id + 1);
+    }
+
+    /**
+     * Sets a balance without calling {@link #balanceChanged}, e.g. while loading a persisted state
+     *
+     * @param currencyId the numeric id of the currency, unknown currencies are ignored
+     * @param account    the account
+     * @param balance    the balance, or null to delete it
+     */
+    protected void restoreBalance(int currencyId, @NotNull AccountKey account, @Nullable BigDecimal balance) {
+        final CurrencyBalances[] balances = this.balances;
+        if (currencyId < 0 || currencyId >= balances.length || balances[currencyId] == null) return;
+        balances[currencyId].compute(account, previous -> balance == null ? null : balances[currencyId].scale(balance));
+    }
+
+    /**
+     * Calls the consumer for every stored balance
+     *
+     * @param consumer gets the numeric id of the currency, the account and its balance
+     */
+    protected void forEachBalance(@NotNull BalanceConsumer consumer) {
+        final CurrencyBalances[] balances = this.balances;
+        for (int id = 0; id < balances.length; id++) {
+            if (balances[id] == null) continue;
+            final int currencyId = id;
+            balances[id].forEachPlayer((player, balance) -> consumer.accept(currencyId, AccountKey.of(player), balance));
+            for (Map.Entry<AccountKey, BigDecimal> entry : balances[id].accounts.entrySet()) consumer.accept(id, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public HashMap<String, Currency> loadCurrencies() {
+        return new HashMap<>(currencies);
+    }
+
+    @Override
+    public synchronized boolean createCurrency(@Nullable String id, @NotNull String singularName, @NotNull String pluralName, @NotNull String currencySymbol, char decimalSymbol, @Nullable Character groupingSymbol, int precision, boolean isPrimary) {
+        final int currencyId = nextCurrencyId;
+        final String identifier = id != null ? id : String.valueOf(currencyId);
+        if (currencies.containsKey(identifier)) return false;
+        final List<at.hugo.bukkit.plugin.tresuryprovider.Currency> primary = currencies.values().stream().filter(Currency::isPrimary).toList();
+        final CurrencyBalances[] previousBalances = balances;
+        if (isPrimary) primary.forEach(currency -> currency.setPrimary(false));
+        restoreCurrency(currencyId, new at.hugo.bukkit.plugin.tresuryprovider.Currency(identifier, currencySymbol, decimalSymbol, groupingSymbol, singularName, pluralName, precision, isPrimary));
+        return persistMetadata(() -> {
+            currencies.remove(identifier);
+            currencyIds.remove(identifier);
+            balances = previousBalances;
+            nextCurrencyId = currencyId;
+            primary.forEach(currency -> currency.setPrimary(true));
+        });
+    }
+
+    @Override
+    public synchronized void deleteCurrency(String identifier) {
+        final Integer id = currencyIds.getId(identifier);
+        if (id == null) return;
+        final at.hugo.bukkit.plugin.tresuryprovider.Currency currency = currencies.remove(identifier);
+        final HashMap<String, HashMap<String, BigDecimal>> rates = exchangeRates.getStoredRates();
+        final CurrencyBalances[] previousBalances = balances;
+        currencyIds.remove(identifier);
+        exchangeRates.removeCurrency(identifier);
+        final CurrencyBalances[] shrunk = balances.clone();
+        shrunk[id] = null;
+        balances = shrunk;
+        persistMetadata(() -> {
+            balances = previousBalances;
+            currencyIds.put(identifier, id);
+            currencies.put(identifier, currency);
+            exchangeRates.load(rates);
+        });
+    }
+
+    @Override
+    public synchronized boolean setPrimaryCurrency(String identifier) {
+        final at.hugo.bukkit.plugin.tresuryprovider.Currency primary = currencies.get(identifier);
+        if (primary == null) return false;
+        final List<at.hugo.bukkit.plugin.tresuryprovider.Currency> previous = currencies.values().stream().filter(Currency::isPrimary).toList();
+        currencies.values().forEach(currency -> currency.setPrimary(currency == primary));
+        return persistMetadata(() -> currencies.values().forEach(currency -> currency.setPrimary(previous.contains(currency))));
+    }
+
+    private @Nullable CurrencyBalances balancesOf(Currency currency) {
+        final Integer id = currencyIds.getId(currency.getIdentifier());
+        final CurrencyBalances[] balances = this.balances;
+        return id == null || id >= balances.length ? null : balances[id];
+    }
+
+    private Optional<BigDecimal> change(AccountKey account, Currency currency, BigDecimal amount, boolean set) {
+        final Integer id = currencyIds.getId(currency.getIdentifier());
+        final CurrencyBalances balances = balancesOf(currency);
+        if (id == null || balances == null) return Optional.empty();
+        try {
+            accountWriting(account);
+            synchronized (writeLock(id, account)) {
+                return Optional.ofNullable(balances.compute(account, previous -> {
+                    final BigDecimal balance = balances.scale(set || previous == null ? amount : previous.add(amount));
+                    written(id, account, balance);
+                    return balance;
+                }));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public @Nullable BigDecimal getBalance(@NotNull AccountKey account, @NotNull Currency currency) {
+        final CurrencyBalances balances = balancesOf(currency);
+        return balances == null ? null : balances.get(account);
+    }
+
+    @Override
+    public HashMap<String, BigDecimal> getBalances(@NotNull AccountKey account) {
+        final HashMap<String, BigDecimal> result = new HashMap<>();
+        final CurrencyBalances[] balances = this.balances;
+        for (int id = 0; id < balances.length; id++) {
+            if (balances[id] == null) continue;
+            final BigDecimal balance = balances[id].get(account);
+            final String identifier = currencyIds.getIdentifier(id);
+            if (balance != null && identifier != null) result.put(identifier, balance);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean setBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount) {
+        return change(account, currency, amount, true).isPresent();
+    }
+
+    @Override
+    public CompletableFuture<Optional<BigDecimal>> queueChangeBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount, @Nullable EconomyTransaction transaction) {
+        return CompletableFuture.completedFuture(change(account, currency, amount, false));
+    }
+
+    @Override
+    public CompletableFuture<Optional<BigDecimal>> queueSetBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount, @Nullable EconomyTransaction transaction) {
+        return CompletableFuture.completedFuture(change(account, currency, amount, true));
+    }
+
+    @Override
+    public void writeBatch(@NotNull List<WriteQueue.PendingWrite> batch, @NotNull List<TransactionJournal.Entry> entries) {
+        for (WriteQueue.PendingWrite write : batch)
+            write.future().complete(change(write.account(), write.currency(), write.amount(), write.set()));
+    }
+
+    @Override
+    public TransferResult transfer(@NotNull AccountKey from, @NotNull AccountKey to, @NotNull Currency currency, @NotNull BigDecimal amount, boolean requireFunds, @Nullable EconomyTransaction withdrawal, @Nullable EconomyTransaction deposit) {
+        return move(from, currency, amount, to, currency, amount, requireFunds);
+    }
+
+    @Override
+    public TransferResult exchange(@NotNull AccountKey account, @NotNull Currency from, @NotNull BigDecimal amount, @NotNull Currency to, @NotNull BigDecimal converted, boolean requireFunds, @Nullable EconomyTransaction withdrawal, @Nullable EconomyTransaction deposit) {
+        return move(account, from, amount, account, to, converted, requireFunds);
+    }
+
+    /**
+     * Withdraws from the paying balance and deposits into the receiving one. Both balances are locked at once, so
+     * {@link #balancesMoved} gets both new balances before either of them changes and nothing changes if it fails.
+     */
+    private TransferResult move(AccountKey from, Currency fromCurrency, BigDecimal amount, AccountKey to, Currency toCurrency, BigDecimal deposited, boolean requireFunds) {
+        final Integer fromId = currencyIds.getId(fromCurrency.getIdentifier());
+        final Integer toId = currencyIds.getId(toCurrency.getIdentifier());
+        final CurrencyBalances fromBalances = balancesOf(fromCurrency);
+        final CurrencyBalances toBalances = balancesOf(toCurrency);
+        if (fromId == null || toId == null || fromBalances == null || toBalances == null) return TransferResult.failed();
+        try {
+            accountWriting(from);
+            accountWriting(to);
+            final int fromLock = writeLockIndex(fromId, from);
+            final int toLock = writeLockIndex(toId, to);
+            synchronized (writeLocks[Math.min(fromLock, toLock)]) {
+                synchronized (writeLocks[Math.max(fromLock, toLock)]) {
+                    final BigDecimal paid = fromBalances.get(from);
+                    final BigDecimal current = paid == null ? BigDecimal.ZERO : paid;
+                    if (requireFunds && current.compareTo(amount) < 0) return TransferResult.insufficientFunds();
+                    final BigDecimal fromBalance = fromBalances.scale(current.subtract(amount));
+                    final BigDecimal received = fromId.equals(toId) && from.equals(to) ? fromBalance : toBalances.get(to);
+                    final BigDecimal toBalance = toBalances.scale(received == null ? deposited : received.add(deposited));
+                    balancesMoved(fromId, from, fromBalance, toId, to, toBalance);
+                    fromBalances.compute(from, previous -> fromBalance);
+                    toBalances.compute(to, previous -> toBalance);
+                    notifyListener(fromId, from, fromBalance);
+                    notifyListener(toId, to, toBalance);
+                    return TransferResult.success(fromBalance, toBalance);
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return TransferResult.failed();
+        }
+    }
+
+    @Override
+    public Map<AccountKey, Optional<BigDecimal>> changeBalances(@NotNull Currency currency, @NotNull Map<AccountKey, BigDecimal> amounts, boolean requireFunds, @Nullable Function<AccountKey, EconomyTransaction> transactions) {
+        final LinkedHashMap<AccountKey, Optional<BigDecimal>> results = new LinkedHashMap<>();
+        final Integer id = currencyIds.getId(currency.getIdentifier());
+        final CurrencyBalances balances = balancesOf(currency);
+        for (Map.Entry<AccountKey, BigDecimal> entry : amounts.entrySet()) {
+            final AccountKey account = entry.getKey();
+            if (id == null || balances == null) {
+                results.put(account, Optional.empty());
+                continue;
+            }
+            final boolean[] skipped = {false};
+            try {
+                accountWriting(account);
+                final BigDecimal balance;
+                synchronized (writeLock(id, account)) {
+                    balance = balances.compute(account, previous -> {
+                        final BigDecimal next = balances.scale(previous == null ? entry.getValue() : previous.add(entry.getValue()));
+                        if (requireFunds && entry.getValue().signum() < 0 && next.signum() < 0) {
+                            skipped[0] = true;
+                            return previous;
+                        }
+                        written(id, account, next);
+                        return next;
+                    });
+                }
+                results.put(account, skipped[0] ? Optional.empty() : Optional.of(balance));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                results.put(account, Optional.empty());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public boolean deleteAccount(@NotNull AccountKey account) {
+        final CurrencyBalances[] balances = this.balances;
+        try {
+            for (int id = 0; id < balances.length; id++) {
+                if (balances[id] == null) continue;
+                final int currencyId = id;
+                synchronized (writeLock(id, account)) {
+                    balances[id].compute(account, previous -> {
+                        if (previous != null) written(currencyId, account, null);
+                        return null;
+                    });
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (account instanceof AccountKey.NonPlayer nonPlayer) {
+            synchronized (this) {
+                final HashMap<UUID, Integer> members = new HashMap<>();
+                for (UUID member : permissions.getMembers(nonPlayer.identifier()))
+                    members.put(member, permissions.get(nonPlayer.identifier(), member));
+                if (permissions.removeAccount(nonPlayer.identifier()))
+                    return persistMetadata(() -> members.forEach((member, mask) -> permissions.put(nonPlayer.identifier(), member, mask)));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Collection<String> getCurrenciesOf(@NotNull AccountKey account) {
+        final HashSet<String> result = new HashSet<>();
+        final CurrencyBalances[] balances = this.balances;
+        for (int id = 0; id < balances.length; id++) {
+            if (balances[id] == null || balances[id].get(account) == null) continue;
+            final String identifier = currencyIds.getIdentifier(id);
+            if (identifier != null) result.add(identifier);
+        }
+        return result;
+    }
+
+    @Override
+    public LinkedHashMap<UUID, BigDecimal> getTopBalances(@NotNull Currency currency, int limit) {
+        final LinkedHashMap<UUID, BigDecimal> result = new LinkedHashMap<>();
+        final CurrencyBalances balances = balancesOf(currency);
+        if (balances == null || limit <= 0) return result;
+        final PriorityQueue<Map.Entry<UUID, BigDecimal>> top = new PriorityQueue<>(limit + 1, Map.Entry.comparingByValue());
+        balances.forEachPlayer((player, balance) -> {
+            if (top.size() == limit && top.peek().getValue().compareTo(balance) >= 0) return;
+            top.add(Map.entry(player, balance));
+            if (top.size() > limit) top.poll();
+        });
+        final ArrayList<Map.Entry<UUID, BigDecimal>> sorted = new ArrayList<>(top);
+        sorted.sort(Map.Entry.<UUID, BigDecimal>comparingByValue().reversed());
+        for (Map.Entry<UUID, BigDecimal> entry : sorted) result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return false;
+    }
+
+    @Override
+    public Optional<Collection<EconomyTransaction>> retrieveTransactionHistory(@NotNull AccountKey account, int transactionCount, @NotNull Instant from, @NotNull Instant to, @NotNull Function<String, Optional<Currency>> currencies) {
+        return Optional.empty();
+    }
+
+    @Override
+    public ExchangeRates getExchangeRates() {
+        return exchangeRates;
+    }
+
+    @Override
+    public synchronized boolean setExchangeRate(@NotNull String from, @NotNull String to, @Nullable BigDecimal rate) {
+        if (!currencies.containsKey(from) || !currencies.containsKey(to)) return false;
+        final HashMap<String, BigDecimal> stored = exchangeRates.getStoredRates().get(from);
+        final BigDecimal previous = stored == null ? null : stored.get(to);
+        exchangeRates.put(from, to, rate);
+        return persistMetadata(() -> exchangeRates.put(from, to, previous));
+    }
+
+    @Override
+    public Collection<UUID> getMembers(String id) {
+        return permissions.getMembers(id);
+    }
+
+    @Override
+    public synchronized boolean setPermissions(UUID player, String identifier, boolean value, AccountPermission... permissions) {
+        final int mask = PermissionIndex.mask(permissions);
+        final int previous = this.permissions.get(identifier, player);
+        this.permissions.update(identifier, player, current -> value ? current | mask : current & ~mask);
+        return persistMetadata(() -> this.permissions.put(identifier, player, previous));
+    }
+
+    @Override
+    public HashMap<AccountPermission, TriState> getPermissions(UUID player, String identifier) {
+        return PermissionIndex.toMap(permissions.get(identifier, player));
+    }
+
+    @Override
+    public HashMap<UUID, HashMap<AccountPermission, TriState>> getPermissionMap(String identifier) {
+        return permissions.getPermissionMap(identifier);
+    }
+
+    @Override
+    public boolean hasPermission(UUID player, String identifier, AccountPermission... permissions) {
+        return this.permissions.has(identifier, player, PermissionIndex.mask(permissions));
+    }
+
+    @Override
+    public Collection<String> getAccountsOf(UUID player) {
+        return permissions.getAccountsOf(player);
+    }
+
+    @Override
+    public Collection<String> getAccountsOf(UUID player, AccountPermission... permissions) {
+        return this.permissions.getAccountsOf(player, PermissionIndex.mask(permissions));
+    }
+
+    @Override
+    public Collection<UUID> getPlayerIds() {
+        final HashSet<UUID> result = new HashSet<>();
+        for (CurrencyBalances balances : this.balances) {
+            if (balances == null) continue;
+            balances.forEachPlayer((player, balance) -> result.add(player));
+        }
+        return result;
+    }
+
+    @Override
+    public Collection<AccountKey> getAccountsWith(@NotNull Currency currency) {
+        final ArrayList<AccountKey> result = new ArrayList<>();
+        final CurrencyBalances balances = balancesOf(currency);
+        if (balances == null) return result;
+        balances.forEachPlayer((player, balance) -> result.add(AccountKey.of(player)));
+        result.addAll(balances.accounts.keySet());
+        return result;
+    }
+
+    @Override
+    public Collection<String> getAccountIds() {
+        final HashSet<String> result = new HashSet<>();
+        for (CurrencyBalances balances : this.balances) {
+            if (balances == null) continue;
+            for (AccountKey account : balances.accounts.keySet()) result.add(((AccountKey.NonPlayer) account).identifier());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Gets every stored balance, see {@link #forEachBalance(BalanceConsumer)}
+     */
+    @FunctionalInterface
+    protected interface BalanceConsumer {
+        void accept(int currencyId, @NotNull AccountKey account, @NotNull BigDecimal balance);
+    }
+
+    /**
+     * The balances of one currency. Player balances are kept off heap as scaled longs, the few that don't fit into
+     * a long are marked in the table and kept in an overflow map. Non player accounts are rare and stay in a map.
+     */
+    private static final class CurrencyBalances {
+        private static final long OVERFLOW = OffHeapBalanceTable.ABSENT + 1;
+        private final int precision;
+        private final OffHeapBalanceTable players = new OffHeapBalanceTable();
+        private final ConcurrentHashMap<UUID, BigDecimal> overflow = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<AccountKey, BigDecimal> accounts = new ConcurrentHashMap<>();
+
+        private CurrencyBalances(int precision) {
+            this.precision = precision;
+        }
+
+        private BigDecimal scale(BigDecimal amount) {
+            return amount.setScale(precision, RoundingMode.DOWN);
+        }
+
+        private @Nullable BigDecimal get(AccountKey account) {
+            if (!(account instanceof AccountKey.Player player)) return accounts.get(account);
+            final UUID uuid = player.uuid();
+            return toBalance(uuid, players.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        }
+
+        /**
+         * Replaces a balance atomically
+         *
+         * @param update gets the current balance or null and returns the new balance, which has to be scaled, or null to remove it
+         * @return the new balance
+         */
+        private @Nullable BigDecimal compute(AccountKey account, Function<@Nullable BigDecimal, @Nullable BigDecimal> update) {
+            if (!(account instanceof AccountKey.Player player)) return accounts.compute(account, (key, previous) -> update.apply(previous));
+            final UUID uuid = player.uuid();
+            final BigDecimal[] result = new BigDecimal[1];
+            players.compute(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), previous -> {
+                final BigDecimal balance = update.apply(toBalance(uuid, previous));
+                result[0] = balance;
+                if (balance == null) {
+                    if (previous == OVERFLOW) overflow.remove(uuid);
+                    return OffHeapBalanceTable.ABSENT;
+                }
+                final BigInteger unscaled = balance.unscaledValue();
+                if (unscaled.bitLength() < Long.SIZE && unscaled.longValue() > OVERFLOW) {
+                    if (previous == OVERFLOW) overflow.remove(uuid);
+                    return unscaled.longValue();
+                }
+                overflow.put(uuid, balance);
+                return OVERFLOW;
+            });
+            return result[0];
+        }
+
+        private void forEachPlayer(BiConsumer<UUID, BigDecimal> consumer) {
+            players.forEach((most, least, value) -> {
+                final UUID uuid = new UUID(most, least);
+                consumer.accept(uuid, toBalance(uuid, value));
+            });
+        }
+
+        private @Nullable BigDecimal toBalance(UUID player, long value) {
+            if (value == OffHeapBalanceTable.ABSENT) return null;
+            return value == OVERFLOW ? overflow.get(player) : BigDecimal.valueOf(value, precision);
+        }
+    }
+}
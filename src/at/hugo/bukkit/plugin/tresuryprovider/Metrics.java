@@ -0,0 +1,135 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms of the economy by name. Names are dotted, the first part says where they
+ * are recorded: {@code api} for the Treasury API, {@code sqlite} for the database. Counting and recording don't lock,
+ * components that record often should keep the counter or histogram instead of looking it up every time.
+ */
+public class Metrics {
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final EnumMap<EconomyTransactionType, LatencyHistogram> transactionTimers = new EnumMap<>(EconomyTransactionType.class);
+
+    private long lastSummary = System.nanoTime();
+    private Map<String, LatencyHistogram> lastTimers = new HashMap<>();
+    private Map<String, Long> lastCounters = new HashMap<>();
+
+    public Metrics() {
+        for (EconomyTransactionType type : EconomyTransactionType.values())
+            transactionTimers.put(type, timer("api.doTransaction." + type.name().toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * @return the counter with that name, it gets created if it doesn't exist yet
+     */
+    public LongAdder counter(@NotNull final String name) {
+        final LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    public void increment(@NotNull final String name) {
+        counter(name).increment();
+    }
+
+    /**
+     * @return the latency histogram with that name, it gets created if it doesn't exist yet
+     */
+    public LatencyHistogram timer(@NotNull final String name) {
+        final LatencyHistogram timer = timers.get(name);
+        return timer != null ? timer : timers.computeIfAbsent(name, ignored -> new LatencyHistogram());
+    }
+
+    /**
+     * @return the latency histogram of Treasury API transactions of that type
+     */
+    public LatencyHistogram transactionTimer(@NotNull final EconomyTransactionType type) {
+        return transactionTimers.get(type);
+    }
+
+    /**
+     * Reports a value that is read when the metrics are shown, like the size of a queue. A gauge with the same name
+     * gets replaced.
+     */
+    public void gauge(@NotNull final String name, @NotNull final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Records how long an asynchronous operation takes until its future completes, successfully or not
+     *
+     * @param timer     the histogram the latency is recorded in
+     * @param operation starts the operation
+     * @return a future that completes like the one of the operation, after the latency got recorded
+     */
+    public <T> CompletableFuture<T> time(@NotNull final LatencyHistogram timer, @NotNull final Supplier<CompletableFuture<T>> operation) {
+        final long start = System.nanoTime();
+        return operation.get().whenComplete((result, throwable) -> timer.record(System.nanoTime() - start));
+    }
+
+    public <T> CompletableFuture<T> time(@NotNull final String name, @NotNull final Supplier<CompletableFuture<T>> operation) {
+        return time(timer(name), operation);
+    }
+
+    /**
+     * @return every counter, gauge and histogram as one line each, sorted by name, latencies in milliseconds
+     */
+    public List<String> report() {
+        final List<String> lines = new ArrayList<>();
+        new TreeMap<>(counters).forEach((name, counter) -> lines.add(name + ": " + counter.sum()));
+        new TreeMap<>(gauges).forEach((name, gauge) -> lines.add(name + ": " + gauge.getAsLong()));
+        new TreeMap<>(timers).forEach((name, timer) -> {
+            final long count = timer.getTotal();
+            if (count > 0) lines.add(name + ": " + count + " calls, " + describe(timer));
+        });
+        return lines;
+    }
+
+    /**
+     * Sums up what happened since the previous summary in one line: the Treasury API calls and their latencies,
+     * database failures and busy retries, and the current gauges
+     */
+    public synchronized String summarize() {
+        final long now = System.nanoTime();
+        final double seconds = Math.max(1, now - lastSummary) / 1e9;
+        final Map<String, LatencyHistogram> currentTimers = new HashMap<>();
+        final Map<String, Long> currentCounters = new HashMap<>();
+        timers.forEach((name, timer) -> currentTimers.put(name, timer.copy()));
+        counters.forEach((name, counter) -> currentCounters.put(name, counter.sum()));
+
+        final LatencyHistogram api = new LatencyHistogram();
+        final LatencyHistogram sqlite = new LatencyHistogram();
+        currentTimers.forEach((name, timer) -> {
+            final LatencyHistogram earlier = lastTimers.get(name);
+            final LatencyHistogram interval = earlier != null ? timer.since(earlier) : timer;
+            if (name.startsWith("api.")) api.add(interval);
+            else if (name.startsWith("sqlite.")) sqlite.add(interval);
+        });
+        final StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "Last %.0fs: %d api calls (%.1f/s), %s; %d sqlite operations, %s",
+                seconds, api.getTotal(), api.getTotal() / seconds, describe(api), sqlite.getTotal(), describe(sqlite)));
+        for (String counter : List.of("sqlite.errors", "sqlite.busy.retries", "sqlite.busy.failures"))
+            summary.append("; ").append(counter).append(' ').append(currentCounters.getOrDefault(counter, 0L) - lastCounters.getOrDefault(counter, 0L));
+        new TreeMap<>(gauges).forEach((name, gauge) -> summary.append("; ").append(name).append(' ').append(gauge.getAsLong()));
+
+        lastSummary = now;
+        lastTimers = currentTimers;
+        lastCounters = currentCounters;
+        return summary.toString();
+    }
+
+    private static String describe(final LatencyHistogram timer) {
+        return String.format(Locale.ROOT, "p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                timer.getValueAt(0.5) / 1e6, timer.getValueAt(0.99) / 1e6, timer.getValueAt(0.999) / 1e6, timer.getMax() / 1e6);
+    }
+}
@@ -11,15 +11,17 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.Instant;
 import java.time.temporal.Temporal;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 
 public class NonPlayerAccount implements me.lokka30.treasury.api.economy.account.NonPlayerAccount {
-    private final SimpleTreasuryEconomyPlugin plugin;
+    private final EconomyContext plugin;
     private final String identifier;
 
-    public NonPlayerAccount(SimpleTreasuryEconomyPlugin plugin, String identifier) {
+    public NonPlayerAccount(EconomyContext plugin, String identifier) {
         this.plugin = plugin;
         this.identifier = identifier;
     }
@@ -42,91 +44,97 @@ public class NonPlayerAccount implements me.lokka30.treasury.api.economy.account
 
     @Override
     public CompletableFuture<Response<BigDecimal>> retrieveBalance(@NotNull Currency currency) {
-        return CompletableFuture.supplyAsync(() -> {
-            BigDecimal bigDecimal = plugin.getDatabase().getBalance(this.getIdentifier(), currency);
-            if (bigDecimal != null) return Response.success(bigDecimal);
-            if (plugin.getDatabase().setBalance(this.getIdentifier(), currency, BigDecimal.ZERO))
-                return Response.success(BigDecimal.ZERO);
-            return Response.failure(EconomyFailureReason.ACCOUNT_NOT_FOUND);
-        });
+        final AccountKey key = AccountKey.of(getIdentifier());
+        return EconomyCallEvent.track(EconomyCallEvent.start("retrieveBalance", key, currency.getIdentifier()),
+                plugin.getMetrics().time("api.retrieveBalance", () -> plugin.getBalanceManager().retrieveBalance(key, currency, BigDecimal.ZERO)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.ACCOUNT_NOT_FOUND)))));
     }
 
     @Override
     public CompletableFuture<Response<BigDecimal>> doTransaction(@NotNull EconomyTransaction economyTransaction) {
+        final Metrics metrics = plugin.getMetrics();
+        return EconomyCallEvent.track(EconomyCallEvent.startTransaction("doTransaction", AccountKey.of(getIdentifier()), economyTransaction),
+                metrics.time(metrics.transactionTimer(economyTransaction.getTransactionType()), () -> transaction(economyTransaction)));
+    }
+
+    private CompletableFuture<Response<BigDecimal>> transaction(@NotNull EconomyTransaction economyTransaction) {
+        final Optional<Currency> currency = plugin.getEconomy().findCurrency(economyTransaction.getCurrencyID());
+        if (currency.isEmpty())
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("Unknown currency " + economyTransaction.getCurrencyID())));
+        final AccountKey key = AccountKey.of(getIdentifier());
         switch (economyTransaction.getTransactionType()) {
             case SET:
-                return CompletableFuture.supplyAsync(() -> {
-                    if (plugin.getDatabase().setBalance(getIdentifier(), economyTransaction.getCurrencyID(), economyTransaction.getTransactionAmount())) {
-                        return Response.success(economyTransaction.getTransactionAmount());
-                    }
-                    return Response.failure(EconomyFailureReason.OTHER_FAILURE);
-                });
+                return plugin.getBalanceManager().setBalance(key, currency.get(), economyTransaction.getTransactionAmount(), economyTransaction)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)));
             case DEPOSIT:
-                return CompletableFuture.supplyAsync(() -> {
-                    var result = plugin.getDatabase().changeBalance(getIdentifier(), economyTransaction.getCurrencyID(), economyTransaction.getTransactionAmount());
-                    return result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE));
-                });
+                return plugin.getBalanceManager().changeBalance(key, currency.get(), economyTransaction.getTransactionAmount(), economyTransaction)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)));
             case WITHDRAWAL:
-                return CompletableFuture.supplyAsync(() -> {
-                    var result = plugin.getDatabase().changeBalance(getIdentifier(), economyTransaction.getCurrencyID(), economyTransaction.getTransactionAmount().negate());
-                    return result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE));
-                });
+                return plugin.getBalanceManager().changeBalance(key, currency.get(), economyTransaction.getTransactionAmount().negate(), economyTransaction)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)));
         }
         return CompletableFuture.completedFuture(Response.failure(FailureReason.of("shouldn't have happened")));
     }
 
     @Override
     public CompletableFuture<Response<TriState>> deleteAccount() {
-        return CompletableFuture.supplyAsync(() -> Response.success(TriState.fromBoolean(plugin.getDatabase().deleteAccount(getIdentifier()))));
+        return plugin.getBalanceManager().deleteAccount(AccountKey.of(getIdentifier())).thenApply(deleted -> Response.success(TriState.fromBoolean(deleted)));
     }
 
     @Override
     public CompletableFuture<Response<Collection<String>>> retrieveHeldCurrencies() {
-        return CompletableFuture.supplyAsync(() -> Response.success(plugin.getDatabase().getCurrenciesOf(getIdentifier())));
+        return plugin.getBalanceManager().retrieveHeldCurrencies(AccountKey.of(getIdentifier())).thenApply(Response::success);
     }
 
     @Override
     public CompletableFuture<Response<Collection<EconomyTransaction>>> retrieveTransactionHistory(int transactionCount, @NotNull Temporal from, @NotNull Temporal to) {
-        return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.OTHER_FAILURE));
+        final Instant fromInstant;
+        final Instant toInstant;
+        try {
+            fromInstant = Instant.from(from);
+            toInstant = Instant.from(to);
+        } catch (DateTimeException e) {
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("from and to have to be instants in time")));
+        }
+        final AccountKey key = AccountKey.of(getIdentifier());
+        return EconomyCallEvent.track(EconomyCallEvent.start("retrieveTransactionHistory", key, null),
+                plugin.getMetrics().time("api.retrieveTransactionHistory", () -> plugin.getBalanceManager().retrieveTransactionHistory(key, transactionCount, fromInstant, toInstant, plugin.getEconomy()::findCurrency)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)))));
     }
 
     @Override
     public CompletableFuture<Response<Collection<UUID>>> retrieveMemberIds() {
-        return CompletableFuture.supplyAsync(() -> Response.success(plugin.getDatabase().getMembers(getIdentifier())));
+        return CompletableFuture.completedFuture(Response.success(plugin.getStorage().getMembers(getIdentifier())));
     }
 
     @Override
     public CompletableFuture<Response<TriState>> isMember(@NotNull UUID player) {
-        return CompletableFuture.supplyAsync(() -> Response.success(TriState.fromBoolean(retrieveMemberIds().join().getResult().contains(player))));
+        return retrieveMemberIds().thenApply(members -> Response.success(TriState.fromBoolean(members.getResult().contains(player))));
     }
 
     @Override
     public CompletableFuture<Response<TriState>> setPermission(@NotNull UUID player, @NotNull TriState permissionValue, @NotNull AccountPermission @NotNull ... permissions) {
-        return CompletableFuture.supplyAsync(() -> {
-            for (AccountPermission permission : permissions) {
-                plugin.getDatabase().setPermission(player, getIdentifier(), TriState.TRUE.equals(permissionValue), permission);
-            }
-            return Response.success(TriState.TRUE);
-        });
+        return plugin.getMetrics().time("api.setPermission", () -> plugin.getExecutor().supply(AccountKey.of(getIdentifier()), () -> plugin.getStorage().setPermissions(player, getIdentifier(), TriState.TRUE.equals(permissionValue), permissions)
+                ? Response.success(TriState.TRUE)
+                : Response.failure(EconomyFailureReason.OTHER_FAILURE)));
     }
 
     @Override
     public CompletableFuture<Response<Map<AccountPermission, TriState>>> retrievePermissions(@NotNull UUID player) {
-        return CompletableFuture.supplyAsync(() -> Response.success(plugin.getDatabase().getPermissions(player, getIdentifier())));
+        return plugin.getMetrics().time("api.retrievePermissions", () -> CompletableFuture.completedFuture(Response.success(plugin.getStorage().getPermissions(player, getIdentifier()))));
     }
 
     @Override
     public @NotNull CompletableFuture<Response<Map<UUID, Set<Map.Entry<AccountPermission, TriState>>>>> retrievePermissionsMap() {
-        return CompletableFuture.supplyAsync(() -> {
+        return plugin.getMetrics().time("api.retrievePermissionsMap", () -> {
             var result = new HashMap<UUID, Set<Map.Entry<AccountPermission, TriState>>>();
-            plugin.getDatabase().getPermissionMap(getIdentifier()).forEach((key, value) -> result.put(key, value.entrySet()));
-            return Response.success(result);
+            plugin.getStorage().getPermissionMap(getIdentifier()).forEach((key, value) -> result.put(key, value.entrySet()));
+            return CompletableFuture.completedFuture(Response.success(result));
         });
-
     }
 
     @Override
     public CompletableFuture<Response<TriState>> hasPermission(@NotNull UUID player, @NotNull AccountPermission @NotNull ... permissions) {
-        return CompletableFuture.supplyAsync(() -> Response.success(TriState.fromBoolean(plugin.getDatabase().getPermissions(player, getIdentifier()).keySet().containsAll(Arrays.asList(permissions)))));
+        return plugin.getMetrics().time("api.hasPermission", () -> CompletableFuture.completedFuture(Response.success(TriState.fromBoolean(plugin.getStorage().hasPermission(player, getIdentifier(), permissions)))));
     }
 }
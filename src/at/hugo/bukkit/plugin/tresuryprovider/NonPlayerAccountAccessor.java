@@ -8,14 +8,14 @@ import org.jetbrains.annotations.Nullable;
 import java.util.concurrent.CompletableFuture;
 
 public class NonPlayerAccountAccessor extends me.lokka30.treasury.api.economy.account.accessor.NonPlayerAccountAccessor {
-    private final SimpleTreasuryEconomyPlugin plugin;
+    private final EconomyContext plugin;
 
-    public NonPlayerAccountAccessor(SimpleTreasuryEconomyPlugin plugin) {
+    public NonPlayerAccountAccessor(EconomyContext plugin) {
         this.plugin = plugin;
     }
 
     @Override
     protected @NotNull CompletableFuture<Response<NonPlayerAccount>> getOrCreate(@NotNull String identifier, @Nullable String name) {
-        return CompletableFuture.supplyAsync(()->Response.success(new at.hugo.bukkit.plugin.tresuryprovider.NonPlayerAccount(plugin, identifier)));
+        return CompletableFuture.completedFuture(Response.success(new at.hugo.bukkit.plugin.tresuryprovider.NonPlayerAccount(plugin, identifier)));
     }
 }
@@ -0,0 +1,246 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A hash table from player uuids to scaled balances that lives outside the Java heap. Keys are the two {@code long}
+ * halves of the uuid and values are the unscaled {@code long} of the balance, so an entry is three longs in a direct
+ * buffer instead of a map node, a {@link java.util.UUID} and a {@link java.math.BigDecimal} on the heap, and the
+ * garbage collector never has to look at them.
+ * <p>
+ * The table is split into segments with their own lock, a segment uses open addressing with linear probing and
+ * doubles once it is 70% full. A slot takes 24 bytes, with 64 segments that is:
+ * <ul>
+ *     <li>1M accounts: 2M slots, 48 MiB per currency</li>
+ *     <li>10M accounts: 16M slots, 384 MiB per currency</li>
+ * </ul>
+ * A {@code ConcurrentHashMap} with uuid keys and {@code BigDecimal} values takes about 128 bytes per entry on the heap,
+ * 122 MiB for 1M and 1.2 GiB for 10M accounts. Direct memory is limited by {@code -XX:MaxDirectMemorySize}, which
+ * defaults to the maximum heap size.
+ */
+public class OffHeapBalanceTable {
+    /**
+     * Gets passed to and returned from an {@link Update} for a player without a value
+     */
+    public static final long ABSENT = Long.MIN_VALUE;
+    private static final int SLOT_SIZE = 24;
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_SLOTS = 16;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public OffHeapBalanceTable() {
+        for (int i = 0; i < segments.length; i++) segments[i] = new Segment();
+    }
+
+    /**
+     * @param mostSignificantBits  the most significant bits of the uuid
+     * @param leastSignificantBits the least significant bits of the uuid
+     * @return the value or {@link #ABSENT}
+     */
+    public long get(final long mostSignificantBits, final long leastSignificantBits) {
+        final long hash = hash(mostSignificantBits, leastSignificantBits);
+        final Segment segment = segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+        synchronized (segment) {
+            return segment.get(mostSignificantBits, leastSignificantBits, (int) hash);
+        }
+    }
+
+    /**
+     * Replaces the value of a player atomically, other changes of the same player wait until the update returned.
+     * If the update throws, the value stays unchanged.
+     *
+     * @param mostSignificantBits  the most significant bits of the uuid
+     * @param leastSignificantBits the least significant bits of the uuid
+     * @param update               gets the current value or {@link #ABSENT} and returns the new value or {@link #ABSENT} to remove it
+     * @return the new value
+     */
+    public long compute(final long mostSignificantBits, final long leastSignificantBits, @NotNull final Update update) {
+        final long hash = hash(mostSignificantBits, leastSignificantBits);
+        final Segment segment = segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+        synchronized (segment) {
+            return segment.compute(mostSignificantBits, leastSignificantBits, (int) hash, update);
+        }
+    }
+
+    /**
+     * Calls the consumer for every entry, one segment at a time while that segment is locked.
+     * The consumer must not change the table.
+     *
+     * @param consumer gets the halves of the uuid and the value
+     */
+    public void forEach(@NotNull final EntryConsumer consumer) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.forEach(consumer);
+            }
+        }
+    }
+
+    /**
+     * @return the amount of entries
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes of direct memory the table takes
+     */
+    public long getMemoryUsage() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.slots.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    private static long hash(long mostSignificantBits, long leastSignificantBits) {
+        long hash = mostSignificantBits * 0x9E3779B97F4A7C15L ^ leastSignificantBits;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Changes a value, see {@link #compute}
+     */
+    @FunctionalInterface
+    public interface Update {
+        long apply(long previous);
+    }
+
+    /**
+     * Gets every entry, see {@link #forEach}
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long mostSignificantBits, long leastSignificantBits, long value);
+    }
+
+    /**
+     * One part of the table. An empty slot has the key 0, 0, so the nil uuid is kept in its own field.
+     */
+    private static final class Segment {
+        private ByteBuffer slots = allocate(INITIAL_SLOTS);
+        private int mask = INITIAL_SLOTS - 1;
+        private int size = 0;
+        private long nilValue = ABSENT;
+
+        private static ByteBuffer allocate(int slotCount) {
+            return ByteBuffer.allocateDirect(slotCount * SLOT_SIZE).order(ByteOrder.nativeOrder());
+        }
+
+        private int find(long most, long least, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                final int offset = slot * SLOT_SIZE;
+                final long slotMost = slots.getLong(offset);
+                final long slotLeast = slots.getLong(offset + 8);
+                if (slotMost == most && slotLeast == least) return slot;
+                if (slotMost == 0 && slotLeast == 0) return -1 - slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private long get(long most, long least, int hash) {
+            if (most == 0 && least == 0) return nilValue;
+            final int slot = find(most, least, hash);
+            return slot < 0 ? ABSENT : slots.getLong(slot * SLOT_SIZE + 16);
+        }
+
+        private long compute(long most, long least, int hash, Update update) {
+            if (most == 0 && least == 0) {
+                final long value = update.apply(nilValue);
+                if ((nilValue == ABSENT) != (value == ABSENT)) size += value == ABSENT ? -1 : 1;
+                return nilValue = value;
+            }
+            int slot = find(most, least, hash);
+            final long value = update.apply(slot < 0 ? ABSENT : slots.getLong(slot * SLOT_SIZE + 16));
+            if (slot >= 0) {
+                if (value == ABSENT) remove(slot);
+                else slots.putLong(slot * SLOT_SIZE + 16, value);
+            } else if (value != ABSENT) {
+                if ((size + 1) * 10L > (mask + 1) * 7L) {
+                    resize();
+                    slot = find(most, least, hash);
+                }
+                final int offset = (-1 - slot) * SLOT_SIZE;
+                slots.putLong(offset, most);
+                slots.putLong(offset + 8, least);
+                slots.putLong(offset + 16, value);
+                size++;
+            }
+            return value;
+        }
+
+        /**
+         * Removes a slot and moves the slots after it back, so lookups never have to skip removed slots
+         */
+        private void remove(int slot) {
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                final int offset = next * SLOT_SIZE;
+                final long most = slots.getLong(offset);
+                final long least = slots.getLong(offset + 8);
+                if (most == 0 && least == 0) break;
+                final int home = (int) hash(most, least) & mask;
+                // the entry can only move to the hole if its home slot isn't between the hole and where it is now
+                final boolean between = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (between) continue;
+                final int holeOffset = hole * SLOT_SIZE;
+                slots.putLong(holeOffset, most);
+                slots.putLong(holeOffset + 8, least);
+                slots.putLong(holeOffset + 16, slots.getLong(offset + 16));
+                hole = next;
+            }
+            final int holeOffset = hole * SLOT_SIZE;
+            slots.putLong(holeOffset, 0);
+            slots.putLong(holeOffset + 8, 0);
+            slots.putLong(holeOffset + 16, 0);
+            size--;
+        }
+
+        private void resize() {
+            final ByteBuffer old = slots;
+            final int oldSlots = mask + 1;
+            slots = allocate(oldSlots * 2);
+            mask = oldSlots * 2 - 1;
+            for (int slot = 0; slot < oldSlots; slot++) {
+                final int offset = slot * SLOT_SIZE;
+                final long most = old.getLong(offset);
+                final long least = old.getLong(offset + 8);
+                if (most == 0 && least == 0) continue;
+                final int target = -1 - find(most, least, (int) hash(most, least));
+                final int targetOffset = target * SLOT_SIZE;
+                slots.putLong(targetOffset, most);
+                slots.putLong(targetOffset + 8, least);
+                slots.putLong(targetOffset + 16, old.getLong(offset + 16));
+            }
+        }
+
+        private void forEach(EntryConsumer consumer) {
+            if (nilValue != ABSENT) consumer.accept(0, 0, nilValue);
+            for (int slot = 0; slot <= mask; slot++) {
+                final int offset = slot * SLOT_SIZE;
+                final long most = slots.getLong(offset);
+                final long least = slots.getLong(offset + 8);
+                if (most != 0 || least != 0) consumer.accept(most, least, slots.getLong(offset + 16));
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.economy.account.AccountPermission;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The permissions players have on non player accounts, kept in memory so permission checks never wait for the storage.
+ * The permissions of one player on one account are a single bitmask, the bit {@code 1 << ordinal} stands for the
+ * {@link AccountPermission} with that ordinal. A player without any permission is not stored.
+ * <p>
+ * Next to the members of every account the index keeps the accounts of every player, so looking up the accounts
+ * a player is a member of only touches those accounts instead of every account there is.
+ */
+public class PermissionIndex {
+    private static final AccountPermission[] PERMISSIONS = AccountPermission.values();
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<UUID, Integer>> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, Set<String>> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * @param permissions the permissions to combine
+     * @return the bitmask of the permissions
+     */
+    public static int mask(@NotNull final AccountPermission... permissions) {
+        int mask = 0;
+        for (AccountPermission permission : permissions) mask |= 1 << permission.ordinal();
+        return mask;
+    }
+
+    /**
+     * @param mask a bitmask of permissions
+     * @return every permission in the bitmask mapped to {@link TriState#TRUE}
+     */
+    public static HashMap<AccountPermission, TriState> toMap(final int mask) {
+        final HashMap<AccountPermission, TriState> result = new HashMap<>();
+        for (AccountPermission permission : PERMISSIONS) {
+            if ((mask & (1 << permission.ordinal())) != 0) result.put(permission, TriState.TRUE);
+        }
+        return result;
+    }
+
+    /**
+     * @param account the identifier of the non player account
+     * @param player  the player to look up
+     * @return the bitmask of the player's permissions on the account, 0 if there are none
+     */
+    public int get(@NotNull final String account, @NotNull final UUID player) {
+        final ConcurrentHashMap<UUID, Integer> members = accounts.get(account);
+        final Integer mask = members == null ? null : members.get(player);
+        return mask == null ? 0 : mask;
+    }
+
+    /**
+     * @param account the identifier of the non player account
+     * @param player  the player to look up
+     * @param mask    the bitmask of the permissions to check
+     * @return whether the player has all permissions of the bitmask on the account
+     */
+    public boolean has(@NotNull final String account, @NotNull final UUID player, final int mask) {
+        return (get(account, player) & mask) == mask;
+    }
+
+    /**
+     * Replaces the permissions of a player on an account
+     *
+     * @param mask the new bitmask, 0 removes the player from the account
+     */
+    public void put(@NotNull final String account, @NotNull final UUID player, final int mask) {
+        update(account, player, previous -> mask);
+    }
+
+    /**
+     * Changes the permissions of a player on an account atomically
+     *
+     * @param update gets the current bitmask and returns the new one, 0 removes the player from the account
+     * @return the new bitmask
+     */
+    public int update(@NotNull final String account, @NotNull final UUID player, @NotNull final IntUnaryOperator update) {
+        final int[] result = new int[1];
+        accounts.compute(account, (id, members) -> {
+            if (members == null) members = new ConcurrentHashMap<>();
+            members.compute(player, (uuid, previous) -> {
+                result[0] = update.applyAsInt(previous == null ? 0 : previous);
+                if (result[0] == 0) removeMembership(player, account);
+                else addMembership(player, account);
+                return result[0] == 0 ? null : result[0];
+            });
+            return members.isEmpty() ? null : members;
+        });
+        return result[0];
+    }
+
+    /**
+     * Removes every permission on an account
+     *
+     * @param account the identifier of the non player account
+     * @return whether anyone had a permission on the account
+     */
+    public boolean removeAccount(@NotNull final String account) {
+        final boolean[] removed = {false};
+        accounts.computeIfPresent(account, (id, members) -> {
+            members.keySet().forEach(player -> removeMembership(player, account));
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    private void addMembership(UUID player, String account) {
+        // the set is changed inside compute, so it can't get added to while another thread drops it for being empty
+        memberships.compute(player, (uuid, memberOf) -> {
+            if (memberOf == null) memberOf = ConcurrentHashMap.newKeySet();
+            memberOf.add(account);
+            return memberOf;
+        });
+    }
+
+    private void removeMembership(UUID player, String account) {
+        memberships.computeIfPresent(player, (uuid, memberOf) -> {
+            memberOf.remove(account);
+            return memberOf.isEmpty() ? null : memberOf;
+        });
+    }
+
+    /**
+     * Removes every permission
+     */
+    public void clear() {
+        accounts.clear();
+        memberships.clear();
+    }
+
+    /**
+     * @param player the player to look up
+     * @return the identifiers of all accounts the player has a permission on
+     */
+    public HashSet<String> getAccountsOf(@NotNull final UUID player) {
+        final Set<String> memberOf = memberships.get(player);
+        return memberOf == null ? new HashSet<>() : new HashSet<>(memberOf);
+    }
+
+    /**
+     * @param player the player to look up
+     * @param mask   the bitmask of the permissions to check
+     * @return the identifiers of all accounts the player has all permissions of the bitmask on
+     */
+    public HashSet<String> getAccountsOf(@NotNull final UUID player, final int mask) {
+        final HashSet<String> result = new HashSet<>();
+        final Set<String> memberOf = memberships.get(player);
+        if (memberOf == null) return result;
+        for (String account : memberOf) {
+            if (has(account, player, mask)) result.add(account);
+        }
+        return result;
+    }
+
+    /**
+     * @param account the identifier of the non player account
+     * @return all players with a permission on the account
+     */
+    public HashSet<UUID> getMembers(@NotNull final String account) {
+        final ConcurrentHashMap<UUID, Integer> members = accounts.get(account);
+        return members == null ? new HashSet<>() : new HashSet<>(members.keySet());
+    }
+
+    /**
+     * @param account the identifier of the non player account
+     * @return the permissions of every member of the account
+     */
+    public HashMap<UUID, HashMap<AccountPermission, TriState>> getPermissionMap(@NotNull final String account) {
+        final HashMap<UUID, HashMap<AccountPermission, TriState>> result = new HashMap<>();
+        final ConcurrentHashMap<UUID, Integer> members = accounts.get(account);
+        if (members != null) members.forEach((player, mask) -> result.put(player, toMap(mask)));
+        return result;
+    }
+
+    /**
+     * Calls the consumer for every player with a permission on an account
+     */
+    public void forEach(@NotNull final EntryConsumer consumer) {
+        accounts.forEach((account, members) -> members.forEach((player, mask) -> consumer.accept(account, player, mask)));
+    }
+
+    /**
+     * Gets every entry, see {@link #forEach}
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(@NotNull String account, @NotNull UUID player, int mask);
+    }
+}
@@ -9,16 +9,35 @@ import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
 import org.jetbrains.annotations.NotNull;
 
 import java.math.BigDecimal;
+import java.time.DateTimeException;
+import java.time.Instant;
 import java.time.temporal.Temporal;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 public class PlayerAccount implements me.lokka30.treasury.api.economy.account.PlayerAccount {
-    private final SimpleTreasuryEconomyPlugin plugin;
+    private final BalanceManager balanceManager;
+    private final Function<String, Optional<Currency>> currencies;
+    private final Metrics metrics;
     private final UUID uuid;
 
-    public PlayerAccount(SimpleTreasuryEconomyPlugin plugin, UUID uuid) {
-        this.plugin = plugin;
+    public PlayerAccount(EconomyContext plugin, UUID uuid) {
+        this(plugin.getBalanceManager(), plugin.getEconomy()::findCurrency, plugin.getMetrics(), uuid);
+    }
+
+    /**
+     * Creates an account without a plugin instance, e.g. for benchmarks
+     *
+     * @param balanceManager the balance manager that handles the balances of the account
+     * @param currencies     looks up a currency by its identifier
+     * @param metrics        the metrics the latencies of the calls are recorded in
+     * @param uuid           the uuid of the player
+     */
+    public PlayerAccount(@NotNull BalanceManager balanceManager, @NotNull Function<String, Optional<Currency>> currencies, @NotNull Metrics metrics, @NotNull UUID uuid) {
+        this.balanceManager = balanceManager;
+        this.currencies = currencies;
+        this.metrics = metrics;
         this.uuid = uuid;
     }
 
@@ -34,50 +53,63 @@ public class PlayerAccount implements me.lokka30.treasury.api.economy.account.Pl
 
     @Override
     public CompletableFuture<Response<BigDecimal>> retrieveBalance(@NotNull Currency currency) {
-        return CompletableFuture.supplyAsync(() -> {
-            BigDecimal bigDecimal = plugin.getDatabase().getBalance(this.getUniqueId(), currency);
-            if (bigDecimal != null) return Response.success(bigDecimal);
-            if (plugin.getDatabase().setBalance(this.getUniqueId(), currency, currency.getStartingBalance(this.getUniqueId())))
-                return Response.success(currency.getStartingBalance(getUniqueId()));
-            return Response.failure(EconomyFailureReason.ACCOUNT_NOT_FOUND);
-        });
+        final AccountKey key = AccountKey.of(getUniqueId());
+        return EconomyCallEvent.track(EconomyCallEvent.start("retrieveBalance", key, currency.getIdentifier()),
+                metrics.time("api.retrieveBalance", () -> balanceManager.retrieveBalance(key, currency, currency.getStartingBalance(getUniqueId()))
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.ACCOUNT_NOT_FOUND)))));
     }
 
     @Override
     public CompletableFuture<Response<BigDecimal>> doTransaction(@NotNull EconomyTransaction economyTransaction) {
-        return CompletableFuture.supplyAsync(() -> {
-            switch (economyTransaction.getTransactionType()) {
-                case SET: {
-                    if (plugin.getDatabase().setBalance(getUniqueId(), plugin.getEconomy().findCurrency(economyTransaction.getCurrencyID()).get(), economyTransaction.getTransactionAmount())) {
-                        return Response.success(economyTransaction.getTransactionAmount());
-                    }
-                    return Response.failure(EconomyFailureReason.REQUEST_CANCELLED);
-                }
-                case DEPOSIT: {
-                    var result = plugin.getDatabase().changeBalance(getUniqueId(), economyTransaction.getCurrencyID(), economyTransaction.getTransactionAmount());
-                    return result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE));
-                }
-                case WITHDRAWAL: {
-                    var result = plugin.getDatabase().changeBalance(getUniqueId(), economyTransaction.getCurrencyID(), economyTransaction.getTransactionAmount().negate());
-                    return result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE));
-                }
+        return EconomyCallEvent.track(EconomyCallEvent.startTransaction("doTransaction", AccountKey.of(getUniqueId()), economyTransaction),
+                metrics.time(metrics.transactionTimer(economyTransaction.getTransactionType()), () -> transaction(economyTransaction)));
+    }
+
+    private CompletableFuture<Response<BigDecimal>> transaction(@NotNull EconomyTransaction economyTransaction) {
+        final Optional<Currency> currency = currencies.apply(economyTransaction.getCurrencyID());
+        if (currency.isEmpty())
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("Unknown currency " + economyTransaction.getCurrencyID())));
+        final AccountKey key = AccountKey.of(getUniqueId());
+        switch (economyTransaction.getTransactionType()) {
+            case SET: {
+                return balanceManager.setBalance(key, currency.get(), economyTransaction.getTransactionAmount(), economyTransaction)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.REQUEST_CANCELLED)));
+            }
+            case DEPOSIT: {
+                return balanceManager.changeBalance(key, currency.get(), economyTransaction.getTransactionAmount(), economyTransaction)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)));
+            }
+            case WITHDRAWAL: {
+                return balanceManager.changeBalance(key, currency.get(), economyTransaction.getTransactionAmount().negate(), economyTransaction)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)));
             }
-            return Response.failure(FailureReason.of("This should not have happened!"));
-        });
+        }
+        return CompletableFuture.completedFuture(Response.failure(FailureReason.of("This should not have happened!")));
     }
 
     @Override
     public CompletableFuture<Response<TriState>> deleteAccount() {
-        return CompletableFuture.supplyAsync(() -> Response.success(TriState.fromBoolean(plugin.getDatabase().deleteAccount(getUniqueId()))));
+        return balanceManager.deleteAccount(AccountKey.of(getUniqueId())).thenApply(deleted -> Response.success(TriState.fromBoolean(deleted)));
     }
 
     @Override
     public CompletableFuture<Response<Collection<String>>> retrieveHeldCurrencies() {
-        return CompletableFuture.supplyAsync(() -> Response.success(plugin.getDatabase().getCurrenciesOf(getUniqueId())));
+        return balanceManager.retrieveHeldCurrencies(AccountKey.of(getUniqueId())).thenApply(Response::success);
     }
 
     @Override
     public CompletableFuture<Response<Collection<EconomyTransaction>>> retrieveTransactionHistory(int transactionCount, @NotNull Temporal from, @NotNull Temporal to) {
-        return CompletableFuture.completedFuture(Response.failure(EconomyFailureReason.OTHER_FAILURE));
+        final Instant fromInstant;
+        final Instant toInstant;
+        try {
+            fromInstant = Instant.from(from);
+            toInstant = Instant.from(to);
+        } catch (DateTimeException e) {
+            return CompletableFuture.completedFuture(Response.failure(FailureReason.of("from and to have to be instants in time")));
+        }
+        final AccountKey key = AccountKey.of(getUniqueId());
+        return EconomyCallEvent.track(EconomyCallEvent.start("retrieveTransactionHistory", key, null),
+                metrics.time("api.retrieveTransactionHistory", () -> balanceManager.retrieveTransactionHistory(key, transactionCount, fromInstant, toInstant, currencies)
+                        .thenApply(result -> result.map(Response::success).orElseGet(() -> Response.failure(EconomyFailureReason.OTHER_FAILURE)))));
     }
 }
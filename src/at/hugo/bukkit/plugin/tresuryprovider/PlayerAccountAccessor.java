@@ -8,9 +8,9 @@ import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 public class PlayerAccountAccessor extends me.lokka30.treasury.api.economy.account.accessor.PlayerAccountAccessor {
-    private final SimpleTreasuryEconomyPlugin plugin;
+    private final EconomyContext plugin;
 
-    public PlayerAccountAccessor(SimpleTreasuryEconomyPlugin plugin) {
+    public PlayerAccountAccessor(EconomyContext plugin) {
         this.plugin = plugin;
     }
 
@@ -0,0 +1,39 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Loads the balances of players while they log in and drops them again once they leave, so balance lookups of
+ * online players don't have to wait for the storage
+ */
+public class PlayerSessionListener implements Listener {
+    private final SimpleTreasuryEconomyPlugin plugin;
+
+    public PlayerSessionListener(@NotNull final SimpleTreasuryEconomyPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+        // this runs on its own thread, the player only joins once the balances are loaded
+        plugin.getBalanceManager().preload(event.getUniqueId(), plugin.getEconomy()::findCurrency).join();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onLogin(PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED)
+            plugin.getBalanceManager().unload(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        plugin.getBalanceManager().unload(event.getPlayer().getUniqueId());
+    }
+}
@@ -3,188 +3,613 @@ package at.hugo.bukkit.plugin.tresuryprovider;
 import me.lokka30.treasury.api.common.misc.TriState;
 import me.lokka30.treasury.api.economy.account.AccountPermission;
 import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionImportance;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.sqlite.BusyHandler;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
 import org.sqlite.SQLiteDataSource;
+import org.sqlite.SQLiteErrorCode;
 
-import javax.sql.DataSource;
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-public class SQLiteDatabase {
-    private final DataSource dataSource;
+/**
+ * Stores everything in a SQLite database file, see {@link StorageEngine}
+ */
+public class SQLiteDatabase implements StorageEngine {
+    /**
+     * How many accounts {@link #changeBalances} changes in one transaction, so a large payout doesn't hold the write lock for long
+     */
+    private static final int BULK_CHUNK_SIZE = 500;
+    /**
+     * How long a statement waits for a lock another connection holds before it fails with SQLITE_BUSY
+     */
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    /**
+     * The changes to the schema in the order they get applied. The version of a database is the number of changes
+     * applied to it, it is kept in {@code PRAGMA user_version}. Changes that were released must not be edited,
+     * further changes get appended.
+     */
+    private final List<Migration> migrations = List.of(
+            // databases from before the versioning can be in any earlier state, so these check what they have to do
+            new Migration("create the tables and triggers", true, this::createTables),
+            // commits its own chunks, so an interrupted upgrade of a large table continues where it stopped
+            new Migration("upgrade old balance and permission columns", false, pooled -> {
+                migrateBalanceColumn(pooled, "player_balances");
+                migrateBalanceColumn(pooled, "account_balances");
+                migratePermissionColumn(pooled);
+            }),
+            new Migration("create the indexes", true, this::createIndexes),
+            new Migration("store the transaction types by name", true, this::migrateTransactionEnums)
+    );
+
+    private final ConnectionPool connectionPool;
+    private final CurrencyIds currencyIds = new CurrencyIds();
+    private final PermissionIndex permissions = new PermissionIndex();
+    private final ExchangeRates exchangeRates = new ExchangeRates();
+    private WriteQueue writeQueue = null;
+    private TransactionJournal journal = null;
+    private volatile BalanceListener balanceListener = null;
+    private final Metrics metrics;
 
     /**
      * the plugin who initiated the database, mostly used for logging
      */
-    protected final SimpleTreasuryEconomyPlugin plugin;
+    protected final EconomyContext plugin;
 
     /**
      * @param plugin   The plugin that initiates the database, mostly used for logging
      * @param filePath The Path to where the SQLite file should be
+     * @param poolSize The maximum amount of connections that are kept open
+     * @throws IllegalStateException gets thrown if the database can't be migrated to the schema this version knows
      */
-    public SQLiteDatabase(@NotNull final SimpleTreasuryEconomyPlugin plugin, @NotNull String filePath) {
+    public SQLiteDatabase(@NotNull final EconomyContext plugin, @NotNull String filePath, int poolSize) {
         this.plugin = plugin;
-        this.dataSource = createDataSource(filePath);
-        createTables();
+        this.metrics = plugin != null ? plugin.getMetrics() : new Metrics();
+        this.connectionPool = new ConnectionPool(createDataSource(filePath, metrics), poolSize);
+        metrics.gauge("sqlite.pool.open-connections", connectionPool::getOpenConnections);
+        try {
+            migrate();
+        } catch (SQLException e) {
+            connectionPool.close();
+            throw new IllegalStateException("Can't use the database " + filePath + ": " + e.getMessage(), e);
+        }
+        loadPermissions();
+        loadExchangeRates();
     }
 
 
     /**
-     * Gets a connection from the DataSource to execute SQL queries on
-     * With foreign keys turned on.
+     * Gets a pooled connection to execute SQL queries on, it has to be closed to give it back to the pool.
+     * Foreign keys are turned on for every connection.
      *
+     * @param operation the name of the histogram the time the connection is used gets recorded in
      * @return the Database Connection
      * @throws SQLException gets thrown if a database access error occurs
      */
-    protected Connection getConnection() throws SQLException {
-        var connection = dataSource.getConnection();
-        connection.prepareStatement("pragma foreign_keys = ON").executeUpdate();
-        return connection;
+    protected ConnectionPool.PooledConnection getConnection(@NotNull String operation) throws SQLException {
+        return getConnection(operation, null, null, null);
     }
 
-    private static SQLiteDataSource createDataSource(final @NotNull String filePath) {
-        SQLiteDataSource dataSource = new SQLiteDataSource();
-        dataSource.setUrl("jdbc:sqlite:" + filePath);
-        return dataSource;
+    /**
+     * Like {@link #getConnection(String)}, and describes the operation in a flight recorder event if a recording has
+     * it enabled
+     *
+     * @param operation   the name of the histogram and the event
+     * @param account     the account the operation is on, or null
+     * @param currency    the currency the operation is on, or null
+     * @param transaction the transaction that is written, or null
+     * @return the Database Connection
+     * @throws SQLException gets thrown if a database access error occurs
+     */
+    protected ConnectionPool.PooledConnection getConnection(@NotNull String operation, @Nullable AccountKey account, @Nullable Currency currency, @Nullable EconomyTransaction transaction) throws SQLException {
+        DatabaseOperationEvent event = new DatabaseOperationEvent();
+        if (event.isEnabled()) {
+            event.operation = operation;
+            if (account != null) event.account = account.toString();
+            if (currency != null) event.currency = currency.getIdentifier();
+            if (transaction != null) event.transactionType = transaction.getTransactionType().name();
+            event.begin();
+        } else {
+            event = null;
+        }
+        return connectionPool.acquire(metrics.timer(operation), event);
     }
 
-    private void createTables() {
-        try (var con = getConnection()) {
-            try (var s1 = con.prepareStatement("""
-                    Create TABLE if not exists currencies (
-                     id INTEGER not NULL,
-                     string_id varchar(64) NOT NULL,
-                     name_singular varchar(64) NOT NULL,
-                     name_plural varchar(64) Not NULL,
-                     currency_symbol varchar(16) NOT NULL,
-                     decimal_symbol char(1) NOT NULL DEFAULT ".",
-                     grouping_symbol char(1) DEFAULT NULL,
-                     precision INTEGER NOT NULL,
-                     is_primary Boolean NOT NULL DEFAULT false,
-                     primary key(id) \s
-                    );""")) {
-                s1.execute();
+    /**
+     * Counts a failed operation, and the ones that failed because the database stayed locked, and prints it
+     */
+    private void failed(SQLException e) {
+        metrics.increment("sqlite.errors");
+        if ((e.getErrorCode() & 0xff) == SQLiteErrorCode.SQLITE_BUSY.code) metrics.increment("sqlite.busy.failures");
+        e.printStackTrace();
+    }
 
-            }
-            try (var s1 = con.prepareStatement("""
-                    Create TABLE if not exists player_balances (
-                     currency_id INTEGER NOT NULL,
-                     player_uuid binary(16) not NULL,
-                     balance Binary(128),
-                     player_uuid_text CHAR(36) generated always AS (\s
-                       SUBSTR(hex(player_uuid),1,8) || '-' || SUBSTR(hex(player_uuid),9,4) || '-' || SUBSTR(hex(player_uuid),13,4) || '-' || SUBSTR(hex(player_uuid),17,4) || '-' || SUBSTR(hex(player_uuid),21,12)
-                     ) virtual,
-                     primary key(currency_id, player_uuid),
-                     FOREIGN KEY (currency_id) REFERENCES currencies(id) ON DELETE CASCADE
-                    );""")) {
-                s1.execute();
+    /**
+     * @return the pool that manages the connections of this database, e.g. to read its hit counts
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
 
-            }
-            try (var s1 = con.prepareStatement("""
-                    Create TABLE if not exists account_balances (
-                     currency_id INTEGER NOT NULL,
-                     account_id CHAR(64) not NULL,
-                     balance Binary(128),
-                     primary key(currency_id, account_id),
-                     FOREIGN KEY (currency_id) REFERENCES currencies(id) ON DELETE CASCADE
-                    );""")) {
-                s1.execute();
+    /**
+     * Starts a single writer thread that commits queued balance writes in batches, see {@link #queueChangeBalance}
+     *
+     * @param maxBatchSize the maximum amount of writes that get committed in one transaction
+     * @param maxWaitMs    how long the writer waits for more writes before it commits a batch that isn't full
+     */
+    public void enableWriteQueue(int maxBatchSize, long maxWaitMs) {
+        if (writeQueue == null) {
+            writeQueue = new WriteQueue(this::writeBatch, maxBatchSize, maxWaitMs);
+            metrics.gauge("sqlite.write-queue.size", writeQueue::size);
+        }
+    }
 
-            }
-            try (var s1 = con.prepareStatement("""
-                    Create TABLE if not exists account_permissions (
-                     account_id CHAR(64) not NULL,
-                     permission int not NULL,
-                     player_uuid binary(16) not NULL,
-                     player_uuid_text CHAR(36) generated always AS (\s
-                       SUBSTR(hex(player_uuid),1,8) || '-' || SUBSTR(hex(player_uuid),9,4) || '-' || SUBSTR(hex(player_uuid),13,4) || '-' || SUBSTR(hex(player_uuid),17,4) || '-' || SUBSTR(hex(player_uuid),21,12)
-                     ) virtual,
-                     primary key(account_id, player_uuid)
-                    );""")) {
-                s1.execute();
+    /**
+     * Appends every queued balance write that comes with a transaction to the transaction journal
+     */
+    public void enableJournal() {
+        if (journal == null) journal = new TransactionJournal(this);
+    }
+
+    /**
+     * @return the transaction journal, or null if transactions are not journaled
+     */
+    public @Nullable TransactionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the queue of pending balance writes, or null if writes are not queued
+     */
+    public @Nullable WriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    @Override
+    public void setBalanceListener(@Nullable BalanceListener listener) {
+        this.balanceListener = listener;
+    }
+
+    private void written(AccountKey account, Currency currency, @Nullable BigDecimal balance) {
+        final BalanceListener listener = balanceListener;
+        if (listener != null) listener.balanceWritten(account, currency.getIdentifier(), balance);
+    }
+
+    /**
+     * Writes all queued writes and closes all connections of this database
+     */
+    @Override
+    public void close() {
+        if (writeQueue != null) writeQueue.close();
+        connectionPool.close();
+    }
+
+    /**
+     * Waits for a lock another connection holds like SQLite's busy timeout does, with delays that grow up to 100ms,
+     * and counts every retry
+     */
+    private static class BusyRetries extends BusyHandler {
+        private static final int[] DELAYS_MS = {1, 2, 5, 10, 15, 20, 25, 25, 25, 50, 50, 100};
+
+        private final LongAdder retries;
 
+        private BusyRetries(LongAdder retries) {
+            this.retries = retries;
+        }
+
+        @Override
+        protected int callback(int previousRetries) {
+            int waited = 0;
+            for (int i = 0; i < previousRetries; i++) waited += DELAYS_MS[Math.min(i, DELAYS_MS.length - 1)];
+            if (waited >= BUSY_TIMEOUT_MS) return 0;
+            retries.increment();
+            try {
+                Thread.sleep(Math.min(DELAYS_MS[Math.min(previousRetries, DELAYS_MS.length - 1)], BUSY_TIMEOUT_MS - waited));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
             }
-            try (var s1 = con.prepareStatement("""
-                    CREATE TRIGGER IF NOT EXISTS account_balances_delete_permissions_cleanup\s
-                     AFTER DELETE ON account_balances
-                     FOR EACH ROW
-                     WHEN OLD.account_id NOT IN (SELECT account_id from account_balances)
-                    BEGIN
-                     DELETE FROM account_permissions where account_id = OLD.account_id;
-                    END;""")) {
-                s1.execute();
+            return 1;
+        }
+    }
 
+    private static SQLiteDataSource createDataSource(final @NotNull String filePath, final @NotNull Metrics metrics) {
+        SQLiteConfig config = new SQLiteConfig();
+        config.enforceForeignKeys(true);
+        // WAL lets the pooled connections read while another one is writing
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        SQLiteDataSource dataSource = new SQLiteDataSource(config) {
+            @Override
+            public SQLiteConnection getConnection(String username, String password) throws SQLException {
+                final SQLiteConnection connection = super.getConnection(username, password);
+                // replaces the busy timeout, so every retry gets counted
+                BusyHandler.setHandler(connection, new BusyRetries(metrics.counter("sqlite.busy.retries")));
+                return connection;
             }
-            try (var s1 = con.prepareStatement("""
-                    CREATE TRIGGER IF NOT EXISTS currencies_primary_update\s
-                       AFTER UPDATE OF is_primary ON currencies
-                       FOR EACH ROW
-                       WHEN NEW.is_primary = true
-                    BEGIN
-                     UPDATE currencies SET is_primary = false where NEW.id != currencies.id;
-                    END;""")) {
-                s1.execute();
+        };
+        dataSource.setUrl("jdbc:sqlite:" + filePath);
+        return dataSource;
+    }
+
+    /**
+     * Applies the migrations the database doesn't have yet in order. A transactional migration is applied together with
+     * the new version, so it is either applied completely and exactly once or not at all. The others commit their own
+     * steps and have to check what is already done, the version is only raised once they finished.
+     * If one fails the later ones are not applied and it is tried again on the next start.
+     *
+     * @throws SQLException gets thrown if a migration fails or the database has a newer schema than this version knows
+     */
+    private void migrate() throws SQLException {
+        try (var pooled = getConnection("sqlite.migrate")) {
+            final Connection con = pooled.connection();
+            int version;
+            try (var s1 = con.createStatement();
+                 var rs = s1.executeQuery("PRAGMA user_version;")) {
+                version = rs.next() ? rs.getInt(1) : 0;
             }
-            try (var s1 = con.prepareStatement("""
-                    CREATE TRIGGER IF NOT EXISTS currencies_primary_insert\s
-                       AFTER INSERT ON currencies
-                       FOR EACH ROW
-                       WHEN NEW.is_primary = true
-                    BEGIN
-                     UPDATE currencies SET is_primary = false where NEW.id != currencies.id;
-                    END;""")) {
-                s1.execute();
+            if (version > migrations.size())
+                throw new SQLException("The database has schema version " + version + ", this version of the plugin only knows " + migrations.size());
+            for (; version < migrations.size(); version++) {
+                final Migration migration = migrations.get(version);
+                if (migration.transactional()) pooled.begin();
+                try {
+                    migration.step().apply(pooled);
+                    try (var s1 = con.createStatement()) {
+                        s1.execute("PRAGMA user_version = " + (version + 1) + ";");
+                    }
+                    if (migration.transactional()) pooled.commit();
+                } catch (SQLException e) {
+                    if (migration.transactional()) pooled.rollback();
+                    throw new SQLException("Migration to version " + (version + 1) + " (" + migration.description() + ") failed", e);
+                }
+                if (plugin != null) plugin.getLogger().info("Migrated the database to version " + (version + 1) + ": " + migration.description());
             }
-            try (var s1 = con.prepareStatement("""
-                    CREATE TRIGGER IF NOT EXISTS currencies_insert\s
-                       AFTER INSERT ON currencies
-                       FOR EACH ROw
-                       WHEN NEW.string_id IS NULL
-                    BEGIN
-                     UPDATE currencies SET string_id = cast(id as text) WHERE NEW.id == currencies.id;
-                    END;""")) {
-                s1.execute();
+        }
+    }
+
+    /**
+     * @param description   what the migration changes, for the log
+     * @param transactional whether it is applied in a transaction, only migrations that commit on their own shouldn't be
+     * @param step          applies the migration
+     */
+    private record Migration(@NotNull String description, boolean transactional, @NotNull MigrationStep step) {
+    }
+
+    private interface MigrationStep {
+        void apply(@NotNull ConnectionPool.PooledConnection pooled) throws SQLException;
+    }
+
+    /**
+     * Creates the tables and triggers that don't exist yet, tables from older versions keep their old columns
+     *
+     * @param pooled the connection to create the tables on
+     * @throws SQLException gets thrown if a table can't be created
+     */
+    private void createTables(ConnectionPool.PooledConnection pooled) throws SQLException {
+        final Connection con = pooled.connection();
+        try (var s1 = con.prepareStatement("""
+                Create TABLE if not exists currencies (
+                 id INTEGER not NULL,
+                 string_id varchar(64) NOT NULL,
+                 name_singular varchar(64) NOT NULL,
+                 name_plural varchar(64) Not NULL,
+                 currency_symbol varchar(16) NOT NULL,
+                 decimal_symbol char(1) NOT NULL DEFAULT ".",
+                 grouping_symbol char(1) DEFAULT NULL,
+                 precision INTEGER NOT NULL,
+                 is_primary Boolean NOT NULL DEFAULT false,
+                 primary key(id) \s
+                );""")) {
+            s1.execute();
+
+        }
+        try (var s1 = con.prepareStatement("""
+                Create TABLE if not exists player_balances (
+                 currency_id INTEGER NOT NULL,
+                 player_uuid binary(16) not NULL,
+                 balance_int INTEGER,
+                 balance_overflow BLOB,
+                 player_uuid_text CHAR(36) generated always AS (\s
+                   SUBSTR(hex(player_uuid),1,8) || '-' || SUBSTR(hex(player_uuid),9,4) || '-' || SUBSTR(hex(player_uuid),13,4) || '-' || SUBSTR(hex(player_uuid),17,4) || '-' || SUBSTR(hex(player_uuid),21,12)
+                 ) virtual,
+                 primary key(currency_id, player_uuid),
+                 FOREIGN KEY (currency_id) REFERENCES currencies(id) ON DELETE CASCADE
+                );""")) {
+            s1.execute();
+
+        }
+        try (var s1 = con.prepareStatement("""
+                Create TABLE if not exists account_balances (
+                 currency_id INTEGER NOT NULL,
+                 account_id CHAR(64) not NULL,
+                 balance_int INTEGER,
+                 balance_overflow BLOB,
+                 primary key(currency_id, account_id),
+                 FOREIGN KEY (currency_id) REFERENCES currencies(id) ON DELETE CASCADE
+                );""")) {
+            s1.execute();
+
+        }
+        try (var s1 = con.prepareStatement("""
+                Create TABLE if not exists account_permissions (
+                 account_id CHAR(64) not NULL,
+                 permissions INTEGER not NULL,
+                 player_uuid binary(16) not NULL,
+                 player_uuid_text CHAR(36) generated always AS (\s
+                   SUBSTR(hex(player_uuid),1,8) || '-' || SUBSTR(hex(player_uuid),9,4) || '-' || SUBSTR(hex(player_uuid),13,4) || '-' || SUBSTR(hex(player_uuid),17,4) || '-' || SUBSTR(hex(player_uuid),21,12)
+                 ) virtual,
+                 primary key(account_id, player_uuid)
+                );""")) {
+            s1.execute();
+
+        }
+        try (var s1 = con.prepareStatement("""
+                CREATE TRIGGER IF NOT EXISTS account_balances_delete_permissions_cleanup\s
+                 AFTER DELETE ON account_balances
+                 FOR EACH ROW
+                 WHEN OLD.account_id NOT IN (SELECT account_id from account_balances)
+                BEGIN
+                 DELETE FROM account_permissions where account_id = OLD.account_id;
+                END;""")) {
+            s1.execute();
+
+        }
+        try (var s1 = con.prepareStatement("""
+                CREATE TRIGGER IF NOT EXISTS currencies_primary_update\s
+                   AFTER UPDATE OF is_primary ON currencies
+                   FOR EACH ROW
+                   WHEN NEW.is_primary = true
+                BEGIN
+                 UPDATE currencies SET is_primary = false where NEW.id != currencies.id;
+                END;""")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("""
+                CREATE TRIGGER IF NOT EXISTS currencies_primary_insert\s
+                   AFTER INSERT ON currencies
+                   FOR EACH ROW
+                   WHEN NEW.is_primary = true
+                BEGIN
+                 UPDATE currencies SET is_primary = false where NEW.id != currencies.id;
+                END;""")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("""
+                CREATE TRIGGER IF NOT EXISTS currencies_insert\s
+                   AFTER INSERT ON currencies
+                   FOR EACH ROw
+                   WHEN NEW.string_id IS NULL
+                BEGIN
+                 UPDATE currencies SET string_id = cast(id as text) WHERE NEW.id == currencies.id;
+                END;""")) {
+            s1.execute();
+        }
+        createTransactionsTable(con);
+        try (var s1 = con.prepareStatement("""
+                Create TABLE if not exists exchange_rates (
+                 from_currency_id INTEGER NOT NULL,
+                 to_currency_id INTEGER NOT NULL,
+                 rate TEXT NOT NULL,
+                 primary key(from_currency_id, to_currency_id),
+                 FOREIGN KEY (from_currency_id) REFERENCES currencies(id) ON DELETE CASCADE,
+                 FOREIGN KEY (to_currency_id) REFERENCES currencies(id) ON DELETE CASCADE
+                );""")) {
+            s1.execute();
+
+        }
+    }
+
+    /**
+     * Creates the indexes every query needs, some of them are on columns that only exist once old columns are
+     * upgraded. Databases from before the versioning can already have some of them.
+     *
+     * @param pooled the connection to create the indexes on
+     * @throws SQLException gets thrown if an index can't be created
+     */
+    private void createIndexes(ConnectionPool.PooledConnection pooled) throws SQLException {
+        final Connection con = pooled.connection();
+        try (var s1 = con.prepareStatement("CREATE INDEX IF NOT EXISTS transactions_account_timestamp ON transactions (account, timestamp);")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("CREATE INDEX IF NOT EXISTS player_balances_currency_balance ON player_balances (currency_id, balance_int);")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("CREATE INDEX IF NOT EXISTS account_permissions_player ON account_permissions (player_uuid, account_id);")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("CREATE INDEX IF NOT EXISTS player_balances_player ON player_balances (player_uuid);")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("CREATE INDEX IF NOT EXISTS account_balances_account ON account_balances (account_id);")) {
+            s1.execute();
+        }
+        try (var s1 = con.prepareStatement("CREATE INDEX IF NOT EXISTS transactions_timestamp ON transactions (timestamp);")) {
+            s1.execute();
+        }
+    }
+
+    /**
+     * Moves balances from the old {@code balance} blob column into {@code balance_int} and {@code balance_overflow}.
+     * Rows are migrated in small committed chunks, so an interrupted migration just continues on the next start.
+     * Once no old balance is left the old column gets dropped.
+     *
+     * @param con   the connection to migrate on
+     * @param table the balance table to migrate
+     * @throws SQLException gets thrown if the migration fails, the chunks migrated until then stay migrated
+     */
+    private void migrateBalanceColumn(ConnectionPool.PooledConnection pooled, String table) throws SQLException {
+        final Connection con = pooled.connection();
+        final HashSet<String> columns = new HashSet<>();
+        try (var s1 = con.prepareStatement("SELECT name FROM pragma_table_info(?);")) {
+            s1.setString(1, table);
+            try (var rs = s1.executeQuery()) {
+                while (rs.next()) columns.add(rs.getString("name"));
             }
-        } catch (
-                SQLException e) {
-            e.printStackTrace();
         }
+        if (!columns.contains("balance")) return;
+        if (plugin != null) plugin.getLogger().info("Migrating " + table + " to integer balances");
+        try (var s1 = con.prepareStatement("ALTER TABLE " + table + " ADD COLUMN balance_int INTEGER;");
+             var s2 = con.prepareStatement("ALTER TABLE " + table + " ADD COLUMN balance_overflow BLOB;")) {
+            if (!columns.contains("balance_int")) s1.execute();
+            if (!columns.contains("balance_overflow")) s2.execute();
+        }
+        long migrated = 0;
+        try (var select = con.prepareStatement("SELECT " + table + ".rowid AS row_id, balance, precision FROM " + table + " JOIN currencies ON currencies.id = currency_id WHERE balance IS NOT NULL LIMIT 1000;");
+             var update = con.prepareStatement("UPDATE " + table + " SET balance_int = ?, balance_overflow = ?, balance = NULL WHERE rowid = ?;")) {
+            int chunk;
+            do {
+                chunk = 0;
+                pooled.begin();
+                try (var rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        DatabaseUtils.setBalance(update, 1, DatabaseUtils.convertBytesToBigDecimal(rs.getBytes("balance"), rs.getInt("precision")), rs.getInt("precision"));
+                        update.setLong(3, rs.getLong("row_id"));
+                        update.addBatch();
+                        chunk++;
+                    }
+                }
+                update.executeBatch();
+                pooled.commit();
+                migrated += chunk;
+            } while (chunk > 0);
+        }
+        try (var s1 = con.prepareStatement("ALTER TABLE " + table + " DROP COLUMN balance;")) {
+            s1.execute();
+        }
+        if (plugin != null) plugin.getLogger().info("Migrated " + migrated + " balances in " + table);
+    }
 
+    /**
+     * Replaces the old {@code permission} column, which held the ordinal of a single permission, with the
+     * {@code permissions} bitmask. The primary key only ever allowed one row per account and player, so every row
+     * keeps exactly the permission it had.
+     *
+     * @param pooled the connection to migrate on
+     * @throws SQLException gets thrown if the migration fails, it is rolled back then
+     */
+    private void migratePermissionColumn(ConnectionPool.PooledConnection pooled) throws SQLException {
+        final Connection con = pooled.connection();
+        final HashSet<String> columns = new HashSet<>();
+        try (var s1 = con.prepareStatement("SELECT name FROM pragma_table_info('account_permissions');");
+             var rs = s1.executeQuery()) {
+            while (rs.next()) columns.add(rs.getString("name"));
+        }
+        if (!columns.contains("permission")) return;
+        if (plugin != null) plugin.getLogger().info("Migrating account_permissions to permission bitmasks");
+        pooled.begin();
+        // every statement is prepared after the previous one ran, they can only be prepared against the altered table
+        try (var s1 = con.createStatement()) {
+            s1.execute("ALTER TABLE account_permissions ADD COLUMN permissions INTEGER NOT NULL DEFAULT 0;");
+            s1.execute("UPDATE account_permissions SET permissions = 1 << permission;");
+            s1.execute("ALTER TABLE account_permissions DROP COLUMN permission;");
+        }
+        pooled.commit();
+    }
+
+    /**
+     * The enums are stored by name, so the history still reads back right when Treasury reorders or extends them
+     */
+    private static void createTransactionsTable(Connection con) throws SQLException {
+        try (var s1 = con.prepareStatement("""
+                Create TABLE if not exists transactions (
+                 id INTEGER not NULL,
+                 account BLOB not NULL,
+                 currency_id INTEGER not NULL,
+                 type TEXT not NULL,
+                 amount_int INTEGER,
+                 amount_overflow BLOB,
+                 importance TEXT not NULL,
+                 initiator_type TEXT not NULL,
+                 initiator_data TEXT,
+                 reason TEXT,
+                 timestamp INTEGER not NULL,
+                 primary key(id)
+                );""")) {
+            s1.execute();
+        }
+    }
+
+    /**
+     * Rebuilds a {@code transactions} table that stores the transaction type, the importance and the initiator type as
+     * ordinals with their names instead. Ordinals the enums don't have are kept as text and read back as unknown.
+     *
+     * @param pooled the connection to migrate on, in a transaction
+     * @throws SQLException gets thrown if the migration fails
+     */
+    private void migrateTransactionEnums(ConnectionPool.PooledConnection pooled) throws SQLException {
+        final Connection con = pooled.connection();
+        try (var s1 = con.prepareStatement("SELECT type FROM pragma_table_info('transactions') WHERE name = 'type';");
+             var rs = s1.executeQuery()) {
+            if (!rs.next() || !"INTEGER".equalsIgnoreCase(rs.getString("type"))) return;
+        }
+        if (plugin != null) plugin.getLogger().info("Migrating the transaction journal to store the types by name");
+        // every statement is prepared after the previous one ran, they can only be prepared against the changed tables
+        try (var s1 = con.createStatement()) {
+            s1.execute("ALTER TABLE transactions RENAME TO transactions_ordinals;");
+            createTransactionsTable(con);
+            s1.execute("INSERT INTO transactions (id, account, currency_id, type, amount_int, amount_overflow, importance, initiator_type, initiator_data, reason, timestamp) " +
+                    "SELECT id, account, currency_id, " + ordinalToName("type", EconomyTransactionType.values()) + ", amount_int, amount_overflow, " +
+                    ordinalToName("importance", EconomyTransactionImportance.values()) + ", " + ordinalToName("initiator_type", EconomyTransactionInitiator.Type.values()) +
+                    ", initiator_data, reason, timestamp FROM transactions_ordinals;");
+            // drops the indexes of the old table as well
+            s1.execute("DROP TABLE transactions_ordinals;");
+        }
+        createIndexes(pooled);
     }
 
+    private static String ordinalToName(String column, Enum<?>[] values) {
+        final StringBuilder sql = new StringBuilder("CASE ").append(column);
+        for (Enum<?> value : values)
+            sql.append(" WHEN ").append(value.ordinal()).append(" THEN '").append(value.name()).append('\'');
+        return sql.append(" ELSE cast(").append(column).append(" AS TEXT) END").toString();
+    }
+
+    @Override
     public HashMap<String, Currency> loadCurrencies() {
         final HashMap<String, Currency> result = new HashMap<>();
-        try (var con = getConnection();
-             var statement = con.prepareStatement("SELECT * FROM currencies;");
-             var rs = statement.executeQuery()
-        ) {
-            while (rs.next()) {
-                final String id = rs.getString("string_id");
-                final String singularName = rs.getString("name_singular");
-                final String pluralName = rs.getString("name_plural");
-                final String currencySymbol = rs.getString("currency_symbol");
-                final char decimalSymbol = rs.getString("decimal_symbol").charAt(0);
-                final String groupingSymbolS = rs.getString("grouping_symbol");
-                final Character groupingSymbol;
-                if (groupingSymbolS == null) groupingSymbol = null;
-                else groupingSymbol = groupingSymbolS.charAt(0);
-                final int precision = rs.getInt("precision");
-                final boolean isPrimary = rs.getBoolean("is_primary");
-                result.put(id, new at.hugo.bukkit.plugin.tresuryprovider.Currency(id, currencySymbol, decimalSymbol, groupingSymbol, singularName, pluralName, precision, isPrimary));
+        try (var con = getConnection("sqlite.loadCurrencies")) {
+            final var statement = con.prepare("SELECT * FROM currencies;");
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    final String id = rs.getString("string_id");
+                    final String singularName = rs.getString("name_singular");
+                    final String pluralName = rs.getString("name_plural");
+                    final String currencySymbol = rs.getString("currency_symbol");
+                    final char decimalSymbol = rs.getString("decimal_symbol").charAt(0);
+                    final String groupingSymbolS = rs.getString("grouping_symbol");
+                    final Character groupingSymbol;
+                    if (groupingSymbolS == null) groupingSymbol = null;
+                    else groupingSymbol = groupingSymbolS.charAt(0);
+                    final int precision = rs.getInt("precision");
+                    final boolean isPrimary = rs.getBoolean("is_primary");
+                    currencyIds.put(id, rs.getInt("id"));
+                    result.put(id, new at.hugo.bukkit.plugin.tresuryprovider.Currency(id, currencySymbol, decimalSymbol, groupingSymbol, singularName, pluralName, precision, isPrimary));
+                }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return result;
     }
 
+    @Override
     public boolean createCurrency(@Nullable String id, @NotNull String singularName, @NotNull String pluralName, @NotNull String currencySymbol, char decimalSymbol, @Nullable Character groupingSymbol, int precision, boolean isPrimary) {
-        try (var con = getConnection();
-             var statement = con.prepareStatement("INSERT INTO currencies (string_id, name_singular, name_plural, currency_symbol, decimal_symbol, grouping_symbol, precision, is_primary) VALUES(?,?,?,?,?,?,?,?);")
-        ) {
+        try (var con = getConnection("sqlite.createCurrency")) {
+            final var statement = con.prepare("INSERT INTO currencies (string_id, name_singular, name_plural, currency_symbol, decimal_symbol, grouping_symbol, precision, is_primary) VALUES(?,?,?,?,?,?,?,?);");
             statement.setString(1, id);
             statement.setString(2, singularName);
             statement.setString(3, pluralName);
@@ -194,48 +619,153 @@ public class SQLiteDatabase {
             statement.setInt(7, precision);
             statement.setBoolean(8, isPrimary);
             statement.execute();
+            try (var rs = con.prepare("SELECT id, string_id FROM currencies WHERE rowid = last_insert_rowid();").executeQuery()) {
+                if (rs.next()) currencyIds.put(rs.getString("string_id"), rs.getInt("id"));
+            }
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
             return false;
         }
     }
 
+    @Override
     public void deleteCurrency(String identifier) {
-        try (var con = getConnection();
-             var statement = con.prepareStatement("DELETE FROM currencies WHERE string_id = ?;")
-        ) {
+        try (var con = getConnection("sqlite.deleteCurrency")) {
+            final var statement = con.prepare("DELETE FROM currencies WHERE string_id = ?;");
             statement.setString(1, identifier);
             statement.execute();
+            currencyIds.remove(identifier);
+            // the rates of the currency got deleted with it
+            exchangeRates.removeCurrency(identifier);
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
+        // accounts that only had a balance in this currency lost their permissions through the cleanup trigger
+        loadPermissions();
     }
 
+    /**
+     * @return the mapping between currency identifiers and their ids in the database
+     */
+    public CurrencyIds getCurrencyIds() {
+        return currencyIds;
+    }
+
+    /**
+     * Looks up the numeric id of a currency without querying the database
+     *
+     * @param currency the currency to look up
+     * @return the id of the currency in the currencies table
+     * @throws SQLException gets thrown if the currency is not stored in the database
+     */
+    private int getCurrencyId(Currency currency) throws SQLException {
+        return getCurrencyId(currency.getIdentifier());
+    }
+
+    private int getCurrencyId(String identifier) throws SQLException {
+        final Integer id = currencyIds.getId(identifier);
+        if (id == null) throw new SQLException("Unknown currency " + identifier);
+        return id;
+    }
+
+    @Override
     public boolean setPrimaryCurrency(String identifier) {
-        try (var con = getConnection();
-             var statement = con.prepareStatement("UPDATE currencies SET is_primary = true where string_id = ?;")
-        ) {
+        try (var con = getConnection("sqlite.setPrimaryCurrency")) {
+            final var statement = con.prepare("UPDATE currencies SET is_primary = true where string_id = ?;");
             statement.setString(1, identifier);
             statement.execute();
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
             return false;
         }
     }
+    @Override
+    public @Nullable BigDecimal getBalance(@NotNull AccountKey account, @NotNull Currency currency) {
+        try (var con = getConnection("sqlite.getBalance", account, currency, null)) {
+            return readBalance(con, account, currency);
+        } catch (SQLException e) {
+            failed(e);
+            throw new StorageException("Can't read the balance of " + account + " in " + currency.getIdentifier(), e);
+        }
+    }
+
+    /**
+     * Reads the balances in one query, player balances are found through the (player_uuid) index
+     */
+    @Override
+    public HashMap<String, BigDecimal> getBalances(@NotNull AccountKey account) {
+        final HashMap<String, BigDecimal> result = new HashMap<>();
+        try (var con = getConnection("sqlite.getBalances", account, null, null)) {
+            final PreparedStatement statement;
+            if (account instanceof AccountKey.Player player) {
+                statement = con.prepare("SELECT currency_id, precision, balance_int, balance_overflow FROM player_balances JOIN currencies ON currencies.id = currency_id WHERE player_uuid = ?;");
+                statement.setBytes(1, DatabaseUtils.convertUuidToBinary(player.uuid()));
+            } else {
+                statement = con.prepare("SELECT currency_id, precision, balance_int, balance_overflow FROM account_balances JOIN currencies ON currencies.id = currency_id WHERE account_id = ?;");
+                statement.setString(1, ((AccountKey.NonPlayer) account).identifier());
+            }
+            try (var rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    final String identifier = currencyIds.getIdentifier(rs.getInt("currency_id"));
+                    if (identifier != null) result.put(identifier, DatabaseUtils.getBalance(rs, rs.getInt("precision")));
+                }
+            }
+        } catch (SQLException e) {
+            failed(e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean setBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount) {
+        return account instanceof AccountKey.Player player
+                ? setBalance(player.uuid(), currency, amount)
+                : setBalance(((AccountKey.NonPlayer) account).identifier(), currency, amount);
+    }
+
+    @Override
+    public boolean deleteAccount(@NotNull AccountKey account) {
+        return account instanceof AccountKey.Player player
+                ? deleteAccount(player.uuid())
+                : deleteAccount(((AccountKey.NonPlayer) account).identifier());
+    }
+
+    @Override
+    public Collection<String> getCurrenciesOf(@NotNull AccountKey account) {
+        return account instanceof AccountKey.Player player
+                ? getCurrenciesOf(player.uuid())
+                : getCurrenciesOf(((AccountKey.NonPlayer) account).identifier());
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return journal != null;
+    }
+
+    @Override
+    public Optional<Collection<EconomyTransaction>> retrieveTransactionHistory(@NotNull AccountKey account, int transactionCount, @NotNull Instant from, @NotNull Instant to, @NotNull Function<String, Optional<Currency>> currencies) {
+        if (journal == null) return Optional.empty();
+        try {
+            return Optional.of(journal.retrieve(account, transactionCount, from, to, currencies));
+        } catch (SQLException e) {
+            failed(e);
+            return Optional.empty();
+        }
+    }
+
     public BigDecimal getBalance(UUID uuid, me.lokka30.treasury.api.economy.currency.Currency currency) {
-        try (var con = getConnection();
-             var statement = con.prepareStatement("SELECT balance FROM player_balances join currencies on currencies.id = currency_id where string_id = ? and player_uuid = ?;")
-        ) {
-            statement.setString(1, currency.getIdentifier());
+        try (var con = getConnection("sqlite.getBalance", AccountKey.of(uuid), currency, null)) {
+            final var statement = con.prepare("SELECT balance_int, balance_overflow FROM player_balances where currency_id = ? and player_uuid = ?;");
+            statement.setInt(1, getCurrencyId(currency));
             statement.setBytes(2, DatabaseUtils.convertUuidToBinary(uuid));
             try (var rs = statement.executeQuery()) {
                 if (rs.next())
-                    return DatabaseUtils.convertBytesToBigDecimal(rs.getBytes("balance"), currency.getPrecision());
+                    return DatabaseUtils.getBalance(rs, currency.getPrecision());
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return null;
     }
@@ -245,90 +775,95 @@ public class SQLiteDatabase {
     }
 
     public Optional<BigDecimal> changeBalance(UUID uuid, me.lokka30.treasury.api.economy.currency.Currency currency, BigDecimal amount) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("begin immediate transaction;");
-             var s2 = con.prepareStatement("Select balance, precision from player_balances join currencies on currencies.id = currency_id where player_uuid = ? and string_id = ?;");
-             var s3 = con.prepareStatement("INSERT INTO player_balances (currency_id, player_uuid, balance) values ((SELECT id from currencies where string_id = ?),?,?) ON CONFLICT (currency_id, player_uuid) DO UPDATE SET balance = excluded.balance;");
-             var s4 = con.prepareStatement("commit;")
-        ) {
-            byte[] uuidBytes = DatabaseUtils.convertUuidToBinary(uuid);
-            s2.setBytes(1, uuidBytes);
-            s2.setString(2, currency.getIdentifier());
-            s3.setString(1, currency.getIdentifier());
-            s3.setBytes(2, uuidBytes);
-            s1.execute();
-            BigDecimal previousBalance = BigDecimal.ZERO;
-            try (var rs = s2.executeQuery()) {
-                if (rs.next()) {
-                    previousBalance = DatabaseUtils.convertBytesToBigDecimal(rs.getBytes("balance"), currency.getPrecision());
-                }
-            }
-            BigDecimal newBalance = previousBalance.add(amount);
-            s3.setBytes(3, DatabaseUtils.convertBigDecimalToBinary(newBalance, currency.getPrecision()));
-            s3.execute();
-            s4.execute();
+        try (var con = getConnection("sqlite.changeBalance", AccountKey.of(uuid), currency, null)) {
+            con.begin();
+            BigDecimal newBalance = changeBalance(con, uuid, currency, amount);
+            con.commit();
             return Optional.of(newBalance);
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
+            written(AccountKey.of(uuid), currency, null);
             return Optional.empty();
         }
     }
 
+    private BigDecimal changeBalance(ConnectionPool.PooledConnection con, UUID uuid, Currency currency, BigDecimal amount) throws SQLException {
+        final var s2 = con.prepare("Select balance_int, balance_overflow from player_balances where currency_id = ? and player_uuid = ?;");
+        s2.setInt(1, getCurrencyId(currency));
+        s2.setBytes(2, DatabaseUtils.convertUuidToBinary(uuid));
+        BigDecimal previousBalance = BigDecimal.ZERO;
+        try (var rs = s2.executeQuery()) {
+            if (rs.next()) {
+                previousBalance = DatabaseUtils.getBalance(rs, currency.getPrecision());
+            }
+        }
+        BigDecimal newBalance = previousBalance.add(amount);
+        setBalance(con, uuid, currency, newBalance);
+        return newBalance;
+    }
+
     public boolean setBalance(UUID uuid, Currency currency, BigDecimal amount) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("INSERT INTO player_balances (currency_id, player_uuid, balance) values ((SELECT id from currencies where string_id = ?),?,?) ON CONFLICT (currency_id, player_uuid) DO UPDATE SET balance = excluded.balance;")
-        ) {
-            s1.setString(1, currency.getIdentifier());
-            s1.setBytes(2, DatabaseUtils.convertUuidToBinary(uuid));
-            s1.setBytes(3, DatabaseUtils.convertBigDecimalToBinary(amount, currency.getPrecision()));
-            s1.execute();
+        try (var con = getConnection("sqlite.setBalance", AccountKey.of(uuid), currency, null)) {
+            con.begin();
+            setBalance(con, uuid, currency, amount);
+            con.commit();
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
+            written(AccountKey.of(uuid), currency, null);
             return false;
         }
     }
 
+    private void setBalance(ConnectionPool.PooledConnection con, UUID uuid, Currency currency, BigDecimal amount) throws SQLException {
+        final var s1 = con.prepare("INSERT INTO player_balances (currency_id, player_uuid, balance_int, balance_overflow) values (?,?,?,?) ON CONFLICT (currency_id, player_uuid) DO UPDATE SET balance_int = excluded.balance_int, balance_overflow = excluded.balance_overflow;");
+        s1.setInt(1, getCurrencyId(currency));
+        s1.setBytes(2, DatabaseUtils.convertUuidToBinary(uuid));
+        DatabaseUtils.setBalance(s1, 3, amount, currency.getPrecision());
+        s1.execute();
+        written(AccountKey.of(uuid), currency, amount);
+    }
+
     public boolean deleteAccount(UUID uuid) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("DELETE FROM player_balances WHERE player_uuid = ?;")
-        ) {
+        try (var con = getConnection("sqlite.deleteAccount", AccountKey.of(uuid), null, null)) {
+            final var s1 = con.prepare("DELETE FROM player_balances WHERE player_uuid = ?;");
             s1.setBytes(1, DatabaseUtils.convertUuidToBinary(uuid));
             s1.execute();
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
             return false;
         }
     }
 
     public Collection<String> getCurrenciesOf(UUID uuid) {
         HashSet<String> result = new HashSet<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT string_id from currencies join player_balances on currency_id = currencies.id where player_uuid = ?;")
-        ) {
+        try (var con = getConnection("sqlite.getCurrenciesOf", AccountKey.of(uuid), null, null)) {
+            final var s1 = con.prepare("SELECT currency_id from player_balances where player_uuid = ?;");
             s1.setBytes(1, DatabaseUtils.convertUuidToBinary(uuid));
             try (var rs = s1.executeQuery()) {
-                while (rs.next()) result.add(rs.getString("string_id"));
+                while (rs.next()) {
+                    final String identifier = currencyIds.getIdentifier(rs.getInt("currency_id"));
+                    if (identifier != null) result.add(identifier);
+                }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return result;
     }
 
     public BigDecimal getBalance(String id, me.lokka30.treasury.api.economy.currency.Currency currency) {
-        try (var con = getConnection();
-             var statement = con.prepareStatement("SELECT balance FROM account_balances join currencies on currencies.id = currency_id where string_id = ? and where account_balances.id = ?;")
-        ) {
-            statement.setString(1, currency.getIdentifier());
+        try (var con = getConnection("sqlite.getBalance", AccountKey.of(id), currency, null)) {
+            final var statement = con.prepare("SELECT balance_int, balance_overflow FROM account_balances where currency_id = ? and account_id = ?;");
+            statement.setInt(1, getCurrencyId(currency));
             statement.setString(2, id);
             try (var rs = statement.executeQuery()) {
                 if (rs.next())
-                    return DatabaseUtils.convertBytesToBigDecimal(rs.getBytes("balance"), currency.getPrecision());
+                    return DatabaseUtils.getBalance(rs, currency.getPrecision());
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return null;
     }
@@ -338,200 +873,547 @@ public class SQLiteDatabase {
     }
 
     public Optional<BigDecimal> changeBalance(String id, Currency currency, BigDecimal amount) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("begin immediate transaction;");
-             var s2 = con.prepareStatement("Select balance from account_balances join currencies on currencies.id = currency_id where account_id = ? and string_id = ?;");
-             var s3 = con.prepareStatement("INSERT INTO account_balances (currency_id, account_id, balance) values ((SELECT id from currencies where string_id = ?),?,?) ON CONFLICT (currency_id, account_id) DO UPDATE SET balance = excluded.balance;");
-             var s4 = con.prepareStatement("commit;")
-        ) {
-            s2.setString(1, id);
-            s2.setString(2, currency.getIdentifier());
-            s3.setString(1, currency.getIdentifier());
-            s3.setString(2, id);
-            s1.execute();
-            BigDecimal previousBalance = BigDecimal.ZERO;
-            try (var rs = s2.executeQuery()) {
-                if (rs.next()) {
-                    previousBalance = DatabaseUtils.convertBytesToBigDecimal(rs.getBytes("balance"), currency.getPrecision());
-                }
-            }
-            BigDecimal newBalance = previousBalance.add(amount);
-            s3.setBytes(3, DatabaseUtils.convertBigDecimalToBinary(newBalance, currency.getPrecision()));
-            s3.execute();
-            s4.execute();
+        try (var con = getConnection("sqlite.changeBalance", AccountKey.of(id), currency, null)) {
+            con.begin();
+            BigDecimal newBalance = changeBalance(con, id, currency, amount);
+            con.commit();
             return Optional.of(newBalance);
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
+            written(AccountKey.of(id), currency, null);
             return Optional.empty();
         }
     }
 
+    private BigDecimal changeBalance(ConnectionPool.PooledConnection con, String id, Currency currency, BigDecimal amount) throws SQLException {
+        final var s2 = con.prepare("Select balance_int, balance_overflow from account_balances where currency_id = ? and account_id = ?;");
+        s2.setInt(1, getCurrencyId(currency));
+        s2.setString(2, id);
+        BigDecimal previousBalance = BigDecimal.ZERO;
+        try (var rs = s2.executeQuery()) {
+            if (rs.next()) {
+                previousBalance = DatabaseUtils.getBalance(rs, currency.getPrecision());
+            }
+        }
+        BigDecimal newBalance = previousBalance.add(amount);
+        setBalance(con, id, currency, newBalance);
+        return newBalance;
+    }
+
     public boolean setBalance(String id, String currencyId, BigDecimal amount) {
         return setBalance(id, plugin.getEconomy().findCurrency(currencyId).get(), amount);
     }
 
     public boolean setBalance(String id, Currency currency, BigDecimal amount) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("INSERT INTO account_balances (currency_id, account_id, balance) values ((SELECT id from currencies where string_id = ?),?,?) ON CONFLICT (currency_id, account_id) DO UPDATE SET balance = excluded.balance;")
-        ) {
-            s1.setString(1, currency.getIdentifier());
-            s1.setString(2, id);
-            s1.setBytes(3, DatabaseUtils.convertBigDecimalToBinary(amount, currency.getPrecision()));
-            s1.execute();
+        try (var con = getConnection("sqlite.setBalance", AccountKey.of(id), currency, null)) {
+            con.begin();
+            setBalance(con, id, currency, amount);
+            con.commit();
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
+            written(AccountKey.of(id), currency, null);
             return false;
         }
     }
 
+    private void setBalance(ConnectionPool.PooledConnection con, String id, Currency currency, BigDecimal amount) throws SQLException {
+        final var s1 = con.prepare("INSERT INTO account_balances (currency_id, account_id, balance_int, balance_overflow) values (?,?,?,?) ON CONFLICT (currency_id, account_id) DO UPDATE SET balance_int = excluded.balance_int, balance_overflow = excluded.balance_overflow;");
+        s1.setInt(1, getCurrencyId(currency));
+        s1.setString(2, id);
+        DatabaseUtils.setBalance(s1, 3, amount, currency.getPrecision());
+        s1.execute();
+        written(AccountKey.of(id), currency, amount);
+    }
+
+    /**
+     * Changes the balance of an account, through the write queue if it is enabled
+     *
+     * @param account     the account whose balance changes
+     * @param currency    the currency of the balance
+     * @param amount      the amount that gets added to the balance
+     * @param transaction the transaction that gets appended to the journal in the same database transaction, or null
+     * @return a future that completes with the new balance or an empty Optional if the write failed
+     */
+    @Override
+    public CompletableFuture<Optional<BigDecimal>> queueChangeBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount, @Nullable EconomyTransaction transaction) {
+        if (writeQueue != null) return writeQueue.submit(account, currency, amount, false, transaction);
+        final var write = new WriteQueue.PendingWrite(account, currency, amount, false, transaction, new CompletableFuture<>());
+        return plugin.getExecutor().run(account, () -> writeBatch(List.of(write))).thenCompose(ignored -> write.future());
+    }
+
+    /**
+     * Sets the balance of an account, through the write queue if it is enabled
+     *
+     * @param account     the account whose balance gets set
+     * @param currency    the currency of the balance
+     * @param amount      the new balance
+     * @param transaction the transaction that gets appended to the journal in the same database transaction, or null
+     * @return a future that completes with the new balance or an empty Optional if the write failed
+     */
+    @Override
+    public CompletableFuture<Optional<BigDecimal>> queueSetBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount, @Nullable EconomyTransaction transaction) {
+        if (writeQueue != null) return writeQueue.submit(account, currency, amount, true, transaction);
+        final var write = new WriteQueue.PendingWrite(account, currency, amount, true, transaction, new CompletableFuture<>());
+        return plugin.getExecutor().run(account, () -> writeBatch(List.of(write))).thenCompose(ignored -> write.future());
+    }
+
+    /**
+     * Writes a batch of writes in one transaction and completes their futures in order once it is committed.
+     * If the batch fails, every write gets retried in its own transaction, so that one broken write can't fail the others.
+     *
+     * @param batch the writes to write
+     */
+    public void writeBatch(List<WriteQueue.PendingWrite> batch) {
+        writeBatch(batch, List.of());
+    }
+
+    /**
+     * Writes a batch of writes together with journal entries in one transaction and completes the futures of the writes
+     * in order once it is committed. The transactions of the writes get appended to the journal as well.
+     * If the batch fails, every write gets retried in its own transaction, so that one broken write can't fail the others.
+     *
+     * @param batch   the writes to write
+     * @param entries additional entries for the journal, e.g. of changes that were only applied in memory so far
+     */
+    @Override
+    public void writeBatch(@NotNull List<WriteQueue.PendingWrite> batch, @NotNull List<TransactionJournal.Entry> entries) {
+        final ArrayList<BigDecimal> results = new ArrayList<>(batch.size());
+        final WriteQueue.PendingWrite single = batch.size() == 1 ? batch.get(0) : null;
+        try (var con = single != null
+                ? getConnection("sqlite.writeBatch", single.account(), single.currency(), single.transaction())
+                : getConnection("sqlite.writeBatch")) {
+            final DatabaseOperationEvent event = con.event();
+            if (event != null) event.batchSize = batch.size() + entries.size();
+            con.begin();
+            for (WriteQueue.PendingWrite write : batch) results.add(write(con, write));
+            if (journal != null) {
+                final ArrayList<TransactionJournal.Entry> journalEntries = new ArrayList<>(entries);
+                for (WriteQueue.PendingWrite write : batch) {
+                    if (write.transaction() != null)
+                        journalEntries.add(new TransactionJournal.Entry(write.account(), write.currency(), write.transaction()));
+                }
+                journal.addBatch(con, journalEntries);
+                journal.executeBatch(con);
+            }
+            con.commit();
+        } catch (SQLException e) {
+            for (WriteQueue.PendingWrite write : batch) written(write.account(), write.currency(), null);
+            if (batch.size() + entries.size() == 1) {
+                failed(e);
+                if (!batch.isEmpty()) batch.get(0).future().complete(Optional.empty());
+                return;
+            }
+            for (WriteQueue.PendingWrite write : batch) writeBatch(List.of(write));
+            for (TransactionJournal.Entry entry : entries) writeBatch(List.of(), List.of(entry));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) batch.get(i).future().complete(Optional.of(results.get(i)));
+    }
+
+    private BigDecimal write(ConnectionPool.PooledConnection con, WriteQueue.PendingWrite write) throws SQLException {
+        if (write.account() instanceof AccountKey.Player player) {
+            if (!write.set()) return changeBalance(con, player.uuid(), write.currency(), write.amount());
+            setBalance(con, player.uuid(), write.currency(), write.amount());
+        } else {
+            final String id = ((AccountKey.NonPlayer) write.account()).identifier();
+            if (!write.set()) return changeBalance(con, id, write.currency(), write.amount());
+            setBalance(con, id, write.currency(), write.amount());
+        }
+        return write.amount();
+    }
+
+    /**
+     * Moves an amount between two accounts in one database transaction together with both journal entries
+     */
+    @Override
+    public TransferResult transfer(@NotNull AccountKey from, @NotNull AccountKey to, @NotNull Currency currency, @NotNull BigDecimal amount, boolean requireFunds, @Nullable EconomyTransaction withdrawal, @Nullable EconomyTransaction deposit) {
+        try (var con = getConnection("sqlite.transfer", from, currency, withdrawal)) {
+            con.begin();
+            try {
+                final BigDecimal fromPrevious = Objects.requireNonNullElse(readBalance(con, from, currency), BigDecimal.ZERO);
+                if (requireFunds && fromPrevious.compareTo(amount) < 0) {
+                    con.rollback();
+                    return TransferResult.insufficientFunds();
+                }
+                final BigDecimal fromBalance = fromPrevious.subtract(amount);
+                final BigDecimal toBalance = Objects.requireNonNullElse(readBalance(con, to, currency), BigDecimal.ZERO).add(amount);
+                writeBalance(con, from, currency, fromBalance);
+                writeBalance(con, to, currency, toBalance);
+                if (journal != null) {
+                    final ArrayList<TransactionJournal.Entry> entries = new ArrayList<>(2);
+                    if (withdrawal != null) entries.add(new TransactionJournal.Entry(from, currency, withdrawal));
+                    if (deposit != null) entries.add(new TransactionJournal.Entry(to, currency, deposit));
+                    journal.addBatch(con, entries);
+                    journal.executeBatch(con);
+                }
+                con.commit();
+                return TransferResult.success(fromBalance, toBalance);
+            } catch (SQLException e) {
+                con.rollback();
+                written(from, currency, null);
+                written(to, currency, null);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failed(e);
+            return TransferResult.failed();
+        }
+    }
+
+    /**
+     * Moves an amount between two balances of one account in one database transaction together with both journal entries
+     */
+    @Override
+    public TransferResult exchange(@NotNull AccountKey account, @NotNull Currency from, @NotNull BigDecimal amount, @NotNull Currency to, @NotNull BigDecimal converted, boolean requireFunds, @Nullable EconomyTransaction withdrawal, @Nullable EconomyTransaction deposit) {
+        try (var con = getConnection("sqlite.exchange", account, from, withdrawal)) {
+            con.begin();
+            try {
+                final BigDecimal fromPrevious = Objects.requireNonNullElse(readBalance(con, account, from), BigDecimal.ZERO);
+                if (requireFunds && fromPrevious.compareTo(amount) < 0) {
+                    con.rollback();
+                    return TransferResult.insufficientFunds();
+                }
+                final BigDecimal fromBalance = fromPrevious.subtract(amount);
+                final BigDecimal toBalance = Objects.requireNonNullElse(readBalance(con, account, to), BigDecimal.ZERO).add(converted);
+                writeBalance(con, account, from, fromBalance);
+                writeBalance(con, account, to, toBalance);
+                if (journal != null) {
+                    final ArrayList<TransactionJournal.Entry> entries = new ArrayList<>(2);
+                    if (withdrawal != null) entries.add(new TransactionJournal.Entry(account, from, withdrawal));
+                    if (deposit != null) entries.add(new TransactionJournal.Entry(account, to, deposit));
+                    journal.addBatch(con, entries);
+                    journal.executeBatch(con);
+                }
+                con.commit();
+                return TransferResult.success(fromBalance, toBalance);
+            } catch (SQLException e) {
+                con.rollback();
+                written(account, from, null);
+                written(account, to, null);
+                throw e;
+            }
+        } catch (SQLException e) {
+            failed(e);
+            return TransferResult.failed();
+        }
+    }
+
+    /**
+     * Changes the balances in chunks of {@value #BULK_CHUNK_SIZE} accounts. Every chunk is one transaction with one batch
+     * of balance writes per table and one batch of journal entries. If a chunk fails, none of its accounts change.
+     */
+    @Override
+    public Map<AccountKey, Optional<BigDecimal>> changeBalances(@NotNull Currency currency, @NotNull Map<AccountKey, BigDecimal> amounts, boolean requireFunds, @Nullable Function<AccountKey, EconomyTransaction> transactions) {
+        final LinkedHashMap<AccountKey, Optional<BigDecimal>> results = new LinkedHashMap<>();
+        final ArrayList<Map.Entry<AccountKey, BigDecimal>> entries = new ArrayList<>(amounts.entrySet());
+        for (int start = 0; start < entries.size(); start += BULK_CHUNK_SIZE) {
+            final List<Map.Entry<AccountKey, BigDecimal>> chunk = entries.subList(start, Math.min(entries.size(), start + BULK_CHUNK_SIZE));
+            try {
+                results.putAll(changeChunk(currency, chunk, requireFunds, transactions));
+            } catch (SQLException e) {
+                failed(e);
+                for (Map.Entry<AccountKey, BigDecimal> entry : chunk) {
+                    written(entry.getKey(), currency, null);
+                    results.put(entry.getKey(), Optional.empty());
+                }
+            }
+        }
+        return results;
+    }
+
+    private Map<AccountKey, Optional<BigDecimal>> changeChunk(Currency currency, List<Map.Entry<AccountKey, BigDecimal>> chunk, boolean requireFunds, @Nullable Function<AccountKey, EconomyTransaction> transactions) throws SQLException {
+        final LinkedHashMap<AccountKey, Optional<BigDecimal>> results = new LinkedHashMap<>();
+        final int currencyId = getCurrencyId(currency);
+        try (var con = getConnection("sqlite.changeBalances", null, currency, null)) {
+            final DatabaseOperationEvent event = con.event();
+            if (event != null) event.batchSize = chunk.size();
+            con.begin();
+            final ArrayList<TransactionJournal.Entry> journalEntries = new ArrayList<>();
+            final ArrayList<Map.Entry<AccountKey, BigDecimal>> writes = new ArrayList<>(chunk.size());
+            for (Map.Entry<AccountKey, BigDecimal> entry : chunk) {
+                final AccountKey account = entry.getKey();
+                final BigDecimal balance = Objects.requireNonNullElse(readBalance(con, account, currency), BigDecimal.ZERO).add(entry.getValue());
+                if (requireFunds && entry.getValue().signum() < 0 && balance.signum() < 0) {
+                    results.put(account, Optional.empty());
+                    continue;
+                }
+                writes.add(Map.entry(account, balance));
+                results.put(account, Optional.of(balance));
+                final EconomyTransaction transaction = transactions == null ? null : transactions.apply(account);
+                if (transaction != null) journalEntries.add(new TransactionJournal.Entry(account, currency, transaction));
+            }
+            final var players = con.prepare("INSERT INTO player_balances (currency_id, player_uuid, balance_int, balance_overflow) values (?,?,?,?) ON CONFLICT (currency_id, player_uuid) DO UPDATE SET balance_int = excluded.balance_int, balance_overflow = excluded.balance_overflow;");
+            final var accounts = con.prepare("INSERT INTO account_balances (currency_id, account_id, balance_int, balance_overflow) values (?,?,?,?) ON CONFLICT (currency_id, account_id) DO UPDATE SET balance_int = excluded.balance_int, balance_overflow = excluded.balance_overflow;");
+            for (Map.Entry<AccountKey, BigDecimal> write : writes) {
+                final PreparedStatement statement;
+                if (write.getKey() instanceof AccountKey.Player player) {
+                    statement = players;
+                    statement.setBytes(2, DatabaseUtils.convertUuidToBinary(player.uuid()));
+                } else {
+                    statement = accounts;
+                    statement.setString(2, ((AccountKey.NonPlayer) write.getKey()).identifier());
+                }
+                statement.setInt(1, currencyId);
+                DatabaseUtils.setBalance(statement, 3, write.getValue(), currency.getPrecision());
+                statement.addBatch();
+                written(write.getKey(), currency, write.getValue());
+            }
+            players.executeBatch();
+            accounts.executeBatch();
+            if (journal != null && !journalEntries.isEmpty()) {
+                journal.addBatch(con, journalEntries);
+                journal.executeBatch(con);
+            }
+            con.commit();
+        }
+        return results;
+    }
+
+    private @Nullable BigDecimal readBalance(ConnectionPool.PooledConnection con, AccountKey account, Currency currency) throws SQLException {
+        final PreparedStatement statement;
+        if (account instanceof AccountKey.Player player) {
+            statement = con.prepare("SELECT balance_int, balance_overflow FROM player_balances where currency_id = ? and player_uuid = ?;");
+            statement.setBytes(2, DatabaseUtils.convertUuidToBinary(player.uuid()));
+        } else {
+            statement = con.prepare("SELECT balance_int, balance_overflow FROM account_balances where currency_id = ? and account_id = ?;");
+            statement.setString(2, ((AccountKey.NonPlayer) account).identifier());
+        }
+        statement.setInt(1, getCurrencyId(currency));
+        try (var rs = statement.executeQuery()) {
+            return rs.next() ? DatabaseUtils.getBalance(rs, currency.getPrecision()) : null;
+        }
+    }
+
+    private void writeBalance(ConnectionPool.PooledConnection con, AccountKey account, Currency currency, BigDecimal amount) throws SQLException {
+        if (account instanceof AccountKey.Player player) setBalance(con, player.uuid(), currency, amount);
+        else setBalance(con, ((AccountKey.NonPlayer) account).identifier(), currency, amount);
+    }
+
     public boolean deleteAccount(String id) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("DELETE FROM account_balances WHERE account_id = ?;")
-        ) {
+        try (var con = getConnection("sqlite.deleteAccount", AccountKey.of(id), null, null)) {
+            final var s1 = con.prepare("DELETE FROM account_balances WHERE account_id = ?;");
             s1.setString(1, id);
             s1.execute();
+            // the cleanup trigger deleted the permissions along with the last balance
+            permissions.removeAccount(id);
             return true;
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
             return false;
         }
     }
 
     public Collection<String> getCurrenciesOf(String id) {
         HashSet<String> result = new HashSet<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT string_id from currencies join account_balances on currency_id = currencies.id where account_id = ?;")
-        ) {
+        try (var con = getConnection("sqlite.getCurrenciesOf", AccountKey.of(id), null, null)) {
+            final var s1 = con.prepare("SELECT currency_id from account_balances where account_id = ?;");
             s1.setString(1, id);
             try (var rs = s1.executeQuery()) {
-                while (rs.next()) result.add(rs.getString("string_id"));
+                while (rs.next()) {
+                    final String identifier = currencyIds.getIdentifier(rs.getInt("currency_id"));
+                    if (identifier != null) result.add(identifier);
+                }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return result;
     }
 
-    public Collection<UUID> getMembers(String id) {
-        HashSet<UUID> result = new HashSet<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT DISTINCT player_uuid from account_permissions where account_id = ?;")
-        ) {
-            s1.setString(1, id);
+    /**
+     * Reads all permissions into the in-memory index, which answers every permission lookup
+     */
+    private void loadPermissions() {
+        permissions.clear();
+        try (var con = getConnection("sqlite.loadPermissions")) {
+            final var s1 = con.prepare("SELECT account_id, player_uuid, permissions FROM account_permissions;");
             try (var rs = s1.executeQuery()) {
-                while (rs.next()) result.add(DatabaseUtils.convertBytesToUUID(rs.getBytes("string_id")));
+                while (rs.next())
+                    permissions.put(rs.getString("account_id"), DatabaseUtils.convertBytesToUUID(rs.getBytes("player_uuid")), rs.getInt("permissions"));
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
-        return result;
     }
 
-    public void setPermission(UUID player, String identifier, boolean value, AccountPermission permission) {
-        if (value) {
-            try (var con = getConnection();
-                 var s1 = con.prepareStatement("INSERT OR IGNORE INTO account_permissions (player_uuid, account_id, permission)  VALUES(?,?,?);")
-            ) {
-                s1.setBytes(1, DatabaseUtils.convertUuidToBinary(player));
-                s1.setString(2, identifier);
-                s1.setInt(3, permission.ordinal());
-                s1.execute();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        } else {
-            try (var con = getConnection();
-                 var s1 = con.prepareStatement("DELETE FROM account_permissions where player_uuid = ? and account_id = ? and permission = ?;")
-            ) {
-                s1.setBytes(1, DatabaseUtils.convertUuidToBinary(player));
-                s1.setString(2, identifier);
-                s1.setInt(3, permission.ordinal());
-                s1.execute();
-            } catch (SQLException e) {
-                e.printStackTrace();
+    private void loadExchangeRates() {
+        final HashMap<String, HashMap<String, BigDecimal>> rates = new HashMap<>();
+        try (var con = getConnection("sqlite.loadExchangeRates")) {
+            final var s1 = con.prepare("SELECT from_currencies.string_id AS from_id, to_currencies.string_id AS to_id, rate FROM exchange_rates JOIN currencies from_currencies ON from_currencies.id = from_currency_id JOIN currencies to_currencies ON to_currencies.id = to_currency_id;");
+            try (var rs = s1.executeQuery()) {
+                while (rs.next())
+                    rates.computeIfAbsent(rs.getString("from_id"), id -> new HashMap<>()).put(rs.getString("to_id"), new BigDecimal(rs.getString("rate")));
             }
+        } catch (SQLException e) {
+            failed(e);
         }
+        exchangeRates.load(rates);
     }
 
-    public HashMap<AccountPermission, TriState> getPermissions(UUID player, String identifier) {
-        HashMap<AccountPermission, TriState> result = new HashMap<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT permission from account_permissions where player_uuid = ? and account_id = ?;")
-        ) {
-            s1.setBytes(1, DatabaseUtils.convertUuidToBinary(player));
-            s1.setString(2, identifier);
-            try (var rs = s1.executeQuery()) {
-                while (rs.next()) result.put(AccountPermission.values()[rs.getInt("permission")], TriState.TRUE);
-            }
+    @Override
+    public ExchangeRates getExchangeRates() {
+        return exchangeRates;
+    }
+
+    /**
+     * Writes the rate as text so it is stored exactly, and only then swaps the new rates in. Rate changes are serialized,
+     * so the rates in memory and in the database always agree.
+     */
+    @Override
+    public synchronized boolean setExchangeRate(@NotNull String from, @NotNull String to, @Nullable BigDecimal rate) {
+        try (var con = getConnection("sqlite.setExchangeRate")) {
+            final var s1 = rate == null
+                    ? con.prepare("DELETE FROM exchange_rates WHERE from_currency_id = ? AND to_currency_id = ?;")
+                    : con.prepare("INSERT INTO exchange_rates (from_currency_id, to_currency_id, rate) VALUES(?,?,?) ON CONFLICT (from_currency_id, to_currency_id) DO UPDATE SET rate = excluded.rate;");
+            s1.setInt(1, getCurrencyId(from));
+            s1.setInt(2, getCurrencyId(to));
+            if (rate != null) s1.setString(3, rate.toPlainString());
+            s1.execute();
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
+            return false;
         }
-        return result;
+        exchangeRates.put(from, to, rate);
+        return true;
     }
 
-    public HashMap<UUID, HashMap<AccountPermission, TriState>> getPermissionMap(String identifier) {
-        HashMap<UUID, HashMap<AccountPermission, TriState>> result = new HashMap<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT player_uuid, permission from account_permissions where account_id = ?;")
-        ) {
+    @Override
+    public Collection<UUID> getMembers(String id) {
+        return permissions.getMembers(id);
+    }
+
+    /**
+     * Writes the new bitmask of the player in one statement and only then updates the index. Permission changes
+     * are serialized, so the index and the database always agree.
+     */
+    @Override
+    public synchronized boolean setPermissions(UUID player, String identifier, boolean value, AccountPermission... permissions) {
+        final int mask = PermissionIndex.mask(permissions);
+        final int previous = this.permissions.get(identifier, player);
+        final int granted = value ? previous | mask : previous & ~mask;
+        if (granted == previous) return true;
+        try (var con = getConnection("sqlite.setPermissions")) {
+            final var s1 = granted == 0
+                    ? con.prepare("DELETE FROM account_permissions WHERE account_id = ? AND player_uuid = ?;")
+                    : con.prepare("INSERT INTO account_permissions (account_id, player_uuid, permissions) VALUES(?,?,?) ON CONFLICT (account_id, player_uuid) DO UPDATE SET permissions = excluded.permissions;");
             s1.setString(1, identifier);
-            try (var rs = s1.executeQuery()) {
-                while (rs.next()) {
-                    final UUID player = DatabaseUtils.convertBytesToUUID(rs.getBytes("player_uuid"));
-                    if (!result.containsKey(player)) result.put(player, new HashMap<>());
-                    result.get(player).put(AccountPermission.values()[rs.getInt("permission")], TriState.TRUE);
-                }
-            }
+            s1.setBytes(2, DatabaseUtils.convertUuidToBinary(player));
+            if (granted != 0) s1.setInt(3, granted);
+            s1.execute();
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
+            return false;
         }
-        return result;
+        this.permissions.put(identifier, player, granted);
+        return true;
     }
 
-    public boolean hasPermission(UUID player, String identifier, AccountPermission permission) {
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT * from account_permissions where player_uuid = ? and account_id = ? and permission = ?;")
-        ) {
-            s1.setBytes(1, DatabaseUtils.convertUuidToBinary(player));
-            s1.setString(2, identifier);
-            s1.setInt(2, permission.ordinal());
-            try (var rs = s1.executeQuery()) {
-                if (rs.next()) return true;
+    @Override
+    public HashMap<AccountPermission, TriState> getPermissions(UUID player, String identifier) {
+        return PermissionIndex.toMap(permissions.get(identifier, player));
+    }
+
+    @Override
+    public HashMap<UUID, HashMap<AccountPermission, TriState>> getPermissionMap(String identifier) {
+        return permissions.getPermissionMap(identifier);
+    }
+
+    @Override
+    public boolean hasPermission(UUID player, String identifier, AccountPermission... permissions) {
+        return this.permissions.has(identifier, player, PermissionIndex.mask(permissions));
+    }
+
+    @Override
+    public Collection<String> getAccountsOf(UUID player) {
+        return permissions.getAccountsOf(player);
+    }
+
+    @Override
+    public Collection<String> getAccountsOf(UUID player, AccountPermission... permissions) {
+        return this.permissions.getAccountsOf(player, PermissionIndex.mask(permissions));
+    }
+
+    /**
+     * Gets the highest player balances of a currency. This reads the (currency_id, balance_int) index backwards,
+     * only balances that don't fit into an integer have to be read in full.
+     *
+     * @param currency the currency to look up
+     * @param limit    the maximum amount of balances
+     * @return the players and their balances, highest first
+     */
+    @Override
+    public LinkedHashMap<UUID, BigDecimal> getTopBalances(@NotNull Currency currency, int limit) {
+        final ArrayList<Map.Entry<UUID, BigDecimal>> balances = new ArrayList<>();
+        try (var con = getConnection("sqlite.getTopBalances")) {
+            final var s1 = con.prepare("SELECT player_uuid, balance_int, balance_overflow FROM player_balances WHERE currency_id = ? AND balance_int IS NOT NULL ORDER BY balance_int DESC LIMIT ?;");
+            s1.setInt(1, getCurrencyId(currency));
+            s1.setInt(2, limit);
+            final var s2 = con.prepare("SELECT player_uuid, balance_int, balance_overflow FROM player_balances WHERE currency_id = ? AND balance_int IS NULL;");
+            s2.setInt(1, getCurrencyId(currency));
+            for (var statement : List.of(s1, s2)) {
+                try (var rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        balances.add(Map.entry(DatabaseUtils.convertBytesToUUID(rs.getBytes("player_uuid")), DatabaseUtils.getBalance(rs, currency.getPrecision())));
+                    }
+                }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
-        return false;
+        balances.sort(Map.Entry.<UUID, BigDecimal>comparingByValue().reversed());
+        final LinkedHashMap<UUID, BigDecimal> result = new LinkedHashMap<>();
+        for (int i = 0; i < Math.min(limit, balances.size()); i++) result.put(balances.get(i).getKey(), balances.get(i).getValue());
+        return result;
     }
 
+    @Override
     public Collection<UUID> getPlayerIds() {
         HashSet<UUID> result = new HashSet<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT DISTINCT player_uuid from player_balances;")
-        ) {
+        try (var con = getConnection("sqlite.getPlayerIds")) {
+            final var s1 = con.prepare("SELECT DISTINCT player_uuid from player_balances;");
             try (var rs = s1.executeQuery()) {
                 while (rs.next()) {
                     result.add(DatabaseUtils.convertBytesToUUID(rs.getBytes("player_uuid")));
                 }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return result;
     }
+    @Override
+    public Collection<AccountKey> getAccountsWith(@NotNull Currency currency) {
+        final ArrayList<AccountKey> result = new ArrayList<>();
+        try (var con = getConnection("sqlite.getAccountsWith")) {
+            final var s1 = con.prepare("SELECT player_uuid FROM player_balances WHERE currency_id = ?;");
+            s1.setInt(1, getCurrencyId(currency));
+            try (var rs = s1.executeQuery()) {
+                while (rs.next()) result.add(AccountKey.of(DatabaseUtils.convertBytesToUUID(rs.getBytes("player_uuid"))));
+            }
+            final var s2 = con.prepare("SELECT account_id FROM account_balances WHERE currency_id = ?;");
+            s2.setInt(1, getCurrencyId(currency));
+            try (var rs = s2.executeQuery()) {
+                while (rs.next()) result.add(AccountKey.of(rs.getString("account_id")));
+            }
+        } catch (SQLException e) {
+            failed(e);
+        }
+        return result;
+    }
+
+    @Override
     public Collection<String> getAccountIds() {
         HashSet<String> result = new HashSet<>();
-        try (var con = getConnection();
-             var s1 = con.prepareStatement("SELECT DISTINCT account_id from account_balances;")
-        ) {
+        try (var con = getConnection("sqlite.getAccountIds")) {
+            final var s1 = con.prepare("SELECT DISTINCT account_id from account_balances;");
             try (var rs = s1.executeQuery()) {
                 while (rs.next()) {
                     result.add(rs.getString("account_id"));
                 }
             }
         } catch (SQLException e) {
-            e.printStackTrace();
+            failed(e);
         }
         return result;
     }
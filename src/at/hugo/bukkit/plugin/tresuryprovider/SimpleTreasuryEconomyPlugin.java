@@ -3,8 +3,10 @@ package at.hugo.bukkit.plugin.tresuryprovider;
 import cloud.commandframework.arguments.standard.*;
 import cloud.commandframework.context.CommandContext;
 import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.common.response.Response;
 import me.lokka30.treasury.api.common.service.ServicePriority;
 import me.lokka30.treasury.api.common.service.ServiceRegistry;
+import me.lokka30.treasury.api.economy.account.Account;
 import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
 import me.lokka30.treasury.api.economy.transaction.EconomyTransactionImportance;
 import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
@@ -19,29 +21,64 @@ import org.bukkit.plugin.java.JavaPlugin;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import static net.kyori.adventure.text.Component.text;
 
-public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
+public class SimpleTreasuryEconomyPlugin extends JavaPlugin implements EconomyContext {
     private final static String commandName = "economyprovider";
     private CommandManager commandManager;
 
-    private SQLiteDatabase database;
+    private EconomyExecutor executor;
+    private StorageEngine storage;
+    private BalanceManager balanceManager;
     private EconomyProvider economy;
+    private final Metrics metrics = new Metrics();
 
     @Override
     public void onEnable() {
         reloadConfig();
-        database = new SQLiteDatabase(this, new File(getDataFolder(), "database.db").getPath());
+        final int threads = getConfig().getInt("executor.threads", 0);
+        executor = new EconomyExecutor(threads > 0 ? threads : Math.max(2, Runtime.getRuntime().availableProcessors()), getConfig().getInt("executor.stripes", 256));
+        metrics.gauge("executor.queued", executor::getQueuedTasks);
+        storage = createStorage();
+        BalanceCache balanceCache = null;
+        if (getConfig().getBoolean("cache.write-behind", false)) {
+            balanceCache = new BalanceCache(storage, getConfig().getInt("cache.max-entries", 100000), getConfig().getInt("cache.max-dirty-entries", 1000), executor);
+            metrics.gauge("cache.dirty", balanceCache::dirtySize);
+            final long flushInterval = Math.max(1, getConfig().getLong("cache.flush-interval-seconds", 5)) * 20;
+            getServer().getScheduler().runTaskTimerAsynchronously(this, balanceCache::flush, flushInterval, flushInterval);
+        }
+        balanceManager = new BalanceManager(storage, balanceCache, executor);
+        final long metricsInterval = getConfig().getLong("metrics.log-interval-seconds", 300) * 20;
+        if (metricsInterval > 0)
+            getServer().getScheduler().runTaskTimerAsynchronously(this, () -> getLogger().info(metrics.summarize()), metricsInterval, metricsInterval);
         getLogger().info("Loading Currencies");
-        var currencies = database.loadCurrencies();
+        var currencies = storage.loadCurrencies();
         getLogger().info("Loaded Currencies");
+        if (getConfig().getBoolean("leaderboard.enabled", true)) {
+            final Leaderboard leaderboard = balanceManager.enableLeaderboard(getConfig().getInt("leaderboard.size", 100));
+            currencies.values().forEach(leaderboard::load);
+        }
         this.economy = new EconomyProvider(this, currencies);
         if (currencies.isEmpty())
             economy.registerCurrency(new Currency("temporaryCurrencyWillDeleteItselfOnceANewOneIsCreated", "temp", '.', null, "temp", "temp", 2, true)).join();
         ServiceRegistry.INSTANCE.registerService(me.lokka30.treasury.api.economy.EconomyProvider.class, economy, "Simple Treasury EconomyProvider by Hugowo", ServicePriority.NORMAL);
+        if (getConfig().getBoolean("cache.preload-online-players", true)) {
+            getServer().getPluginManager().registerEvents(new PlayerSessionListener(this), this);
+            // players that are already online after a reload never log in again
+            for (Player player : Bukkit.getOnlinePlayers()) balanceManager.preload(player.getUniqueId(), economy::findCurrency);
+        }
         try {
             commandManager = new CommandManager(this, Component.text()
                     .append(text("[", NamedTextColor.DARK_GRAY))
@@ -55,9 +92,73 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
         createCommands();
     }
 
+    @Override
+    public void onDisable() {
+        // the cache gets written before the queued work runs and once more for the balances that work changed
+        if (balanceManager != null) balanceManager.flush();
+        if (executor != null) {
+            final int dropped = executor.shutdown();
+            if (dropped > 0) getLogger().warning(dropped + " economy operations didn't finish within 10 seconds and were dropped");
+        }
+        if (balanceManager != null) balanceManager.flush();
+        if (storage instanceof SQLiteDatabase database) {
+            final var pool = database.getConnectionPool();
+            getLogger().info("Connection pool: " + pool.getConnectionHits() + " hits, " + pool.getConnectionMisses() + " misses; statement cache: " + pool.getStatementHits() + " hits, " + pool.getStatementMisses() + " misses");
+        }
+        if (storage != null) storage.close();
+    }
+
+    /**
+     * Creates the storage engine that is set by {@code storage.engine} in the config
+     */
+    private StorageEngine createStorage() {
+        final String engine = getConfig().getString("storage.engine", "sqlite");
+        if ("memory".equalsIgnoreCase(engine)) {
+            getLogger().warning("Using the in-memory storage, all balances are lost when the server stops");
+            return new MemoryStorageEngine();
+        }
+        if ("mmap".equalsIgnoreCase(engine)) {
+            final MappedLogStorageEngine mapped;
+            try {
+                mapped = new MappedLogStorageEngine(getDataFolder().toPath().resolve("mmap"), Math.max(1, getConfig().getInt("storage.mmap.log-size-mb", 64)) * 1024 * 1024, getLogger(), executor);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            final long syncInterval = getConfig().getLong("storage.mmap.sync-interval-seconds", 1) * 20;
+            if (syncInterval > 0)
+                getServer().getScheduler().runTaskTimerAsynchronously(this, mapped::sync, syncInterval, syncInterval);
+            final long snapshotInterval = Math.max(1, getConfig().getLong("storage.mmap.snapshot-interval-seconds", 300)) * 20;
+            getServer().getScheduler().runTaskTimerAsynchronously(this, mapped::snapshot, snapshotInterval, snapshotInterval);
+            return mapped;
+        }
+        if (!"sqlite".equalsIgnoreCase(engine))
+            getLogger().warning("Unknown storage engine " + engine + ", using sqlite");
+        final SQLiteDatabase database = new SQLiteDatabase(this, new File(getDataFolder(), "database.db").getPath(), getConfig().getInt("database.pool-size", 4));
+        if (getConfig().getBoolean("database.write-queue.enabled", true))
+            database.enableWriteQueue(getConfig().getInt("database.write-queue.max-batch-size", 256), getConfig().getLong("database.write-queue.max-wait-ms", 2));
+        if (getConfig().getBoolean("journal.enabled", true)) {
+            database.enableJournal();
+            final long retentionDays = getConfig().getLong("journal.retention-days", 90);
+            if (retentionDays > 0) {
+                final long pruneInterval = Math.max(1, getConfig().getLong("journal.prune-interval-minutes", 60)) * 20 * 60;
+                getServer().getScheduler().runTaskTimerAsynchronously(this, () -> {
+                    try {
+                        final long deleted = database.getJournal().prune(Instant.now().minus(retentionDays, ChronoUnit.DAYS));
+                        if (deleted > 0) getLogger().info("Deleted " + deleted + " transactions older than " + retentionDays + " days");
+                    } catch (SQLException e) {
+                        e.printStackTrace();
+                    }
+                }, pruneInterval, pruneInterval);
+            }
+        }
+        return database;
+    }
+
     @Override
     public void reloadConfig() {
         saveDefaultConfig();
+        // flight recorder settings for the economy events, see the file for how to use it
+        if (!new File(getDataFolder(), "economy.jfc").exists()) saveResource("economy.jfc", false);
         super.reloadConfig();
     }
 
@@ -65,7 +166,7 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
         var builder = commandManager.manager().commandBuilder(commandName);
         commandManager.command(builder.literal("bal")
                 .senderType(Player.class)
-                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencies().stream().map(me.lokka30.treasury.api.economy.currency.Currency::getIdentifier).filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
                 .handler(commandContext -> {
                     final Currency currency = getCurrency(commandContext);
                     if (currency == null) return;
@@ -75,7 +176,7 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                 })
         );
         commandManager.command(builder.literal("bal")
-                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencies().stream().map(me.lokka30.treasury.api.economy.currency.Currency::getIdentifier).filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
                 .argument(StringArgument.<CommandSender>newBuilder("player").withSuggestionsProvider((commandContext, s) -> Arrays.stream(Bukkit.getServer().getOfflinePlayers()).map(OfflinePlayer::getName).filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
                 .handler(commandContext -> {
                     OfflinePlayer player = getOfflinePlayer(commandContext);
@@ -95,7 +196,7 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                 .literal("player")
                 .argument(StringArgument.<CommandSender>newBuilder("player").withSuggestionsProvider((commandContext, s) -> Arrays.stream(Bukkit.getServer().getOfflinePlayers()).map(OfflinePlayer::getName).filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
                 .argument(DoubleArgument.of("amount"))
-                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencies().stream().map(me.lokka30.treasury.api.economy.currency.Currency::getIdentifier).filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
                 .handler(commandContext -> {
                     OfflinePlayer player = getOfflinePlayer(commandContext);
                     if (player == null) return;
@@ -120,7 +221,7 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                 .literal("player")
                 .argument(StringArgument.<CommandSender>newBuilder("player").withSuggestionsProvider((commandContext, s) -> Arrays.stream(Bukkit.getServer().getOfflinePlayers()).map(OfflinePlayer::getName).filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
                 .argument(DoubleArgument.of("amount"))
-                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencies().stream().map(me.lokka30.treasury.api.economy.currency.Currency::getIdentifier).filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
                 .handler(commandContext -> {
                     final OfflinePlayer player = getOfflinePlayer(commandContext);
                     if (player == null) return;
@@ -145,7 +246,7 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                 .literal("account")
                 .argument(StringArgument.<CommandSender>newBuilder("account").withSuggestionsProvider((commandContext, s) -> economy.retrieveNonPlayerAccountIds().join().getResult().stream().filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
                 .argument(DoubleArgument.of("amount"))
-                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencies().stream().map(me.lokka30.treasury.api.economy.currency.Currency::getIdentifier).filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
                 .handler(commandContext -> {
                     final String accountName = commandContext.get("account");
                     final Currency currency = getCurrency(commandContext);
@@ -169,7 +270,7 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                 .literal("account")
                 .argument(StringArgument.<CommandSender>newBuilder("account").withSuggestionsProvider((commandContext, s) -> economy.retrieveNonPlayerAccountIds().join().getResult().stream().filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
                 .argument(DoubleArgument.of("amount"))
-                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencies().stream().map(me.lokka30.treasury.api.economy.currency.Currency::getIdentifier).filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
                 .handler(commandContext -> {
                     final String accountName = commandContext.get("account");
                     final Currency currency = getCurrency(commandContext);
@@ -189,6 +290,112 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                     commandContext.getSender().sendMessage("New Balance: " + currency.format(res2.getResult(), null));
                 })
         );
+        commandManager.command(builder.literal("pay")
+                .literal("player")
+                .senderType(Player.class)
+                .argument(StringArgument.<CommandSender>newBuilder("player").withSuggestionsProvider((commandContext, s) -> Arrays.stream(Bukkit.getServer().getOfflinePlayers()).map(OfflinePlayer::getName).filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
+                .argument(DoubleArgument.of("amount"))
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .handler(commandContext -> {
+                    final OfflinePlayer player = getOfflinePlayer(commandContext);
+                    if (player == null) return;
+                    final Currency currency = getCurrency(commandContext);
+                    if (currency == null) return;
+                    final Player sender = (Player) commandContext.getSender();
+                    var from = economy.player().getOrCreate(sender.getUniqueId()).join();
+                    var to = economy.player().withUniqueId(player.getUniqueId()).get().join();
+                    if (!to.isSuccessful()) {
+                        sender.sendMessage(player.getName() + " has no account");
+                        return;
+                    }
+                    pay(sender, from.getResult(), to.getResult(), player.getName(), currency, commandContext.get("amount"));
+                })
+        );
+        commandManager.command(builder.literal("pay")
+                .literal("account")
+                .senderType(Player.class)
+                .argument(StringArgument.<CommandSender>newBuilder("account").withSuggestionsProvider((commandContext, s) -> economy.retrieveNonPlayerAccountIds().join().getResult().stream().filter(s1 -> s1.toLowerCase().startsWith(s)).toList()))
+                .argument(DoubleArgument.of("amount"))
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .handler(commandContext -> {
+                    final String accountName = commandContext.get("account");
+                    final Currency currency = getCurrency(commandContext);
+                    if (currency == null) return;
+                    final Player sender = (Player) commandContext.getSender();
+                    var from = economy.player().getOrCreate(sender.getUniqueId()).join();
+                    var to = economy.nonPlayer().withIdentifier(accountName).get().join();
+                    if (!to.isSuccessful()) {
+                        sender.sendMessage("Account " + accountName + " doesn't exist");
+                        return;
+                    }
+                    pay(sender, from.getResult(), to.getResult(), accountName, currency, commandContext.get("amount"));
+                })
+        );
+        commandManager.command(builder.literal("exchange")
+                .senderType(Player.class)
+                .argument(DoubleArgument.of("amount"))
+                .argument(StringArgument.<CommandSender>newBuilder("from").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("to").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .handler(commandContext -> {
+                    final Player sender = (Player) commandContext.getSender();
+                    final var from = economy.findCurrency(commandContext.get("from"));
+                    final var to = economy.findCurrency(commandContext.get("to"));
+                    if (from.isEmpty() || to.isEmpty()) {
+                        sender.sendMessage("Wrong currency...");
+                        return;
+                    }
+                    final double amount = commandContext.get("amount");
+                    var account = economy.player().getOrCreate(sender.getUniqueId()).join();
+                    economy.exchange(account.getResult(), from.get(), to.get(), BigDecimal.valueOf(amount), true, EconomyTransactionInitiator.createInitiator(EconomyTransactionInitiator.Type.PLAYER, sender.getUniqueId()), "Exchange")
+                            .thenAccept(response -> {
+                                if (!response.isSuccessful()) {
+                                    sender.sendMessage("Exchange failed: " + response.getFailureReason().getDescription());
+                                    return;
+                                }
+                                sender.sendMessage("Exchanged " + from.get().format(BigDecimal.valueOf(amount), null) + " " + from.get().getIdentifier() + ", new Balances: " + from.get().format(response.getResult().fromBalance(), null) + " " + from.get().getIdentifier() + ", " + to.get().format(response.getResult().toBalance(), null) + " " + to.get().getIdentifier());
+                            });
+                })
+        );
+        commandManager.command(builder.literal("rate")
+                .literal("set")
+                .permission("economyprovider.admin.rate")
+                .argument(StringArgument.<CommandSender>newBuilder("from").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("to").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.of("rate"))
+                .handler(commandContext -> {
+                    final BigDecimal rate;
+                    try {
+                        rate = new BigDecimal(commandContext.<String>get("rate"));
+                    } catch (NumberFormatException e) {
+                        commandContext.getSender().sendMessage("Wrong rate...");
+                        return;
+                    }
+                    setExchangeRate(commandContext, rate);
+                })
+        );
+        commandManager.command(builder.literal("rate")
+                .literal("remove")
+                .permission("economyprovider.admin.rate")
+                .argument(StringArgument.<CommandSender>newBuilder("from").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(StringArgument.<CommandSender>newBuilder("to").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .handler(commandContext -> setExchangeRate(commandContext, null))
+        );
+        for (final String selector : List.of("online", "all")) {
+            commandManager.command(builder.literal("payout")
+                    .literal(selector)
+                    .permission("economyprovider.admin.payout")
+                    .argument(DoubleArgument.of("amount"))
+                    .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                    .handler(commandContext -> changeBalances(commandContext, selector, false))
+            );
+            commandManager.command(builder.literal("charge")
+                    .literal(selector)
+                    .permission("economyprovider.admin.charge")
+                    .argument(DoubleArgument.of("amount"))
+                    .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                    .handler(commandContext -> changeBalances(commandContext, selector, true))
+            );
+        }
         commandManager.command(builder.literal("add")
                 .literal("currency")
                 .argument(StringArgument.quoted("identifier"))
@@ -228,6 +435,95 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
                     });
                 })
         );
+        commandManager.command(builder.literal("top")
+                .argument(StringArgument.<CommandSender>newBuilder("currency").withSuggestionsProvider((commandContext, s) -> economy.getCurrencyIdentifiers().stream().filter(name -> name.toLowerCase().startsWith(s)).toList()).build())
+                .argument(IntegerArgument.optional("page", 1))
+                .handler(commandContext -> {
+                    final Leaderboard leaderboard = balanceManager.getLeaderboard();
+                    if (leaderboard == null) {
+                        commandContext.getSender().sendMessage("The leaderboard is disabled");
+                        return;
+                    }
+                    final Currency currency = getCurrency(commandContext);
+                    if (currency == null) return;
+                    final int page = commandContext.get("page");
+                    final int pageSize = getConfig().getInt("leaderboard.page-size", 10);
+                    commandContext.getSender().sendMessage("Top " + currency.getDisplayNamePlural() + " (page " + page + "/" + Math.max(1, leaderboard.getPageCount(currency, pageSize)) + ")");
+                    for (Leaderboard.Entry entry : leaderboard.getPage(currency, page, pageSize)) {
+                        final String name = Bukkit.getOfflinePlayer(entry.player()).getName();
+                        commandContext.getSender().sendMessage("#" + entry.rank() + " " + (name != null ? name : entry.player().toString()) + ": " + currency.format(entry.balance(), null));
+                    }
+                })
+        );
+        commandManager.command(builder.literal("stats")
+                .handler(commandContext -> metrics.report().forEach(commandContext.getSender()::sendMessage))
+        );
+        commandManager.command(builder.literal("pool")
+                .handler(commandContext -> {
+                    if (!(storage instanceof SQLiteDatabase database)) {
+                        commandContext.getSender().sendMessage("The storage engine doesn't use a connection pool");
+                        return;
+                    }
+                    final var pool = database.getConnectionPool();
+                    commandContext.getSender().sendMessage("Open connections: " + pool.getOpenConnections());
+                    commandContext.getSender().sendMessage("Connections: " + pool.getConnectionHits() + " reused, " + pool.getConnectionMisses() + " opened");
+                    commandContext.getSender().sendMessage("Statements: " + pool.getStatementHits() + " cached, " + pool.getStatementMisses() + " prepared");
+                })
+        );
+    }
+
+    private void pay(Player sender, Account from, Account to, String receiver, Currency currency, double amount) {
+        economy.transfer(from, to, currency, BigDecimal.valueOf(amount), true, EconomyTransactionInitiator.createInitiator(EconomyTransactionInitiator.Type.PLAYER, sender.getUniqueId()), "Payment to " + receiver)
+                .thenAccept(response -> {
+                    if (!response.isSuccessful()) {
+                        sender.sendMessage("Payment failed: " + response.getFailureReason().getDescription());
+                        return;
+                    }
+                    sender.sendMessage("Paid " + currency.format(BigDecimal.valueOf(amount), null) + " to " + receiver + ", new Balance: " + currency.format(response.getResult().fromBalance(), null));
+                });
+    }
+
+    private void setExchangeRate(CommandContext<CommandSender> commandContext, @Nullable BigDecimal rate) {
+        final String from = commandContext.get("from");
+        final String to = commandContext.get("to");
+        final CommandSender sender = commandContext.getSender();
+        economy.setExchangeRate(from, to, rate).thenAccept(response -> {
+            if (!response.isSuccessful()) sender.sendMessage("Changing the rate failed: " + response.getFailureReason().getDescription());
+            else if (response.getResult() != TriState.TRUE) sender.sendMessage("Changing the rate failed");
+            else if (rate == null) sender.sendMessage("Removed the rate from " + from + " to " + to);
+            else sender.sendMessage("1 " + from + " is now worth " + rate.toPlainString() + " " + to);
+        });
+    }
+
+    /**
+     * Pays to or charges from every account the selector picks in one bulk change
+     *
+     * @param selector {@code online} for all online players or {@code all} for every account with a balance in the currency
+     * @param charge   whether the amount gets withdrawn, accounts that have less than the amount are skipped
+     */
+    private void changeBalances(CommandContext<CommandSender> commandContext, String selector, boolean charge) {
+        final Currency currency = getCurrency(commandContext);
+        if (currency == null) return;
+        final double amount = commandContext.get("amount");
+        final CommandSender sender = commandContext.getSender();
+        if (amount <= 0) {
+            sender.sendMessage("The amount has to be positive...");
+            return;
+        }
+        final var initiator = EconomyTransactionInitiator.createInitiator(sender instanceof Player ? EconomyTransactionInitiator.Type.PLAYER : EconomyTransactionInitiator.Type.SERVER, sender instanceof Player p ? p.getUniqueId() : sender);
+        final CompletableFuture<Response<Collection<AccountKey>>> accounts = "online".equals(selector)
+                ? CompletableFuture.completedFuture(Response.success(Bukkit.getOnlinePlayers().stream().map(player -> AccountKey.of(player.getUniqueId())).toList()))
+                : economy.retrieveAccountsWith(currency);
+        accounts.thenCompose(response -> economy.changeBalances(response.getResult(), currency, BigDecimal.valueOf(amount), charge, initiator, charge ? "Charge" : "Payout"))
+                .thenAccept(response -> {
+                    if (!response.isSuccessful()) {
+                        sender.sendMessage((charge ? "Charge" : "Payout") + " failed: " + response.getFailureReason().getDescription());
+                        return;
+                    }
+                    final long changed = response.getResult().values().stream().filter(Optional::isPresent).count();
+                    final long skipped = response.getResult().size() - changed;
+                    sender.sendMessage((charge ? "Charged " : "Paid ") + currency.format(BigDecimal.valueOf(amount), null) + (charge ? " from " : " to ") + changed + " accounts" + (skipped > 0 ? ", " + skipped + " skipped" : ""));
+                });
     }
 
     @Nullable
@@ -260,11 +556,28 @@ public class SimpleTreasuryEconomyPlugin extends JavaPlugin {
         return currency;
     }
 
-    public SQLiteDatabase getDatabase() {
-        return database;
+    @Override
+    public StorageEngine getStorage() {
+        return storage;
     }
 
+    @Override
+    public EconomyExecutor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public BalanceManager getBalanceManager() {
+        return balanceManager;
+    }
+
+    @Override
     public EconomyProvider getEconomy() {
         return economy;
     }
+
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
 }
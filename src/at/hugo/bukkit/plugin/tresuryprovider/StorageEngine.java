@@ -0,0 +1,293 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.economy.account.AccountPermission;
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Stores currencies, balances and the permissions of non player accounts. The plugin only talks to its storage
+ * through this interface, which engine is used is set by {@code storage.engine} in the config.
+ * Methods without a future block, so they must not be called on the main thread.
+ */
+public interface StorageEngine extends AutoCloseable {
+
+    /**
+     * Loads all stored currencies
+     *
+     * @return the currencies by their identifier
+     */
+    HashMap<String, Currency> loadCurrencies();
+
+    /**
+     * Stores a new currency
+     *
+     * @return whether the currency got stored
+     */
+    boolean createCurrency(@Nullable String id, @NotNull String singularName, @NotNull String pluralName, @NotNull String currencySymbol, char decimalSymbol, @Nullable Character groupingSymbol, int precision, boolean isPrimary);
+
+    /**
+     * Deletes a currency together with all balances in it
+     *
+     * @param identifier the identifier of the currency
+     */
+    void deleteCurrency(String identifier);
+
+    /**
+     * @param identifier the identifier of the new primary currency
+     * @return whether the primary currency got changed
+     */
+    boolean setPrimaryCurrency(String identifier);
+
+    /**
+     * @param account  the account to look up
+     * @param currency the currency of the balance
+     * @return the balance or null if the account has no balance in that currency
+     * @throws StorageException gets thrown if the balance can't be read
+     */
+    @Nullable BigDecimal getBalance(@NotNull AccountKey account, @NotNull Currency currency);
+
+    /**
+     * Reads all balances of an account at once
+     *
+     * @param account the account to look up
+     * @return the balances by the identifier of their currency
+     */
+    HashMap<String, BigDecimal> getBalances(@NotNull AccountKey account);
+
+    /**
+     * Sets a balance right away, without the write queue and without journaling it
+     *
+     * @param account  the account whose balance gets set
+     * @param currency the currency of the balance
+     * @param amount   the new balance
+     * @return whether the balance got set
+     */
+    boolean setBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount);
+
+    /**
+     * Changes the balance of an account
+     *
+     * @param account     the account whose balance changes
+     * @param currency    the currency of the balance
+     * @param amount      the amount that gets added to the balance
+     * @param transaction the transaction that gets journaled with the change, or null
+     * @return a future that completes with the new balance or an empty Optional if the change failed
+     */
+    CompletableFuture<Optional<BigDecimal>> queueChangeBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount, @Nullable EconomyTransaction transaction);
+
+    /**
+     * Sets the balance of an account
+     *
+     * @param account     the account whose balance gets set
+     * @param currency    the currency of the balance
+     * @param amount      the new balance
+     * @param transaction the transaction that gets journaled with the change, or null
+     * @return a future that completes with the new balance or an empty Optional if it couldn't be set
+     */
+    CompletableFuture<Optional<BigDecimal>> queueSetBalance(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount, @Nullable EconomyTransaction transaction);
+
+    /**
+     * Writes a batch of writes together with journal entries, as one transaction if the engine supports it, and
+     * completes the futures of the writes
+     *
+     * @param batch   the writes to write
+     * @param entries additional entries for the journal, e.g. of changes that were only applied in memory so far
+     */
+    void writeBatch(@NotNull List<WriteQueue.PendingWrite> batch, @NotNull List<TransactionJournal.Entry> entries);
+
+    /**
+     * Moves an amount from one account to another. Engines that write to disk write both balances and their journal
+     * entries in one transaction, so the amount can't get lost in between.
+     *
+     * @param from         the paying account
+     * @param to           the receiving account
+     * @param currency     the currency of both balances
+     * @param amount       the amount to move, has to be positive
+     * @param requireFunds whether the transfer should fail if the paying account has less than the amount
+     * @param withdrawal   the transaction that gets journaled for the paying account, or null
+     * @param deposit      the transaction that gets journaled for the receiving account, or null
+     * @return the outcome of the transfer
+     */
+    TransferResult transfer(@NotNull AccountKey from, @NotNull AccountKey to, @NotNull Currency currency, @NotNull BigDecimal amount, boolean requireFunds, @Nullable EconomyTransaction withdrawal, @Nullable EconomyTransaction deposit);
+
+    /**
+     * Withdraws an amount in one currency from an account and deposits an amount in another currency into the same
+     * account. Engines that write to disk write both balances and their journal entries in one transaction.
+     *
+     * @param account      the account that exchanges
+     * @param from         the currency that gets withdrawn
+     * @param amount       the amount that gets withdrawn, has to be positive
+     * @param to           the currency that gets deposited
+     * @param converted    the amount that gets deposited
+     * @param requireFunds whether the exchange should fail if the account has less than the amount
+     * @param withdrawal   the transaction that gets journaled for the withdrawal, or null
+     * @param deposit      the transaction that gets journaled for the deposit, or null
+     * @return the outcome of the exchange, with the balance in {@code from} as the paying and the one in {@code to} as the receiving balance
+     */
+    TransferResult exchange(@NotNull AccountKey account, @NotNull Currency from, @NotNull BigDecimal amount, @NotNull Currency to, @NotNull BigDecimal converted, boolean requireFunds, @Nullable EconomyTransaction withdrawal, @Nullable EconomyTransaction deposit);
+
+    /**
+     * Adds amounts to the balances of many accounts at once. Engines that write to disk write the changes and their
+     * journal entries in chunks of a bounded size, one transaction per chunk.
+     *
+     * @param currency     the currency of the balances
+     * @param amounts      the amount that gets added to each account, negative to withdraw
+     * @param requireFunds whether a withdrawal should be skipped if the account has less than the amount
+     * @param transactions creates the transaction that gets journaled for an account, or null
+     * @return the new balance of every account, or an empty Optional if its change was skipped or failed
+     */
+    Map<AccountKey, Optional<BigDecimal>> changeBalances(@NotNull Currency currency, @NotNull Map<AccountKey, BigDecimal> amounts, boolean requireFunds, @Nullable Function<AccountKey, EconomyTransaction> transactions);
+
+    /**
+     * Deletes all balances of an account
+     *
+     * @param account the account to delete
+     * @return whether the account got deleted
+     */
+    boolean deleteAccount(@NotNull AccountKey account);
+
+    /**
+     * @param account the account to look up
+     * @return the identifiers of all currencies the account has a balance in
+     */
+    Collection<String> getCurrenciesOf(@NotNull AccountKey account);
+
+    /**
+     * Gets the highest player balances of a currency
+     *
+     * @param currency the currency to look up
+     * @param limit    the maximum amount of balances
+     * @return the players and their balances, highest first
+     */
+    LinkedHashMap<UUID, BigDecimal> getTopBalances(@NotNull Currency currency, int limit);
+
+    /**
+     * @return whether transactions are journaled and can be looked up with {@link #retrieveTransactionHistory}
+     */
+    boolean isJournaled();
+
+    /**
+     * Gets the newest transactions of an account in a time range
+     *
+     * @param account          the account to look up
+     * @param transactionCount the maximum amount of transactions
+     * @param from             the start of the time range
+     * @param to               the end of the time range
+     * @param currencies       looks up a currency by its identifier
+     * @return the transactions, newest first, or an empty Optional if transactions are not journaled or couldn't be read
+     */
+    Optional<Collection<EconomyTransaction>> retrieveTransactionHistory(@NotNull AccountKey account, int transactionCount, @NotNull Instant from, @NotNull Instant to, @NotNull Function<String, Optional<Currency>> currencies);
+
+    /**
+     * Permissions are kept in a {@link PermissionIndex}, this and the other permission lookups are answered from memory
+     * and never block.
+     *
+     * @param id the identifier of the non player account
+     * @return all players that have a permission on the account
+     */
+    Collection<UUID> getMembers(String id);
+
+    /**
+     * Grants or revokes permissions of a player on a non player account. The change is written to the storage before
+     * it shows up in the lookups, if it can't be written nothing changes.
+     *
+     * @return whether the permissions got changed
+     */
+    boolean setPermissions(UUID player, String identifier, boolean value, AccountPermission... permissions);
+
+    /**
+     * @return the permissions the player has on the non player account
+     */
+    HashMap<AccountPermission, TriState> getPermissions(UUID player, String identifier);
+
+    /**
+     * @return the permissions of every member of the non player account
+     */
+    HashMap<UUID, HashMap<AccountPermission, TriState>> getPermissionMap(String identifier);
+
+    /**
+     * @return whether the player has all the permissions on the non player account
+     */
+    boolean hasPermission(UUID player, String identifier, AccountPermission... permissions);
+
+    /**
+     * @param player the player to look up
+     * @return the identifiers of all non player accounts the player has a permission on
+     */
+    Collection<String> getAccountsOf(UUID player);
+
+    /**
+     * @param player      the player to look up
+     * @param permissions the permissions the player needs
+     * @return the identifiers of all non player accounts the player has all the permissions on
+     */
+    Collection<String> getAccountsOf(UUID player, AccountPermission... permissions);
+
+    /**
+     * The rates are kept in memory, lookups never block
+     *
+     * @return the exchange rates between the stored currencies
+     */
+    ExchangeRates getExchangeRates();
+
+    /**
+     * Sets or removes the exchange rate from one currency to another. The change is written to the storage before it
+     * shows up in {@link #getExchangeRates()}, if it can't be written nothing changes.
+     *
+     * @param from the identifier of the currency to convert from
+     * @param to   the identifier of the currency to convert to
+     * @param rate how much of {@code to} one of {@code from} is worth, null to remove the rate
+     * @return whether the rate got changed
+     */
+    boolean setExchangeRate(@NotNull String from, @NotNull String to, @Nullable BigDecimal rate);
+
+    /**
+     * @return the uuids of all players that have a balance
+     */
+    Collection<UUID> getPlayerIds();
+
+    /**
+     * @return the identifiers of all non player accounts that have a balance
+     */
+    Collection<String> getAccountIds();
+
+    /**
+     * @param currency the currency to look up
+     * @return all player and non player accounts that have a balance in the currency
+     */
+    Collection<AccountKey> getAccountsWith(@NotNull Currency currency);
+
+    /**
+     * @param listener gets told about every balance the engine writes, or null to remove the listener
+     */
+    void setBalanceListener(@Nullable BalanceListener listener);
+
+    /**
+     * Writes everything that is still pending and releases all resources of the engine
+     */
+    @Override
+    void close();
+
+    /**
+     * Gets told about balances the engine writes. Engines call it while the write still holds their write lock,
+     * before it is committed, so writes of one balance are reported in the order they are committed.
+     */
+    @FunctionalInterface
+    interface BalanceListener {
+        /**
+         * @param account  the account whose balance got written
+         * @param currency the identifier of the currency of the balance
+         * @param balance  the new balance or null if it is unknown, e.g. because the write got rolled back
+         */
+        void balanceWritten(@NotNull AccountKey account, @NotNull String currency, @Nullable BigDecimal balance);
+    }
+}
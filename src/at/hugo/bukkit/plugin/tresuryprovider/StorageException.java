@@ -0,0 +1,17 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown by a {@link StorageEngine} that can't read what was asked for, so a failed read is never mistaken for data
+ * that doesn't exist
+ */
+public class StorageException extends RuntimeException {
+    /**
+     * @param message what couldn't be read
+     * @param cause   the error of the storage
+     */
+    public StorageException(@NotNull final String message, @NotNull final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,202 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionImportance;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * The append-only history of all transactions, stored in the {@code transactions} table.
+ * Entries are appended in the same SQLite transaction as the balance change they belong to.
+ */
+public class TransactionJournal {
+    private static final int PRUNE_CHUNK_SIZE = 1000;
+
+    private final SQLiteDatabase database;
+
+    /**
+     * @param database the database the journal is stored in
+     */
+    public TransactionJournal(@NotNull final SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Adds inserts for the given entries to the batch of the insert statement of the connection,
+     * they get written by {@link #executeBatch(ConnectionPool.PooledConnection)}.
+     *
+     * @param con     the connection of the transaction the entries belong to
+     * @param entries the entries to append
+     * @throws SQLException gets thrown if an entry can't be bound
+     */
+    public void addBatch(@NotNull final ConnectionPool.PooledConnection con, @NotNull final List<Entry> entries) throws SQLException {
+        if (entries.isEmpty()) return;
+        final PreparedStatement statement = insertStatement(con);
+        statement.clearBatch();
+        for (Entry entry : entries) {
+            final EconomyTransaction transaction = entry.transaction();
+            final Currency currency = entry.currency();
+            final Integer currencyId = database.getCurrencyIds().getId(currency.getIdentifier());
+            if (currencyId == null) continue;
+            bindAccount(statement, 1, entry.account());
+            statement.setInt(2, currencyId);
+            statement.setString(3, transaction.getTransactionType().name());
+            DatabaseUtils.setBalance(statement, 4, transaction.getTransactionAmount(), currency.getPrecision());
+            statement.setString(6, transaction.getImportance().name());
+            final EconomyTransactionInitiator<?> initiator = transaction.getInitiator();
+            statement.setString(7, initiator.getType().name());
+            statement.setString(8, initiatorData(initiator));
+            statement.setString(9, transaction.getReason().orElse(null));
+            statement.setLong(10, timestampOf(transaction));
+            statement.addBatch();
+        }
+    }
+
+    /**
+     * Writes all entries added by {@link #addBatch(ConnectionPool.PooledConnection, List)}
+     *
+     * @param con the connection the entries got added on
+     * @throws SQLException gets thrown if an entry can't be written
+     */
+    public void executeBatch(@NotNull final ConnectionPool.PooledConnection con) throws SQLException {
+        insertStatement(con).executeBatch();
+    }
+
+    private static PreparedStatement insertStatement(ConnectionPool.PooledConnection con) throws SQLException {
+        return con.prepare("INSERT INTO transactions (account, currency_id, type, amount_int, amount_overflow, importance, initiator_type, initiator_data, reason, timestamp) VALUES (?,?,?,?,?,?,?,?,?,?);");
+    }
+
+    /**
+     * Gets the newest transactions of an account in a time range, this is a range scan on the (account, timestamp) index
+     *
+     * @param account          the account to look up
+     * @param transactionCount the maximum amount of transactions
+     * @param from             the oldest timestamp, inclusive
+     * @param to               the newest timestamp, inclusive
+     * @param currencies       looks up a currency by its identifier, entries of unknown currencies or transaction types are skipped
+     * @return the transactions, newest first
+     * @throws SQLException gets thrown if the history can't be read
+     */
+    public List<EconomyTransaction> retrieve(@NotNull final AccountKey account, final int transactionCount, @NotNull final Instant from, @NotNull final Instant to, @NotNull final Function<String, Optional<Currency>> currencies) throws SQLException {
+        final ArrayList<EconomyTransaction> result = new ArrayList<>();
+        if (transactionCount <= 0) return result;
+        try (var con = database.getConnection("sqlite.journal.retrieve")) {
+            final var s1 = con.prepare("SELECT currency_id, type, amount_int, amount_overflow, importance, initiator_type, initiator_data, reason, timestamp FROM transactions WHERE account = ? AND timestamp BETWEEN ? AND ? ORDER BY timestamp DESC LIMIT ?;");
+            bindAccount(s1, 1, account);
+            s1.setLong(2, Math.min(from.toEpochMilli(), to.toEpochMilli()));
+            s1.setLong(3, Math.max(from.toEpochMilli(), to.toEpochMilli()));
+            s1.setInt(4, transactionCount);
+            try (var rs = s1.executeQuery()) {
+                while (rs.next()) {
+                    final String identifier = database.getCurrencyIds().getIdentifier(rs.getInt("currency_id"));
+                    if (identifier == null) continue;
+                    final Optional<Currency> currency = currencies.apply(identifier);
+                    if (currency.isEmpty()) continue;
+                    // showing an unknown type as a different one would be wrong, unknown importances and initiators get a default
+                    final EconomyTransactionType type = enumOf(EconomyTransactionType.class, rs.getString("type"), null);
+                    if (type == null) continue;
+                    final var builder = EconomyTransaction.newBuilder()
+                            .withCurrency(currency.get())
+                            .withTransactionType(type)
+                            .withTransactionAmount(DatabaseUtils.getBalance(rs, "amount_int", "amount_overflow", currency.get().getPrecision()))
+                            .withImportance(enumOf(EconomyTransactionImportance.class, rs.getString("importance"), EconomyTransactionImportance.NORMAL))
+                            .withInitiator(initiatorOf(enumOf(EconomyTransactionInitiator.Type.class, rs.getString("initiator_type"), EconomyTransactionInitiator.Type.SERVER), rs.getString("initiator_data")))
+                            .withTimestamp(Instant.ofEpochMilli(rs.getLong("timestamp")));
+                    final String reason = rs.getString("reason");
+                    if (reason != null) builder.withReason(reason);
+                    result.add(builder.build());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes all entries older than the given time in small chunks, each in its own transaction,
+     * so that writers never have to wait long for the pruning
+     *
+     * @param olderThan entries with an older timestamp get deleted
+     * @return the amount of deleted entries
+     * @throws SQLException gets thrown if a chunk can't be deleted, the chunks deleted until then stay deleted
+     */
+    public long prune(@NotNull final Instant olderThan) throws SQLException {
+        long deleted = 0;
+        int chunk;
+        do {
+            try (var con = database.getConnection("sqlite.journal.prune")) {
+                final var s1 = con.prepare("DELETE FROM transactions WHERE id IN (SELECT id FROM transactions WHERE timestamp < ? ORDER BY timestamp LIMIT ?);");
+                s1.setLong(1, olderThan.toEpochMilli());
+                s1.setInt(2, PRUNE_CHUNK_SIZE);
+                chunk = s1.executeUpdate();
+            }
+            deleted += chunk;
+        } while (chunk >= PRUNE_CHUNK_SIZE);
+        return deleted;
+    }
+
+    private static void bindAccount(PreparedStatement statement, int index, AccountKey account) throws SQLException {
+        if (account instanceof AccountKey.Player player)
+            statement.setBytes(index, DatabaseUtils.convertUuidToBinary(player.uuid()));
+        else statement.setString(index, ((AccountKey.NonPlayer) account).identifier());
+    }
+
+    private static long timestampOf(EconomyTransaction transaction) {
+        try {
+            return Instant.from(transaction.getTimestamp()).toEpochMilli();
+        } catch (RuntimeException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param name     the stored name of the constant
+     * @param fallback what an unknown name is read as, e.g. one from a newer version of Treasury
+     */
+    private static <E extends Enum<E>> E enumOf(Class<E> type, String name, E fallback) {
+        if (name == null) return fallback;
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    private static String initiatorData(EconomyTransactionInitiator<?> initiator) {
+        final Object data = initiator.getData();
+        if (data == null) return null;
+        if (data instanceof org.bukkit.command.CommandSender sender) return sender.getName();
+        return data.toString();
+    }
+
+    private static EconomyTransactionInitiator<?> initiatorOf(EconomyTransactionInitiator.Type type, String data) {
+        if (type == EconomyTransactionInitiator.Type.SERVER) return EconomyTransactionInitiator.SERVER;
+        if (type == EconomyTransactionInitiator.Type.PLAYER && data != null) {
+            try {
+                return EconomyTransactionInitiator.createInitiator(type, UUID.fromString(data));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return EconomyTransactionInitiator.createInitiator(type, data);
+    }
+
+    /**
+     * A transaction that should be appended to the journal
+     *
+     * @param account     the account the transaction belongs to
+     * @param currency    the currency of the transaction
+     * @param transaction the transaction
+     */
+    public record Entry(@NotNull AccountKey account, @NotNull Currency currency, @NotNull EconomyTransaction transaction) {
+    }
+}
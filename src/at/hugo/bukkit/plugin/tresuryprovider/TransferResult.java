@@ -0,0 +1,55 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+
+/**
+ * The outcome of moving an amount from one balance to another, either between two accounts or between two
+ * currencies of one account
+ *
+ * @param status      whether the transfer happened
+ * @param fromBalance the paying balance after the transfer, null if it didn't happen
+ * @param toBalance   the receiving balance after the transfer, null if it didn't happen
+ */
+public record TransferResult(@NotNull Status status, @Nullable BigDecimal fromBalance, @Nullable BigDecimal toBalance) {
+    private static final TransferResult INSUFFICIENT_FUNDS = new TransferResult(Status.INSUFFICIENT_FUNDS, null, null);
+    private static final TransferResult FAILED = new TransferResult(Status.FAILED, null, null);
+
+    /**
+     * @param fromBalance the balance of the paying account after the transfer
+     * @param toBalance   the balance of the receiving account after the transfer
+     * @return a transfer that happened
+     */
+    public static TransferResult success(@NotNull final BigDecimal fromBalance, @NotNull final BigDecimal toBalance) {
+        return new TransferResult(Status.SUCCESS, fromBalance, toBalance);
+    }
+
+    /**
+     * @return a transfer that didn't happen because the paying account has less than the amount
+     */
+    public static TransferResult insufficientFunds() {
+        return INSUFFICIENT_FUNDS;
+    }
+
+    /**
+     * @return a transfer that didn't happen because it couldn't be written
+     */
+    public static TransferResult failed() {
+        return FAILED;
+    }
+
+    /**
+     * @return whether the transfer happened
+     */
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    public enum Status {
+        SUCCESS,
+        INSUFFICIENT_FUNDS,
+        FAILED
+    }
+}
@@ -0,0 +1,130 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects balance writes and hands them to a single writer thread, which commits as many of them as possible in one
+ * transaction. Every write still gets its own future that completes once the batch it was in got committed.
+ */
+public class WriteQueue implements AutoCloseable {
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Consumer<List<PendingWrite>> batchWriter;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param batchWriter  writes a whole batch in one transaction and completes the futures of its writes in order
+     * @param maxBatchSize the maximum amount of writes that get committed in one transaction
+     * @param maxWaitMs    how long the writer waits for more writes before it commits a batch that isn't full
+     */
+    public WriteQueue(@NotNull final Consumer<List<PendingWrite>> batchWriter, final int maxBatchSize, final long maxWaitMs) {
+        this.batchWriter = batchWriter;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMs));
+        this.writerThread = new Thread(this::run, "SimpleTreasuryEconomy-WriteQueue");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues a write, the returned future completes with the new balance once it got committed
+     *
+     * @param account     the account whose balance changes
+     * @param currency    the currency of the balance
+     * @param amount      the amount to add, or the new balance if {@code set} is true
+     * @param set         whether the balance should be set to the amount instead of changed by it
+     * @param transaction the transaction that gets appended to the journal with the write, or null
+     * @return a future that completes with the new balance or an empty Optional if the write failed
+     */
+    public CompletableFuture<Optional<BigDecimal>> submit(@NotNull final AccountKey account, @NotNull final Currency currency, @NotNull final BigDecimal amount, final boolean set, @Nullable final EconomyTransaction transaction) {
+        final PendingWrite write = new PendingWrite(account, currency, amount, set, transaction, new CompletableFuture<>());
+        if (!running) {
+            write.future().complete(Optional.empty());
+            return write.future();
+        }
+        queue.add(write);
+        return write.future();
+    }
+
+    /**
+     * @return the amount of writes that are waiting to be written
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    private void run() {
+        final ArrayList<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                final PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                final long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    if (batch.size() >= maxBatchSize) break;
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    final PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+            if (batch.isEmpty()) continue;
+            try {
+                batchWriter.accept(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            for (PendingWrite write : batch) write.future().complete(Optional.empty());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops accepting writes and waits until all queued writes are written
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingWrite write;
+        while ((write = queue.poll()) != null) write.future().complete(Optional.empty());
+    }
+
+    /**
+     * A write waiting in the queue
+     *
+     * @param account     the account whose balance changes
+     * @param currency    the currency of the balance
+     * @param amount      the amount to add, or the new balance if {@code set} is true
+     * @param set         whether the balance should be set to the amount instead of changed by it
+     * @param transaction the transaction that gets appended to the journal with the write, or null
+     * @param future      the future that gets completed with the new balance
+     */
+    public record PendingWrite(@NotNull AccountKey account, @NotNull Currency currency, @NotNull BigDecimal amount,
+                               boolean set, @Nullable EconomyTransaction transaction,
+                               @NotNull CompletableFuture<Optional<BigDecimal>> future) {
+    }
+}
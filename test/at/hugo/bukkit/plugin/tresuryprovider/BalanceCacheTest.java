@@ -0,0 +1,67 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a balance that can't be loaded never ends up in the cache, where a flush would overwrite the stored one
+ */
+class BalanceCacheTest {
+    @TempDir
+    Path directory;
+
+    private static class FailingStorage extends MemoryStorageEngine {
+        private volatile boolean failing = false;
+
+        @Override
+        public BigDecimal getBalance(@NotNull AccountKey account, @NotNull Currency currency) {
+            if (failing) throw new StorageException("Can't read the balance", new RuntimeException("test"));
+            return super.getBalance(account, currency);
+        }
+    }
+
+    @Test
+    void failedLoadIsNotCached() {
+        final FailingStorage storage = new FailingStorage();
+        assertTrue(storage.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final Currency coins = storage.loadCurrencies().get("coins");
+        final AccountKey account = AccountKey.of(UUID.randomUUID());
+        final BalanceKey key = new BalanceKey(account, "coins");
+        assertTrue(storage.setBalance(account, coins, new BigDecimal("100")));
+        final BalanceCache cache = new BalanceCache(storage, 100, 0, Runnable::run);
+
+        storage.failing = true;
+        assertThrows(StorageException.class, () -> cache.change(key, coins, BigDecimal.ONE));
+        assertThrows(StorageException.class, () -> cache.get(key, coins, BigDecimal.TEN));
+        assertThrows(StorageException.class, () -> cache.withdraw(key, coins, BigDecimal.ONE));
+        assertNull(cache.getIfPresent(key));
+        assertEquals(0, cache.dirtySize());
+        assertEquals(0, cache.flush());
+
+        storage.failing = false;
+        assertEquals(0, new BigDecimal("100").compareTo(storage.getBalance(account, coins)));
+        assertEquals(0, new BigDecimal("101").compareTo(cache.change(key, coins, BigDecimal.ONE)));
+        assertEquals(1, cache.flush());
+        assertEquals(0, new BigDecimal("101").compareTo(storage.getBalance(account, coins)));
+    }
+
+    @Test
+    void sqliteTellsAFailedReadFromAMissingBalance() {
+        final SQLiteDatabase database = new SQLiteDatabase(null, directory.resolve("database.db").toString(), 1);
+        assertTrue(database.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final Currency coins = database.loadCurrencies().get("coins");
+        final AccountKey account = AccountKey.of(UUID.randomUUID());
+        assertNull(database.getBalance(account, coins));
+
+        database.close();
+        assertThrows(StorageException.class, () -> database.getBalance(account, coins));
+    }
+}
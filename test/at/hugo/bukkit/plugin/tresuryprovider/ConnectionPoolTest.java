@@ -0,0 +1,45 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.sqlite.SQLiteDataSource;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks how the pool behaves when all of its connections are in use
+ */
+class ConnectionPoolTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void closingWakesUpAWaitingAcquire() throws Exception {
+        final SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + directory.resolve("database.db"));
+        final ConnectionPool pool = new ConnectionPool(dataSource, 1);
+        final ConnectionPool.PooledConnection connection = pool.acquire();
+        final CompletableFuture<ConnectionPool.PooledConnection> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire();
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(waiting.isDone(), "the only connection is in use");
+
+        pool.close();
+        final ExecutionException exception = assertThrows(ExecutionException.class, () -> waiting.get(2, TimeUnit.SECONDS), "acquire should give up once the pool is closed");
+        assertInstanceOf(SQLException.class, exception.getCause());
+        connection.close();
+        assertThrows(SQLException.class, pool::acquire);
+    }
+}
@@ -0,0 +1,152 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes balances through a {@link MappedLogStorageEngine} and opens its directory again, after closing it or without
+ * closing it like after a crash of the server, and checks what gets recovered from the snapshot and the logs
+ */
+class MappedLogStorageEngineTest {
+    private static final int RECORD_SIZE = 48;
+
+    @TempDir
+    Path directory;
+
+    private MappedLogStorageEngine open() throws IOException {
+        return new MappedLogStorageEngine(directory, 64 * RECORD_SIZE, Logger.getAnonymousLogger(), Runnable::run);
+    }
+
+    private static Currency coins(MappedLogStorageEngine engine) {
+        return engine.loadCurrencies().get("coins");
+    }
+
+    /**
+     * @return the log with the highest generation, the one that is currently written
+     */
+    private Path currentLog() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log"))
+                    .max(Comparator.comparingLong(file -> Long.parseLong(file.getFileName().toString().replaceAll("\\D", ""))))
+                    .orElseThrow();
+        }
+    }
+
+    /**
+     * Flips a byte of the current log
+     */
+    private void corrupt(int position) throws IOException {
+        try (var channel = FileChannel.open(currentLog(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            value.put(0, (byte) ~value.get(0)).rewind();
+            channel.write(value, position);
+        }
+    }
+
+    @Test
+    void balancesSurviveASnapshotAndReopening() throws IOException {
+        final MappedLogStorageEngine engine = open();
+        assertTrue(engine.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final AccountKey player = AccountKey.of(UUID.randomUUID());
+        final AccountKey other = AccountKey.of(UUID.randomUUID());
+        final AccountKey bank = AccountKey.of("bank");
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("10.5")));
+        assertTrue(engine.setBalance(bank, coins(engine), new BigDecimal("1000")));
+        assertTrue(engine.setBalance(other, coins(engine), BigDecimal.ONE));
+        engine.snapshot();
+        // changes after the snapshot are only in the log until the engine gets closed
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("20.25")));
+        assertTrue(engine.deleteAccount(other));
+        // too many changes for one log, so the log gets rotated and a snapshot gets written while changing
+        for (int i = 0; i < 100; i++) assertTrue(engine.queueChangeBalance(bank, coins(engine), BigDecimal.ONE, null).join().isPresent());
+        engine.close();
+
+        final MappedLogStorageEngine reopened = open();
+        assertEquals(new BigDecimal("20.25"), reopened.getBalance(player, coins(reopened)));
+        assertEquals(new BigDecimal("1100.00"), reopened.getBalance(bank, coins(reopened)));
+        assertNull(reopened.getBalance(other, coins(reopened)));
+        reopened.close();
+    }
+
+    @Test
+    void logBeforeTheSnapshotIsReplayed() throws IOException {
+        final MappedLogStorageEngine engine = open();
+        assertTrue(engine.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final Path snapshot = directory.resolve("balances.snapshot");
+        final byte[] withoutBalance = Files.readAllBytes(snapshot);
+        final AccountKey player = AccountKey.of(UUID.randomUUID());
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("42")));
+        engine.snapshot();
+        // a change that was written to the previous log while the snapshot was taken can be missing from the snapshot
+        final ByteBuffer missed = ByteBuffer.wrap(withoutBalance);
+        missed.putLong(8, ByteBuffer.wrap(Files.readAllBytes(snapshot)).getLong(8));
+        Files.write(snapshot, missed.array());
+
+        final MappedLogStorageEngine reopened = open();
+        assertEquals(new BigDecimal("42.00"), reopened.getBalance(player, coins(reopened)));
+        reopened.close();
+    }
+
+    @Test
+    void tornLastRecordIsSkipped() throws IOException {
+        final MappedLogStorageEngine engine = open();
+        assertTrue(engine.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final AccountKey player = AccountKey.of(UUID.randomUUID());
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("100")));
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("200")));
+        // the check is written last, a record without it was only written partially
+        corrupt(2 * RECORD_SIZE - 1);
+
+        final MappedLogStorageEngine reopened = open();
+        assertEquals(new BigDecimal("100.00"), reopened.getBalance(player, coins(reopened)));
+        reopened.close();
+    }
+
+    @Test
+    void transferIsReplayed() throws IOException {
+        final MappedLogStorageEngine engine = open();
+        assertTrue(engine.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final AccountKey player = AccountKey.of(UUID.randomUUID());
+        final AccountKey bank = AccountKey.of("bank");
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("100")));
+        assertTrue(engine.transfer(player, bank, coins(engine), new BigDecimal("30"), true, null, null).isSuccess());
+
+        final MappedLogStorageEngine reopened = open();
+        assertEquals(new BigDecimal("70.00"), reopened.getBalance(player, coins(reopened)));
+        assertEquals(new BigDecimal("30.00"), reopened.getBalance(bank, coins(reopened)));
+        reopened.close();
+    }
+
+    @Test
+    void tornTransferIsSkippedWhole() throws IOException {
+        final MappedLogStorageEngine engine = open();
+        assertTrue(engine.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        final AccountKey player = AccountKey.of(UUID.randomUUID());
+        final AccountKey bank = AccountKey.of("bank");
+        assertTrue(engine.setBalance(player, coins(engine), new BigDecimal("100")));
+        assertTrue(engine.transfer(player, bank, coins(engine), new BigDecimal("30"), true, null, null).isSuccess());
+        // the balance set is the first record, the deposit of the transfer ends with the third one
+        corrupt(3 * RECORD_SIZE - 16);
+
+        final MappedLogStorageEngine reopened = open();
+        assertEquals(new BigDecimal("100.00"), reopened.getBalance(player, coins(reopened)));
+        assertNull(reopened.getBalance(bank, coins(reopened)));
+        reopened.close();
+    }
+}
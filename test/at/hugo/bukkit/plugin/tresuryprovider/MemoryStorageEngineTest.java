@@ -0,0 +1,64 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.economy.account.AccountPermission;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a change of the metadata that can't be persisted doesn't show up in memory either
+ */
+class MemoryStorageEngineTest {
+    private static class FailingStorage extends MemoryStorageEngine {
+        private boolean failing = false;
+
+        @Override
+        protected void metadataChanged() {
+            if (failing) throw new UncheckedIOException(new IOException("disk full"));
+        }
+    }
+
+    @Test
+    void unpersistedMetadataIsRolledBack() {
+        final FailingStorage storage = new FailingStorage();
+        assertTrue(storage.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        assertTrue(storage.createCurrency("gems", "Gem", "Gems", "G", '.', null, 0, false));
+        final UUID player = UUID.randomUUID();
+        assertTrue(storage.setPermissions(player, "bank", true, AccountPermission.DEPOSIT));
+        assertTrue(storage.setExchangeRate("coins", "gems", new BigDecimal("10")));
+        storage.failing = true;
+
+        assertFalse(storage.setPermissions(player, "bank", true, AccountPermission.WITHDRAW));
+        assertEquals(TriState.TRUE, storage.getPermissions(player, "bank").get(AccountPermission.DEPOSIT));
+        assertNotEquals(TriState.TRUE, storage.getPermissions(player, "bank").get(AccountPermission.WITHDRAW));
+        assertFalse(storage.setPermissions(player, "bank", false, AccountPermission.DEPOSIT));
+        assertEquals(TriState.TRUE, storage.getPermissions(player, "bank").get(AccountPermission.DEPOSIT));
+        assertFalse(storage.deleteAccount(AccountKey.of("bank")));
+        assertTrue(storage.getAccountsOf(player).contains("bank"));
+
+        assertFalse(storage.setExchangeRate("coins", "gems", new BigDecimal("20")));
+        assertEquals(0, new BigDecimal("10").compareTo(storage.getExchangeRates().getRate("coins", "gems")));
+        assertFalse(storage.setExchangeRate("coins", "gems", null));
+        assertEquals(0, new BigDecimal("10").compareTo(storage.getExchangeRates().getRate("coins", "gems")));
+
+        assertFalse(storage.createCurrency("tokens", "Token", "Tokens", "T", '.', null, 0, true));
+        assertFalse(storage.loadCurrencies().containsKey("tokens"));
+        assertTrue(storage.loadCurrencies().get("coins").isPrimary());
+        assertFalse(storage.setPrimaryCurrency("gems"));
+        assertTrue(storage.loadCurrencies().get("coins").isPrimary());
+        assertFalse(storage.loadCurrencies().get("gems").isPrimary());
+        storage.deleteCurrency("gems");
+        assertTrue(storage.loadCurrencies().containsKey("gems"));
+        assertEquals(0, new BigDecimal("10").compareTo(storage.getExchangeRates().getRate("coins", "gems")));
+
+        storage.failing = false;
+        assertTrue(storage.createCurrency("tokens", "Token", "Tokens", "T", '.', null, 0, false));
+        assertTrue(storage.setBalance(AccountKey.of(player), storage.loadCurrencies().get("tokens"), BigDecimal.TEN));
+    }
+}
@@ -0,0 +1,121 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Removes keys that collide in one segment of an {@link OffHeapBalanceTable}, whose probe sequences wrap around the
+ * end of the segment, and checks after every removal that each remaining key is still found
+ */
+class OffHeapBalanceTableTest {
+    private static final int INITIAL_SLOTS = 16;
+
+    /**
+     * The hash of {@link OffHeapBalanceTable}, the top six bits pick the segment and the low bits the home slot
+     */
+    private static long hash(long most, long least) {
+        long hash = most * 0x9E3779B97F4A7C15L ^ least;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return keys of the first segment whose home slot in a segment of the given size is one of the given slots
+     */
+    private static List<long[]> colliding(Random random, int count, int slots, int... homes) {
+        final List<long[]> keys = new ArrayList<>();
+        while (keys.size() < count) {
+            final long most = random.nextLong();
+            final long least = random.nextLong();
+            final long hash = hash(most, least);
+            if (hash >>> 58 != 0) continue;
+            final int home = (int) hash & (slots - 1);
+            if (Arrays.stream(homes).anyMatch(wanted -> wanted == home)) keys.add(new long[]{most, least});
+        }
+        return keys;
+    }
+
+    private static void put(OffHeapBalanceTable table, Map<List<Long>, Long> expected, long[] key, long value) {
+        table.compute(key[0], key[1], previous -> value);
+        expected.put(List.of(key[0], key[1]), value);
+    }
+
+    private static void remove(OffHeapBalanceTable table, Map<List<Long>, Long> expected, long[] key) {
+        assertNotEquals(OffHeapBalanceTable.ABSENT, table.get(key[0], key[1]));
+        table.compute(key[0], key[1], previous -> OffHeapBalanceTable.ABSENT);
+        expected.remove(List.of(key[0], key[1]));
+        assertEquals(OffHeapBalanceTable.ABSENT, table.get(key[0], key[1]));
+        assertAllFound(table, expected);
+    }
+
+    private static void assertAllFound(OffHeapBalanceTable table, Map<List<Long>, Long> expected) {
+        for (Map.Entry<List<Long>, Long> entry : expected.entrySet())
+            assertEquals(entry.getValue(), table.get(entry.getKey().get(0), entry.getKey().get(1)), "lost " + entry.getKey());
+        assertEquals(expected.size(), table.size());
+    }
+
+    @Test
+    void removingAcrossTheWrapAroundKeepsEveryKey() {
+        for (int seed = 0; seed < 20; seed++) {
+            final Random random = new Random(seed);
+            // 11 keys fill the probe sequences from slot 14 over the end of the segment without resizing it
+            final List<long[]> keys = colliding(random, 11, INITIAL_SLOTS, 14, 15, 0);
+            final OffHeapBalanceTable table = new OffHeapBalanceTable();
+            final long memory = table.getMemoryUsage();
+            final Map<List<Long>, Long> expected = new HashMap<>();
+            for (int i = 0; i < keys.size(); i++) put(table, expected, keys.get(i), i);
+            assertAllFound(table, expected);
+            assertEquals(memory, table.getMemoryUsage());
+
+            Collections.shuffle(keys, random);
+            for (long[] key : keys) remove(table, expected, key);
+            assertEquals(0, table.size());
+        }
+    }
+
+    @Test
+    void removingBeforeAndAfterAResizeKeepsEveryKey() {
+        for (int seed = 0; seed < 20; seed++) {
+            final Random random = new Random(seed);
+            // home slots near the end of the segment before and after it doubled
+            final List<long[]> keys = colliding(random, 40, INITIAL_SLOTS * 2, 14, 15, 30, 31, 0);
+            final OffHeapBalanceTable table = new OffHeapBalanceTable();
+            final long memory = table.getMemoryUsage();
+            final Map<List<Long>, Long> expected = new HashMap<>();
+            for (int i = 0; i < 10; i++) put(table, expected, keys.get(i), i);
+            final List<long[]> first = new ArrayList<>(keys.subList(0, 10));
+            Collections.shuffle(first, random);
+            for (long[] key : first.subList(0, 4)) remove(table, expected, key);
+            for (int i = 10; i < keys.size(); i++) {
+                put(table, expected, keys.get(i), -i);
+                assertAllFound(table, expected);
+            }
+            assertTrue(table.getMemoryUsage() > memory);
+
+            final List<long[]> remaining = new ArrayList<>();
+            for (long[] key : keys) if (expected.containsKey(List.of(key[0], key[1]))) remaining.add(key);
+            Collections.shuffle(remaining, random);
+            for (long[] key : remaining) remove(table, expected, key);
+            assertEquals(0, table.size());
+        }
+    }
+
+    @Test
+    void nilUuidIsKeptApart() {
+        final OffHeapBalanceTable table = new OffHeapBalanceTable();
+        assertEquals(OffHeapBalanceTable.ABSENT, table.get(0, 0));
+        table.compute(0, 0, previous -> 5);
+        table.compute(1, 0, previous -> 6);
+        assertEquals(5, table.get(0, 0));
+        assertEquals(2, table.size());
+        table.compute(0, 0, previous -> OffHeapBalanceTable.ABSENT);
+        assertEquals(OffHeapBalanceTable.ABSENT, table.get(0, 0));
+        assertEquals(6, table.get(1, 0));
+        assertEquals(1, table.size());
+    }
+}
@@ -0,0 +1,239 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.common.misc.TriState;
+import me.lokka30.treasury.api.economy.account.AccountPermission;
+import me.lokka30.treasury.api.economy.currency.Currency;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransaction;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionImportance;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionInitiator;
+import me.lokka30.treasury.api.economy.transaction.EconomyTransactionType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Opens databases that were created by older versions of the plugin and checks that they get upgraded
+ */
+class SQLiteDatabaseMigrationTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void upgradesTheFirstReleasedSchema() throws SQLException {
+        final Path file = directory.resolve("database.db");
+        final UUID player = UUID.randomUUID();
+        final BigDecimal balance = new BigDecimal("1234.56");
+        final BigDecimal accountBalance = new BigDecimal("99.01");
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement()) {
+            s1.execute("""
+                    Create TABLE currencies (
+                     id INTEGER not NULL,
+                     string_id varchar(64) NOT NULL,
+                     name_singular varchar(64) NOT NULL,
+                     name_plural varchar(64) Not NULL,
+                     currency_symbol varchar(16) NOT NULL,
+                     decimal_symbol char(1) NOT NULL DEFAULT ".",
+                     grouping_symbol char(1) DEFAULT NULL,
+                     precision INTEGER NOT NULL,
+                     is_primary Boolean NOT NULL DEFAULT false,
+                     primary key(id)
+                    );""");
+            s1.execute("""
+                    Create TABLE player_balances (
+                     currency_id INTEGER NOT NULL,
+                     player_uuid binary(16) not NULL,
+                     balance Binary(128),
+                     player_uuid_text CHAR(36) generated always AS (
+                       SUBSTR(hex(player_uuid),1,8) || '-' || SUBSTR(hex(player_uuid),9,4) || '-' || SUBSTR(hex(player_uuid),13,4) || '-' || SUBSTR(hex(player_uuid),17,4) || '-' || SUBSTR(hex(player_uuid),21,12)
+                     ) virtual,
+                     primary key(currency_id, player_uuid),
+                     FOREIGN KEY (currency_id) REFERENCES currencies(id) ON DELETE CASCADE
+                    );""");
+            s1.execute("""
+                    Create TABLE account_balances (
+                     currency_id INTEGER NOT NULL,
+                     account_id CHAR(64) not NULL,
+                     balance Binary(128),
+                     primary key(currency_id, account_id),
+                     FOREIGN KEY (currency_id) REFERENCES currencies(id) ON DELETE CASCADE
+                    );""");
+            s1.execute("""
+                    Create TABLE account_permissions (
+                     account_id CHAR(64) not NULL,
+                     permission int not NULL,
+                     player_uuid binary(16) not NULL,
+                     player_uuid_text CHAR(36) generated always AS (
+                       SUBSTR(hex(player_uuid),1,8) || '-' || SUBSTR(hex(player_uuid),9,4) || '-' || SUBSTR(hex(player_uuid),13,4) || '-' || SUBSTR(hex(player_uuid),17,4) || '-' || SUBSTR(hex(player_uuid),21,12)
+                     ) virtual,
+                     primary key(account_id, player_uuid)
+                    );""");
+            s1.execute("INSERT INTO currencies (id, string_id, name_singular, name_plural, currency_symbol, precision, is_primary) VALUES (1, 'coins', 'Coin', 'Coins', '$', 2, true);");
+            try (var s2 = con.prepareStatement("INSERT INTO player_balances (currency_id, player_uuid, balance) VALUES (1, ?, ?);");
+                 var s3 = con.prepareStatement("INSERT INTO account_balances (currency_id, account_id, balance) VALUES (1, 'bank', ?);");
+                 var s4 = con.prepareStatement("INSERT INTO account_permissions (account_id, permission, player_uuid) VALUES ('bank', ?, ?);")) {
+                s2.setBytes(1, DatabaseUtils.convertUuidToBinary(player));
+                s2.setBytes(2, DatabaseUtils.convertBigDecimalToBinary(balance, 2));
+                s2.execute();
+                s3.setBytes(1, DatabaseUtils.convertBigDecimalToBinary(accountBalance, 2));
+                s3.execute();
+                s4.setInt(1, AccountPermission.DEPOSIT.ordinal());
+                s4.setBytes(2, DatabaseUtils.convertUuidToBinary(player));
+                s4.execute();
+            }
+        }
+
+        final SQLiteDatabase database = new SQLiteDatabase(null, file.toString(), 2);
+        try {
+            final Currency coins = database.loadCurrencies().get("coins");
+            assertNotNull(coins);
+            assertEquals(0, balance.compareTo(database.getBalance(AccountKey.of(player), coins)));
+            assertEquals(0, accountBalance.compareTo(database.getBalance(AccountKey.of("bank"), coins)));
+            assertEquals(TriState.TRUE, database.getPermissions(player, "bank").get(AccountPermission.DEPOSIT));
+        } finally {
+            database.close();
+        }
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement()) {
+            try (var rs = s1.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'index' AND name = 'player_balances_currency_balance';")) {
+                assertTrue(rs.next());
+                assertEquals(1, rs.getInt(1));
+            }
+            try (var rs = s1.executeQuery("SELECT name FROM pragma_table_info('player_balances') WHERE name = 'balance';")) {
+                assertFalse(rs.next(), "the old balance column should be dropped");
+            }
+            try (var rs = s1.executeQuery("PRAGMA user_version;")) {
+                assertTrue(rs.next());
+                assertEquals(4, rs.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    void storesTheTransactionTypesByName() throws SQLException {
+        final Path file = directory.resolve("database.db");
+        final UUID player = UUID.randomUUID();
+        new SQLiteDatabase(null, file.toString(), 2).close();
+        // the journal like version 3 stored it, with the ordinals of the enums
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement()) {
+            s1.execute("INSERT INTO currencies (id, string_id, name_singular, name_plural, currency_symbol, precision, is_primary) VALUES (1, 'coins', 'Coin', 'Coins', '$', 2, true);");
+            s1.execute("DROP TABLE transactions;");
+            s1.execute("""
+                    Create TABLE transactions (
+                     id INTEGER not NULL,
+                     account BLOB not NULL,
+                     currency_id INTEGER not NULL,
+                     type INTEGER not NULL,
+                     amount_int INTEGER,
+                     amount_overflow BLOB,
+                     importance INTEGER not NULL,
+                     initiator_type INTEGER not NULL,
+                     initiator_data TEXT,
+                     reason TEXT,
+                     timestamp INTEGER not NULL,
+                     primary key(id)
+                    );""");
+            s1.execute("CREATE INDEX transactions_account_timestamp ON transactions (account, timestamp);");
+            s1.execute("CREATE INDEX transactions_timestamp ON transactions (timestamp);");
+            try (var s2 = con.prepareStatement("INSERT INTO transactions (account, currency_id, type, amount_int, importance, initiator_type, initiator_data, reason, timestamp) VALUES (?, 1, ?, 150, ?, ?, ?, 'test', ?);")) {
+                s2.setBytes(1, DatabaseUtils.convertUuidToBinary(player));
+                s2.setInt(2, EconomyTransactionType.WITHDRAWAL.ordinal());
+                s2.setInt(3, EconomyTransactionImportance.HIGH.ordinal());
+                s2.setInt(4, EconomyTransactionInitiator.Type.PLAYER.ordinal());
+                s2.setString(5, player.toString());
+                s2.setLong(6, 2000);
+                s2.execute();
+                // an ordinal no enum constant has anymore
+                s2.setInt(2, 99);
+                s2.setLong(6, 1000);
+                s2.execute();
+            }
+            s1.execute("PRAGMA user_version = 3;");
+        }
+
+        final SQLiteDatabase database = new SQLiteDatabase(null, file.toString(), 2);
+        try {
+            database.enableJournal();
+            final Currency coins = database.loadCurrencies().get("coins");
+            final List<EconomyTransaction> history = List.copyOf(database.retrieveTransactionHistory(AccountKey.of(player), 10, Instant.EPOCH, Instant.now(), identifier -> Optional.ofNullable(identifier.equals("coins") ? coins : null)).orElseThrow());
+            assertEquals(1, history.size(), "the transaction with the unknown type should be skipped");
+            final EconomyTransaction transaction = history.get(0);
+            assertEquals(EconomyTransactionType.WITHDRAWAL, transaction.getTransactionType());
+            assertEquals(EconomyTransactionImportance.HIGH, transaction.getImportance());
+            assertEquals(EconomyTransactionInitiator.Type.PLAYER, transaction.getInitiator().getType());
+            assertEquals(0, new BigDecimal("1.50").compareTo(transaction.getTransactionAmount()));
+        } finally {
+            database.close();
+        }
+
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement()) {
+            try (var rs = s1.executeQuery("SELECT type, importance, initiator_type FROM transactions ORDER BY timestamp DESC;")) {
+                assertTrue(rs.next());
+                assertEquals("WITHDRAWAL", rs.getString("type"));
+                assertEquals("HIGH", rs.getString("importance"));
+                assertEquals("PLAYER", rs.getString("initiator_type"));
+                assertTrue(rs.next());
+                assertEquals("99", rs.getString("type"));
+            }
+            try (var rs = s1.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'index' AND tbl_name = 'transactions';")) {
+                assertTrue(rs.next());
+                assertEquals(2, rs.getInt(1), "the indexes of the journal should be created again");
+            }
+        }
+    }
+
+    @Test
+    void refusesANewerSchema() throws SQLException {
+        final Path file = directory.resolve("database.db");
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement()) {
+            s1.execute("PRAGMA user_version = 99;");
+        }
+
+        assertThrows(IllegalStateException.class, () -> new SQLiteDatabase(null, file.toString(), 2));
+        assertEquals(99, userVersion(file));
+    }
+
+    @Test
+    void refusesAFailedMigration() throws SQLException {
+        final Path file = directory.resolve("database.db");
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement()) {
+            // claims to have the tables, but the indexes can't be created without them
+            s1.execute("PRAGMA user_version = 2;");
+        }
+
+        final IllegalStateException exception = assertThrows(IllegalStateException.class, () -> new SQLiteDatabase(null, file.toString(), 2));
+        assertInstanceOf(SQLException.class, exception.getCause());
+        assertEquals(2, userVersion(file));
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement();
+             var rs = s1.executeQuery("SELECT count(*) FROM sqlite_master WHERE type = 'index';")) {
+            assertTrue(rs.next());
+            assertEquals(0, rs.getInt(1), "the failed migration should be rolled back completely");
+        }
+    }
+
+    private static int userVersion(Path file) throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement();
+             var rs = s1.executeQuery("PRAGMA user_version;")) {
+            assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+}
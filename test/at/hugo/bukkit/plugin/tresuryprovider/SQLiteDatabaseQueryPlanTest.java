@@ -0,0 +1,133 @@
+package at.hugo.bukkit.plugin.tresuryprovider;
+
+import me.lokka30.treasury.api.economy.account.AccountPermission;
+import me.lokka30.treasury.api.economy.currency.Currency;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs every operation of {@link SQLiteDatabase} once and asks SQLite how it runs each statement that got prepared,
+ * so a query that filters a balance, permission or transaction table without an index that fits the filter is caught.
+ * Statements without a filter, like listing every player id, read the whole table on purpose.
+ */
+class SQLiteDatabaseQueryPlanTest {
+    private static final Set<String> LARGE_TABLES = Set.of("player_balances", "account_balances", "account_permissions", "transactions");
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private SQLiteDatabase database;
+    private final Set<String> statements = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void setUp() {
+        file = directory.resolve("database.db");
+        database = new SQLiteDatabase(null, file.toString(), 2);
+        database.enableWriteQueue(16, 1);
+        database.enableJournal();
+        database.getConnectionPool().setPrepareListener((connection, sql) -> statements.add(sql));
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.close();
+    }
+
+    @Test
+    void appliesEveryMigration() throws SQLException {
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s1 = con.createStatement();
+             var rs = s1.executeQuery("PRAGMA user_version;")) {
+            assertTrue(rs.next());
+            assertEquals(4, rs.getInt(1));
+        }
+    }
+
+    @Test
+    void noStatementScansALargeTable() throws SQLException {
+        assertTrue(database.createCurrency("coins", "Coin", "Coins", "$", '.', null, 2, true));
+        assertTrue(database.createCurrency("gems", "Gem", "Gems", "G", '.', null, 0, false));
+        final HashMap<String, Currency> currencies = database.loadCurrencies();
+        final Currency coins = currencies.get("coins");
+        final Currency gems = currencies.get("gems");
+        final UUID player = UUID.randomUUID();
+        final UUID other = UUID.randomUUID();
+        final AccountKey playerKey = AccountKey.of(player);
+        final AccountKey bankKey = AccountKey.of("bank");
+
+        database.setBalance(playerKey, coins, new BigDecimal("100"));
+        database.setBalance(bankKey, coins, new BigDecimal("100"));
+        database.setBalance(player, coins, new BigDecimal("100"));
+        database.setBalance("bank", coins, new BigDecimal("100"));
+        database.changeBalance(player, coins, BigDecimal.ONE);
+        database.changeBalance("bank", coins, BigDecimal.ONE);
+        database.queueChangeBalance(playerKey, coins, BigDecimal.ONE, null).join();
+        database.queueSetBalance(bankKey, coins, BigDecimal.TEN, null).join();
+        database.getBalance(playerKey, coins);
+        database.getBalance(bankKey, coins);
+        database.getBalance(player, coins);
+        database.getBalance("bank", coins);
+        database.getBalances(playerKey);
+        database.getBalances(bankKey);
+        database.transfer(playerKey, bankKey, coins, BigDecimal.ONE, true, null, null);
+        database.exchange(playerKey, coins, BigDecimal.ONE, gems, BigDecimal.TEN, true, null, null);
+        database.changeBalances(coins, Map.of(playerKey, BigDecimal.ONE, bankKey, BigDecimal.ONE.negate()), true, null);
+        database.getCurrenciesOf(playerKey);
+        database.getCurrenciesOf(bankKey);
+        database.setExchangeRate("coins", "gems", new BigDecimal("10"));
+        database.setExchangeRate("coins", "gems", null);
+        database.setPermissions(other, "bank", true, AccountPermission.DEPOSIT);
+        database.setPermissions(other, "bank", false, AccountPermission.DEPOSIT);
+        database.getTopBalances(coins, 10);
+        database.getPlayerIds();
+        database.getAccountsWith(coins);
+        database.getAccountIds();
+        database.retrieveTransactionHistory(playerKey, 10, Instant.EPOCH, Instant.now(), identifier -> Optional.ofNullable(currencies.get(identifier)));
+        Objects.requireNonNull(database.getJournal()).prune(Instant.now().minusSeconds(60));
+        database.setPrimaryCurrency("gems");
+        database.deleteAccount(playerKey);
+        database.deleteAccount(bankKey);
+        database.deleteCurrency("gems");
+
+        assertFalse(statements.isEmpty());
+        final List<String> scans = new ArrayList<>();
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+            for (String sql : statements) {
+                if (!sql.toLowerCase(Locale.ROOT).contains(" where ")) continue;
+                try (var s1 = con.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+                     var rs = s1.executeQuery()) {
+                    while (rs.next()) {
+                        final String detail = rs.getString("detail");
+                        if (scansLargeTable(detail)) scans.add(sql + " -> " + detail);
+                    }
+                }
+            }
+        }
+        assertEquals(List.of(), scans);
+    }
+
+    /**
+     * @param detail a step of a query plan, like {@code SCAN transactions} or {@code SEARCH player_balances USING INDEX ...}
+     * @return whether the step reads every row of a large table or of one of its indexes
+     */
+    private static boolean scansLargeTable(String detail) {
+        if (!detail.startsWith("SCAN ")) return false;
+        // SQLite before 3.36 calls it SCAN TABLE
+        final String[] words = detail.replace("SCAN TABLE ", "SCAN ").split(" ");
+        return words.length > 1 && LARGE_TABLES.contains(words[1]);
+    }
+}